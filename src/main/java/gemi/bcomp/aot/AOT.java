@@ -0,0 +1,226 @@
+package gemi.bcomp.aot;
+
+import static gemi.bcomp.assembler.Opcodes.*;
+import static gemi.bcomp.jit.ClassBuilder.*;
+import static gemi.bcomp.utilities.Utilities.*;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import gemi.bcomp.jit.ClassBuilder;
+import gemi.bcomp.jit.ClassBuilder.Code;
+import gemi.bcomp.jit.ClassBuilder.Label;
+import gemi.bcomp.jit.Translator;
+import gemi.bcomp.vm.Executable;
+
+/**
+ * Translates an executable generated by the linker ahead of time into
+ * an executable jar file.
+ * <p>
+ * Each function found in the function pointer table, or called from
+ * translated code, becomes a method of the class <code>Program</code>.
+ * The jar also contains the initial memory image, and is run by
+ * <code>Runner</code>, which starts the VM with the translated code
+ * installed.
+ */
+public class AOT {
+
+    public final static String PROGRAM_CLASS = "gemi/bcomp/aot/Program";
+    public final static String IMAGE = "gemi/bcomp/aot/image";
+
+    private Executable exe;
+
+    // translated functions: method name for each entry point
+    public Map<Integer,String> entries = new TreeMap<>();
+    public TreeSet<Integer> functions = new TreeSet<>();
+
+    public AOT(Executable exe) {
+        this.exe = exe;
+    }
+
+    /**
+     * Returns the class file of the translated program.
+     */
+    public byte[] translate() {
+        ClassBuilder cb = new ClassBuilder(PROGRAM_CLASS, "java/lang/Object", "gemi/bcomp/vm/Compiled");
+        cb.defaultConstructor();
+        Translator translator = new Translator(exe.text(), exe.n);
+        translator.maxRegion = 4000;
+
+        Deque<Integer> work = new ArrayDeque<>();
+        work.add(exe.entry);
+        for (int f : exe.functions()) work.add(f);
+        while (!work.isEmpty()) {
+            int f = work.remove();
+            if (f < 0 || f >= exe.n || functions.contains(f)) continue;
+            functions.add(f);
+            String name = "f"+int2hex(f);
+            if (!translator.method(cb, name, f)) {
+                warning("function at "+int2hex(f)+" is too large, left to the interpreter");
+                continue;
+            }
+            for (int adr : translator.entries) {
+                if (!entries.containsKey(adr)) entries.put(adr, name);
+            }
+            // called functions
+            for (int adr : translator.region) {
+                if (opcode(exe.text()[adr]) == CALL_A) work.add(adr(exe.text()[adr]));
+            }
+        }
+
+        // int exec(VM vm, int ip): dispatch to the function
+        Code code = new Code(cb);
+        code.maxStack = 3;
+        code.maxLocals = 3;
+        int[] keys = new int[entries.size()];
+        Label[] labels = new Label[entries.size()];
+        int k = 0;
+        for (int adr : entries.keySet()) {
+            keys[k] = adr;
+            labels[k] = new Label();
+            k++;
+        }
+        Label dflt = new Label();
+        code.iload(2);
+        code.lookupswitch(dflt, keys, labels);
+        k = 0;
+        for (Entry<Integer,String> entry : entries.entrySet()) {
+            code.label(labels[k++]);
+            code.op(ALOAD, 0);
+            code.op(ALOAD, 1);
+            code.iload(2);
+            code.invoke(INVOKEVIRTUAL, PROGRAM_CLASS, entry.getValue(), "(Lgemi/bcomp/vm/VM;I)I");
+            code.op(IRETURN);
+        }
+        // not an entry point
+        code.label(dflt);
+        code.iload(2);
+        code.op(IRETURN);
+        cb.method(ACC_PUBLIC, "exec", "(Lgemi/bcomp/vm/VM;I)I", code);
+        return cb.toBytes();
+    }
+
+    /**
+     * Writes the jar file with the translated program and the memory
+     * image. The jar is preceded by a shell script, so that it can be run
+     * directly.
+     */
+    public void output(OutputStream out, String classPath) throws Exception {
+        out.write("#!/bin/sh\nexec java -jar \"$0\" \"$@\"\n".getBytes("UTF-8"));
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.put(Attributes.Name.MAIN_CLASS, "gemi.bcomp.aot.Runner");
+        if (classPath != null) attributes.put(Attributes.Name.CLASS_PATH, classPath);
+        byte[] program = translate();
+        JarOutputStream jar = new JarOutputStream(out, manifest);
+        jar.putNextEntry(new JarEntry(PROGRAM_CLASS+".class"));
+        jar.write(program);
+        jar.closeEntry();
+        jar.putNextEntry(new JarEntry(IMAGE));
+        image(jar);
+        jar.closeEntry();
+        jar.finish();
+    }
+
+    /**
+     * Writes the memory image read by <code>Runner</code>: memsize,
+     * data, the entry point, the code words and the entry points of the
+     * translated code, which are known after <code>translate</code>.
+     */
+    public void image(OutputStream out) throws IOException {
+        DataOutputStream image = new DataOutputStream(out);
+        image.writeInt(exe.memsize);
+        image.writeInt(exe.data);
+        image.writeInt(exe.entry);
+        image.writeInt(exe.n);
+        for (int i = 0; i < exe.n; i++) image.writeInt(exe.text()[i]);
+        image.writeInt(entries.size());
+        for (int adr : entries.keySet()) image.writeInt(adr);
+        image.flush();
+    }
+
+    public static void warning(String msg) {
+        System.err.println("b-aot: warning: "+msg);
+    }
+
+    public static void error(String msg) {
+        System.err.println("b-aot: error: "+msg);
+        System.exit(1);
+    }
+
+    public static void main(String[] args) {
+        String filename = null;
+        String outname = null;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--help") || args[i].equals("-h")) {
+                System.out.println("Usage: b-aot [-o FILE] FILE");
+                System.exit(0);
+            }
+            else if (args[i].startsWith("-o")) {
+                if (args[i].length() > 2)
+                    outname = args[i].substring(2);
+                else if (i < args.length-1)
+                    outname = args[++i];
+                else
+                    error("missing filename after -o");
+            }
+            else if (args[i].startsWith("-")) {
+                warning("unknown option '"+args[i]+"'");
+            }
+            else if (filename == null) {
+                filename = args[i];
+            }
+            else {
+                warning("unknown option '"+args[i]+"'");
+            }
+        }
+
+        if (filename == null) error("no input file");
+        if (outname == null) outname = filename+".jar";
+
+        Executable exe = null;
+        try {
+            exe = Executable.load(filename);
+        }
+        catch (IllegalArgumentException e) {
+            error(e.getMessage());
+        }
+        catch (Exception e) {
+            error("cannot read executable file "+filename);
+        }
+
+        // the runtime classes are loaded from the jar or directory of this class
+        String classPath = null;
+        try {
+            classPath = AOT.class.getProtectionDomain().getCodeSource().getLocation().toURI().toString();
+        }
+        catch (Exception e) {
+            warning("cannot determine class path of runtime");
+        }
+
+        File outfile = new File(outname);
+        try (OutputStream out = new FileOutputStream(outfile)) {
+            new AOT(exe).output(out, classPath);
+        }
+        catch (Exception e) {
+            outfile.delete();
+            error("cannot write file "+outname);
+        }
+        outfile.setExecutable(true);
+    }
+}
@@ -0,0 +1,63 @@
+package gemi.bcomp.aot;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.List;
+
+import gemi.bcomp.vm.Compiled;
+import gemi.bcomp.vm.VM;
+
+/**
+ * Runs a program translated by <code>AOT</code> from its jar file.
+ */
+public class Runner {
+
+    public VM vm = null;
+    public int entry = 0;
+
+    /**
+     * Loads the memory image written by <code>AOT.image</code> into a
+     * new VM with the translated <code>program</code> installed.
+     */
+    public void load(InputStream in, Compiled program) throws IOException {
+        DataInputStream image = new DataInputStream(new BufferedInputStream(in));
+        int memsize = image.readInt();
+        int data = image.readInt();
+        entry = image.readInt();
+        int n = image.readInt();
+        int[] mem = new int[Math.min(memsize, Math.max(n, data))];
+        for (int i = 0; i < n; i++) mem[i] = image.readInt();
+        int[] entries = new int[image.readInt()];
+        for (int i = 0; i < entries.length; i++) entries[i] = image.readInt();
+
+        vm = new VM(mem, memsize, data);
+        vm.predecode(n);
+        vm.install(program, entries);
+    }
+
+    public static void error(String msg) {
+        System.err.println("b-aot: error: "+msg);
+        System.exit(1);
+    }
+
+    public static void main(String[] args) {
+        List<String> argv = new LinkedList<>();
+        for (String arg : args) argv.add(arg);
+
+        Runner runner = new Runner();
+        try (InputStream in = Runner.class.getClassLoader().getResourceAsStream(AOT.IMAGE)) {
+            if (in == null) error("no program image");
+            Compiled program = (Compiled)Class.forName(AOT.PROGRAM_CLASS.replace('/', '.')).getDeclaredConstructor().newInstance();
+            runner.load(in, program);
+            runner.vm.argv(argv);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            error("cannot load program");
+        }
+        VM.exit(runner.vm, runner.vm.run(runner.entry));
+    }
+}
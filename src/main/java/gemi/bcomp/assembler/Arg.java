@@ -15,7 +15,10 @@ public class Arg {
         NOT_SPECIFIED
     }
     
+    private final static String[] REGISTERS = {"SP", "FP", "R0", "R1"};
+    
     public ArgType type = ArgType.UNKNOWN;
+    // the operand as written, null if built by the factory methods
     public String arg = null;
     public int literal = 0;
     public int reg = 0;
@@ -27,6 +30,38 @@ public class Arg {
         this.arg = "unspecified";
     }
     
+    private Arg(ArgType type) {
+        this.type = type;
+    }
+    
+    public static Arg register(int reg) {
+        Arg a = new Arg(ArgType.REGISTER);
+        a.reg = reg;
+        return a;
+    }
+    
+    /**
+     * The operand <code>[reg+offset]</code>.
+     */
+    public static Arg indirect(int reg, int offset) {
+        Arg a = new Arg(ArgType.REGISTER_INDIRECT);
+        a.reg = reg;
+        a.offset = offset;
+        return a;
+    }
+    
+    public static Arg literal(int literal) {
+        Arg a = new Arg(ArgType.LITERAL);
+        a.literal = literal;
+        return a;
+    }
+    
+    public static Arg label(String label) {
+        Arg a = new Arg(ArgType.ADDRESS_LABEL);
+        a.label = label;
+        return a;
+    }
+    
     public Arg(String arg) {
         this.arg = arg;
         Integer reg = Assembler.registers.get(arg);
@@ -92,8 +127,34 @@ public class Arg {
         return;
     }
     
+    /**
+     * Returns the operand in assembler syntax.
+     */
+    public String text() {
+        if (arg != null) return arg;
+        switch (type) {
+        case REGISTER:
+            return REGISTERS[reg];
+        case REGISTER_INDIRECT:
+            if (offset == 0)
+                return "["+REGISTERS[reg]+"]";
+            else if (offset < 0)
+                return "["+REGISTERS[reg]+"-"+(-offset)+"]";
+            else
+                return "["+REGISTERS[reg]+"+"+offset+"]";
+        case LITERAL:
+            return "#"+literal;
+        case ADDRESS_LABEL:
+            return label;
+        case ADDRESS_LITERAL:
+            return Integer.toString(literal);
+        default:
+            return "";
+        }
+    }
+    
     @Override
     public String toString() {
-        return "'"+arg+"',"+type+",literal="+literal+",reg="+reg+",label="+label+",offset="+offset;
+        return "'"+text()+"',"+type+",literal="+literal+",reg="+reg+",label="+label+",offset="+offset;
     }
 }
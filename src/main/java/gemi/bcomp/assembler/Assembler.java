@@ -9,7 +9,11 @@ import java.util.*;
 import java.util.Map.Entry;
 
 import gemi.bcomp.assembler.Arg.ArgType;
+import gemi.bcomp.assembler.Instr.InstrType;
+import gemi.bcomp.linker.BObject;
 import gemi.bcomp.utilities.ErrorHandler;
+import gemi.bcomp.utilities.IntList;
+import gemi.bcomp.utilities.LineTable;
 
 public class Assembler {
 
@@ -21,18 +25,22 @@ public class Assembler {
 
     private ErrorHandler errorHandler;
     private PrintStream out = null;
+    // whether the object is written in text format
+    public boolean textFormat = false;
     private BufferedReader reader;
-    private int[] text = new int[0xFFFF];
+    private int[] text = new int[1024];
     private int instrPtr = 0;
     private Set<String> externals = new TreeSet<>();
     private Set<String> exports = new TreeSet<>();
     private Set<String> internals = new TreeSet<>();
-    private Map<String,List<Integer>> externalRef = new TreeMap<>();
-    private Map<String,List<Integer>> internalRef = new TreeMap<>();
+    private Map<String,IntList> externalRef = new TreeMap<>();
+    private Map<String,IntList> internalRef = new TreeMap<>();
     private Map<String,Integer> labels = new TreeMap<>();
     private Map<String,Integer> data = new TreeMap<>();
-    private Map<String,List<Integer>> labelRef = new TreeMap<>();
+    private Map<String,IntList> labelRef = new TreeMap<>();
     private int line = 0;
+    // source lines of the code, if given by .file and .line
+    private LineTable lines = new LineTable();
     
     public Assembler(PrintStream out, ErrorHandler errorHandler) {
         this.out = out;
@@ -43,62 +51,82 @@ public class Assembler {
         reader = new BufferedReader(new InputStreamReader(in));
         String s;
         while ((s = reader.readLine()) != null) {
-            assemble(s);
+            Instr instr = parse(s);
+            if (instr != null) assemble(instr);
             line++;
         }
         output();
     }
     
-    private void output() {
-        for (Entry<String,List<Integer>> e : externalRef.entrySet()) {
-            out.print(".external "+e.getKey()+":");
-            for (int p : e.getValue()) {
-                out.print(" ");
-                out.print(int2hex(p));
-            }
-            out.println();
-        }
-        for (Entry<String,List<Integer>> e : internalRef.entrySet()) {
-            out.print(".internal "+e.getKey()+":");
-            for (int p : e.getValue()) {
-                out.print(" ");
-                out.print(int2hex(p));
-            }
-            out.println();
+    /**
+     * Assembles the instructions generated by the compiler.
+     */
+    public void assemble(List<Instr> instrs) {
+        for (Instr instr : instrs) {
+            assemble(instr);
+            line++;
         }
+    }
+    
+    private void output() throws IOException {
+        if (out == null) return;
+        if (textFormat)
+            object().writeText(out);
+        else
+            object().write(out);
+    }
+    
+    /**
+     * Returns the assembled object.
+     */
+    public BObject object() {
+        BObject obj = new BObject();
+        obj.externalRef.putAll(externalRef);
+        obj.internalRef.putAll(internalRef);
         for (Entry<String,Integer> e : labels.entrySet()) {
             if (exports.contains(e.getKey())) {
-                out.println(".export "+e.getKey()+": "+int2hex(e.getValue()));
+                if (e.getKey().equals("$init"))
+                    obj.init = e.getValue();
+                else
+                    obj.exports.put(e.getKey(), e.getValue());
             }
         }
         for (Entry<String,Integer> e : data.entrySet()) {
-            if (exports.contains(e.getKey()))
-                out.println(".export "+e.getKey());
-            out.println(".data "+e.getKey()+": "+e.getValue());
+            if (exports.contains(e.getKey())) obj.exports.put(e.getKey(), 0);
+            obj.data.put(e.getKey(), e.getValue());
         }
-        out.println(".text "+instrPtr);
-        for (int i = 0; i < instrPtr; i++) {
-            out.println(int2hex(text[i]));
+        if (lines.size() > 0) {
+            obj.file = lines.files.get(0);
+            obj.lines = lines;
         }
+        obj.text = Arrays.copyOf(text, instrPtr);
+        return obj;
     }
     
-    private void assemble(String line) {
+    /**
+     * Returns the line of assembler source, or <code>null</code> if it
+     * is empty or a comment.
+     */
+    private Instr parse(String line) {
         if (line.startsWith(".external ")) {
-            String e = line.substring(".external ".length()).trim();
-            externals.add(e);
+            return new Instr(InstrType.EXTERNAL, line.substring(".external ".length()).trim());
         }
         else if (line.startsWith(".export ")) {
-            String e = line.substring(".export ".length()).trim();
-            exports.add(e);
+            return new Instr(InstrType.EXPORT, line.substring(".export ".length()).trim());
         }
         else if (line.startsWith(".internal ")) {
-            String e = line.substring(".internal ".length()).trim();
-            internals.add(e);
+            return new Instr(InstrType.INTERNAL, line.substring(".internal ".length()).trim());
         }
         else if (line.startsWith(".data ")) {
             String e = line.substring(".data ".length()).trim();
             String parts[] = e.split("\\s+");
-            data.put(parts[0], string2int(parts[1]));
+            return new Instr(InstrType.DATA, parts[0], string2int(parts[1]));
+        }
+        else if (line.startsWith(".file ")) {
+            return new Instr(InstrType.FILE, line.substring(".file ".length()).trim());
+        }
+        else if (line.startsWith(".line ")) {
+            return new Instr(InstrType.LINE, null, string2int(line.substring(".line ".length()).trim()));
         }
         else if (line.startsWith(".text")) {
             // code
@@ -109,38 +137,73 @@ public class Assembler {
         else if (line.startsWith(" ")) {
             // instruction
             line = line.trim();
-            if (line.length() == 0 || line.startsWith("//")) return;
+            if (line.length() == 0 || line.startsWith("//")) return null;
             int i = line.indexOf(" ");
             if (i < 0) {
-                instr(line);
+                return new Instr(line, null, null);
             }
             else {
                 String op = line.substring(0, i).trim();
                 String[] args = line.substring(i+1).trim().split("[ ]*,[ ]*");
-                instr(op, args);
+                return new Instr(op, new Arg(args[0]), (args.length > 1)?new Arg(args[1]):null);
             }
         }
         else {
             line = line.trim();
             if (line.endsWith(":")) {
                 // label:
-                String label = line.substring(0, line.length()-1);
-                addLabel(label, instrPtr);
-                List<Integer> refs = labelRef.get(label);
-                if (refs != null) {
-                    for (int ref : refs) {
-                        int offset = instrPtr-ref-1;
-                        text[ref] = addOffset(text[ref], offset);
-                    }
-                    refs.clear();
+                return new Instr(InstrType.LABEL, line.substring(0, line.length()-1));
+            }
+        }
+        return null;
+    }
+    
+    private void assemble(Instr instr) {
+        switch (instr.type) {
+        case EXTERNAL:
+            externals.add(instr.name);
+            break;
+        case EXPORT:
+            exports.add(instr.name);
+            break;
+        case INTERNAL:
+            internals.add(instr.name);
+            break;
+        case DATA:
+            data.put(instr.name, instr.value);
+            break;
+        case FILE:
+            lines.files.add(instr.name);
+            break;
+        case LINE:
+            if (lines.files.isEmpty())
+                error(this.line, ".line without .file");
+            else
+                lines.add(instrPtr, 0, instr.value);
+            break;
+        case LABEL:
+            String label = instr.name;
+            addLabel(label, instrPtr);
+            IntList refs = labelRef.get(label);
+            if (refs != null) {
+                for (int i = 0; i < refs.size(); i++) {
+                    int ref = refs.get(i);
+                    int offset = instrPtr-ref-1;
+                    text[ref] = addOffset(text[ref], offset);
                 }
+                refs.clear();
             }
+            break;
+        case INSTRUCTION:
+            instr(instr.name, instr.arg1, instr.arg2);
+            break;
+        default:
+            // .text and comments
+            break;
         }
     }
     
-    private void instr(String op, String ... args) {
-        Arg arg1 = (args.length > 0)?new Arg(args[0]):new Arg();
-        Arg arg2 = (args.length > 1)?new Arg(args[1]):new Arg();
+    private void instr(String op, Arg arg1, Arg arg2) {
         int instr = 0;
         switch (op) {
         case "NOP":            
@@ -378,7 +441,7 @@ public class Assembler {
                 instr = addOffset(instr, lit);
             }
             else {
-                error(line, "instruction MOV "+arg1.arg+","+arg2.arg+" not supported");
+                error(line, "instruction MOV "+arg1.text()+","+arg2.text()+" not supported");
             }
         }
         else if (arg1.type == ArgType.REGISTER && arg2.type == ArgType.REGISTER) {
@@ -389,7 +452,7 @@ public class Assembler {
         else if (arg1.type == ArgType.ADDRESS_LITERAL && arg2.type == ArgType.REGISTER) {
             // MOV adr,R0
             if (arg2.reg != R0) {
-                error(line, "instruction MOV "+arg1.arg+","+arg2.arg+" not supported");
+                error(line, "instruction MOV "+arg1.text()+","+arg2.text()+" not supported");
             }
             else {
                 instr = addOpcode(instr, MOV_A0);
@@ -400,7 +463,7 @@ public class Assembler {
         else if (arg1.type == ArgType.ADDRESS_LABEL && arg2.type == ArgType.REGISTER) {
             // MOV name,R0
             if (arg2.reg != R0) {
-                error(line, "instruction MOV "+arg1.arg+","+arg2.arg+" not supported");
+                error(line, "instruction MOV "+arg1.text()+","+arg2.text()+" not supported");
             }
             else {
                 instr = addOpcode(instr, MOV_A0);
@@ -410,7 +473,7 @@ public class Assembler {
         else if (arg1.type == ArgType.REGISTER && arg2.type == ArgType.ADDRESS_LITERAL) {
             // MOV R0,adr
             if (arg1.reg != R0) {
-                error(line, "instruction MOV "+arg1.arg+","+arg2.arg+" not supported");
+                error(line, "instruction MOV "+arg1.text()+","+arg2.text()+" not supported");
             }
             else {
                 instr = addOpcode(instr, MOV_0A);
@@ -421,7 +484,7 @@ public class Assembler {
         else if (arg1.type == ArgType.REGISTER && arg2.type == ArgType.ADDRESS_LABEL) {
             // MOV R0,name
             if (arg1.reg != R0) {
-                error(line, "instruction MOV "+arg1.arg+","+arg2.arg+" not supported");
+                error(line, "instruction MOV "+arg1.text()+","+arg2.text()+" not supported");
             }
             else {
                 instr = addOpcode(instr, MOV_0A);
@@ -450,7 +513,7 @@ public class Assembler {
             instr = addLit(instr, arg1.offset);
         }
         else {
-            error(line, "instruction MOV "+arg1.arg+","+arg2.arg+" not supported");
+            error(line, "instruction MOV "+arg1.text()+","+arg2.text()+" not supported");
         }
         return instr;
     }
@@ -475,6 +538,7 @@ public class Assembler {
     }
 
     private void addInstr(int instr) {
+        if (instrPtr == text.length) text = Arrays.copyOf(text, 2*instrPtr);
         text[instrPtr] = instr;
         instrPtr++;
     }
@@ -487,18 +551,18 @@ public class Assembler {
     }
     
     private void addExternalRef(String name, int instrPtr) {
-        List<Integer> list = externalRef.get(name);
+        IntList list = externalRef.get(name);
         if (list == null) {
-            list = new LinkedList<>();
+            list = new IntList();
             externalRef.put(name, list);
         }
         list.add(instrPtr);
     }
     
     private void addInternalRef(String name, int instrPtr) {
-        List<Integer> list = internalRef.get(name);
+        IntList list = internalRef.get(name);
         if (list == null) {
-            list = new LinkedList<>();
+            list = new IntList();
             internalRef.put(name, list);
         }
         list.add(instrPtr);
@@ -511,9 +575,9 @@ public class Assembler {
     }
 
     private void addLabelRef(String name, int IP) {
-        List<Integer> list = labelRef.get(name);
+        IntList list = labelRef.get(name);
         if (list == null) {
-            list = new LinkedList<>();
+            list = new IntList();
             labelRef.put(name, list);
         }
         list.add(IP);
@@ -525,8 +589,8 @@ public class Assembler {
 
     public void illegalOperands(int line, String op, Arg arg1, Arg arg2) {
         String instr = op;
-        if (arg1.type != NOT_SPECIFIED) instr += " "+arg1.arg; 
-        if (arg2.type != NOT_SPECIFIED) instr += ","+arg2.arg; 
+        if (arg1.type != NOT_SPECIFIED) instr += " "+arg1.text(); 
+        if (arg2.type != NOT_SPECIFIED) instr += ","+arg2.text(); 
         errorHandler.error(line, 0, "illegal operands: "+instr);
     }
 
@@ -549,10 +613,11 @@ public class Assembler {
     public static void main(String[] args) {
         String filename = null;
         String outname = null;
+        boolean textFormat = false;
 
         for (int i = 0; i < args.length; i++) {
             if (args[i].equals("--help") || args[i].equals("-h")) {
-                System.out.println("Usage: b-as [-o FILE] FILE");
+                System.out.println("Usage: b-as [-t] [-o FILE] FILE");
                 System.exit(0);
             }
             else if (args[i].startsWith("-o")) {
@@ -563,6 +628,9 @@ public class Assembler {
                 else
                     error("missing filename after -o");
             }
+            else if (args[i].equals("-t")) {
+                textFormat = true;
+            }
             else if (args[i].startsWith("-")) {
                 warning("unknown option '"+args[i]+"'");
             }
@@ -584,6 +652,7 @@ public class Assembler {
             PrintStream out = new PrintStream(outname);
             ErrorHandler errorHandler = new ErrorHandler(filename, System.out);
             Assembler assembler = new Assembler(out, errorHandler);
+            assembler.textFormat = textFormat;
             assembler.assemble(in);            
             out.close();
             in.close();
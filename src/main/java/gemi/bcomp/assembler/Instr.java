@@ -0,0 +1,87 @@
+package gemi.bcomp.assembler;
+
+/**
+ * A line of assembler source: a directive, a label, an instruction or
+ * a comment. The compiler hands its code to the assembler as a list of
+ * these, and <code>toString</code> gives the line as text.
+ */
+public class Instr {
+
+    public enum InstrType {
+        EXTERNAL,
+        EXPORT,
+        INTERNAL,
+        DATA,
+        FILE,
+        LINE,
+        TEXT,
+        LABEL,
+        INSTRUCTION,
+        COMMENT
+    }
+
+    private final static Arg NONE = new Arg();
+
+    public InstrType type;
+    // the operation, the name of a symbol, file or label, or the comment
+    public String name;
+    public Arg arg1 = NONE;
+    public Arg arg2 = NONE;
+    // the size of data, or the line number
+    public int value = 0;
+
+    public Instr(InstrType type, String name) {
+        this.type = type;
+        this.name = name;
+    }
+
+    public Instr(InstrType type, String name, int value) {
+        this.type = type;
+        this.name = name;
+        this.value = value;
+    }
+
+    /**
+     * An instruction with up to two operands.
+     */
+    public Instr(String op, Arg arg1, Arg arg2) {
+        this.type = InstrType.INSTRUCTION;
+        this.name = op;
+        if (arg1 != null) this.arg1 = arg1;
+        if (arg2 != null) this.arg2 = arg2;
+    }
+
+    @Override
+    public String toString() {
+        switch (type) {
+        case EXTERNAL:
+            return ".external "+name;
+        case EXPORT:
+            return ".export "+name;
+        case INTERNAL:
+            return ".internal "+name;
+        case DATA:
+            return ".data "+name+" "+value;
+        case FILE:
+            return ".file "+name;
+        case LINE:
+            return ".line "+value;
+        case TEXT:
+            return ".text";
+        case LABEL:
+            return name+":";
+        case COMMENT:
+            return String.format("%16s// %s", "", name);
+        default:
+            StringBuilder s = new StringBuilder(String.format("%16s%-5s", "", name));
+            if (arg1.type != Arg.ArgType.NOT_SPECIFIED) {
+                s.append(arg1.text());
+                if (arg2.type != Arg.ArgType.NOT_SPECIFIED) {
+                    s.append(",");
+                    s.append(arg2.text());
+                }
+            }
+            return s.toString();
+        }
+    }
+}
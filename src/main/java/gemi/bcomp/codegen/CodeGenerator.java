@@ -8,6 +8,10 @@ import java.io.PrintStream;
 import java.util.*;
 import java.util.Map.Entry;
 
+import gemi.bcomp.assembler.Arg;
+import gemi.bcomp.assembler.Assembler;
+import gemi.bcomp.assembler.Instr;
+import gemi.bcomp.assembler.Instr.InstrType;
 import gemi.bcomp.parser.*;
 import gemi.bcomp.parser.Binding.BindingType;
 import gemi.bcomp.scanner.Token;
@@ -16,65 +20,94 @@ import gemi.bcomp.utilities.ErrorHandler;
 
 public class CodeGenerator {
     
-    private StringBuilder code = new StringBuilder();
-    private Set<String> exports = new TreeSet<>();
-    private Set<String> externals = new TreeSet<>();
-    private Set<String> internals = new TreeSet<>();
-    private Map<String,Integer> data = new TreeMap<>();
+    // code of the $init function and of the other functions
+    private List<Instr> initCode = new ArrayList<>();
+    private List<Instr> functionCode = new ArrayList<>();
+    // where instructions are added
+    private List<Instr> code = initCode;
+    private Set<String> names = new HashSet<>();
+    // symbols, sorted for output
+    private Set<String> exports = new HashSet<>();
+    private Set<String> externals = new HashSet<>();
+    private Set<String> internals = new HashSet<>();
+    private Map<String,Integer> data = new HashMap<>();
     private Map<String,Label> labels = new HashMap<>();
     private int label = 1;
+    // whether .line directives are generated for the source file
+    public boolean debug = false;
+    public String filename = null;
+    private int line = -1;
 
-    private String sp   = "SP";
-    private String fp   = "FP";
-    private String acc  = "R0";
-    private String reg1 = "R1";
+    private Arg sp   = Arg.register(Assembler.SP);
+    private Arg fp   = Arg.register(Assembler.FP);
+    private Arg acc  = Arg.register(Assembler.R0);
+    private Arg reg1 = Arg.register(Assembler.R1);
     
     private ErrorHandler errorHandler;
+    // errors found by the code generator
+    public int errorCount = 0;
     
     public CodeGenerator(ErrorHandler errorHandler) {
         this.errorHandler = errorHandler;
+        label("$init");
+        exports.add("$init");
     }
     
-    public void outputCode(PrintStream out) {
-        out.println(".text");
-        out.print(code);
-    }
-
-    public void outputSymbols(PrintStream out) {
-        for (String external : externals) {
-            out.println(".external "+external);
+    /**
+     * Returns the directives for the symbols followed by the code.
+     */
+    public List<Instr> instructions() {
+        List<Instr> instrs = new ArrayList<>(initCode.size()+functionCode.size()+exports.size()+externals.size()+data.size()+8);
+        if (debug) instrs.add(new Instr(InstrType.FILE, filename));
+        for (String external : new TreeSet<>(externals)) {
+            instrs.add(new Instr(InstrType.EXTERNAL, external));
         }
-        for (String export : exports) {
-            out.println(".export "+export);
+        for (String export : new TreeSet<>(exports)) {
+            instrs.add(new Instr(InstrType.EXPORT, export));
         }
-        for (String internal : internals) {
-            out.println(".internal "+internal);
+        for (String internal : new TreeSet<>(internals)) {
+            instrs.add(new Instr(InstrType.INTERNAL, internal));
         }
-        for (Entry<String,Integer> entry : data.entrySet()) {
-            out.println(".data "+entry.getKey()+" "+entry.getValue());
+        for (Entry<String,Integer> entry : new TreeMap<>(data).entrySet()) {
+            instrs.add(new Instr(InstrType.DATA, entry.getKey(), entry.getValue()));
+        }
+        instrs.add(new Instr(InstrType.TEXT, null));
+        instrs.addAll(initCode);
+        instrs.add(new Instr("RET", null, null));
+        instrs.addAll(functionCode);
+        return instrs;
+    }
+    
+    /**
+     * Writes the assembler source.
+     */
+    public void output(PrintStream out) {
+        for (Instr instr : instructions()) {
+            out.println(instr);
         }
     }
     
     public void definitions(List<Definition> definitions) {
-        Set<String> names = new HashSet<>();
-        label("$init");
-        exports.add("$init");
         for (Definition definition : definitions) {
-            if (!definition.isFunction) {
-                if (names.contains(definition.name))
-                    error(definition.line, definition.col, "duplicate definition: "+definition.name);
-                names.add(definition.name);
-                init(definition);
-            }
+            definition(definition);
         }
-        instr("RET");
-        for (Definition definition : definitions) {
-            if (definition.isFunction) {
-                if (names.contains(definition.name))
-                    error(definition.line, definition.col, "duplicate definition: "+definition.name);
-                names.add(definition.name);
-                function(definition);
-            }
+    }
+
+    /**
+     * Generates the code of a function, or the code in
+     * <code>$init</code> that initializes a variable.
+     */
+    public void definition(Definition definition) {
+        if (names.contains(definition.name))
+            error(definition.line, definition.col, "duplicate definition: "+definition.name);
+        names.add(definition.name);
+        if (definition.isFunction) {
+            code = functionCode;
+            function(definition);
+        }
+        else {
+            code = initCode;
+            init(definition);
         }
     }
     
@@ -113,13 +146,11 @@ public class CodeGenerator {
             instr("LAD", definition.name, acc);
             instr("MOV", acc, reg1);
             // initialize string
-            int n = 0;
-            for (Token ival : definition.ivals) {
-                movNumber(ival.number, acc);
+            for (int n = 0; n < definition.string.length; n++) {
+                movNumber(definition.string[n], acc);
                 instr("MOV", acc, ind(reg1, n));
-                n++;
             }
-            data.put(definition.name, definition.ivals.size());
+            data.put(definition.name, definition.string.length);
         }
         else {
             int alloc = 1;
@@ -163,10 +194,12 @@ public class CodeGenerator {
         labels.clear();
         exports.add(definition.name);
         label(definition.name);
+        if (debug) line(definition.line);
         Bindings bindings = new Bindings(null);
         int offset = 3;
-        for (String formal : definition.formals) {
-            if (!bindings.bind(formal, BindingType.FORMAL, offset))
+        for (int i = 0; i < definition.formals.size(); i++) {
+            String formal = definition.formals.get(i);
+            if (!bindings.bind(definition.formalIds.get(i), formal, BindingType.FORMAL, offset))
                 error(definition.line, definition.col, "duplicate declaration: "+formal);
             offset++;
         }
@@ -185,23 +218,24 @@ public class CodeGenerator {
     }
 
     private void statement(Statement statement, Bindings bindings) {
+        if (debug) line(statement.line);
         switch (statement.type) {
         case AUTO:
             // auto name [ival], ... ;
             for (Expr expr : statement.exprs) {
-                if(!bindings.bind(expr.name, BindingType.AUTO, bindings.offset))
+                if(!bindings.bind(expr.id, expr.name, BindingType.AUTO, bindings.offset))
                     error(expr.line, expr.col, "duplicate declaration: "+expr.name);
                 bindings.offset--;
                 if (expr.expr1 != null) {
                     rvalue(expr.expr1, bindings);
-                    instr("MOV", acc, ind(fp+bindings.lookupShallow(expr.name).offset));
+                    instr("MOV", acc, ind(fp, bindings.lookupShallow(expr.id).offset));
                 }
             }
             break;
         case EXTRN:
             // extrn name, ... ;
             for (Expr expr : statement.exprs) {
-                if (!bindings.bind(expr.name, BindingType.EXTERNAL, 0))
+                if (!bindings.bind(expr.id, expr.name, BindingType.EXTERNAL, 0))
                     error(expr.line, expr.col, "duplicate declaration: "+expr.name);
                 externals.add(expr.name);
             }
@@ -253,9 +287,9 @@ public class CodeGenerator {
             // while ( expr ) statement
             String startLabel = L(label++);
             String endLabel = L(label++);
-            Expr condition = statement.exprs.get(0);
             label(startLabel);
-            rvalue(condition, bindings, null, endLabel);
+            // no condition if it is always true
+            if (statement.exprs != null) rvalue(statement.exprs.get(0), bindings, null, endLabel);
             String oldBreakLabel = bindings.breakLabel;
             bindings.breakLabel = endLabel;
             if (statement.statements != null) for (Statement st: statement.statements) {
@@ -323,9 +357,11 @@ public class CodeGenerator {
             break;
         case GOTO:
             // goto label ;
-            Binding binding = bindings.lookupDeep(statement.name);
+            Binding binding = bindings.lookupDeep(statement.id);
             if (binding != null) {
-                rvalue(new Expr(ExprType.NAME, statement.name, statement.line, statement.col), bindings);
+                Expr name = new Expr(ExprType.NAME, statement.name, statement.line, statement.col);
+                name.id = statement.id;
+                rvalue(name, bindings);
                 instr("JMP", acc);
             }
             else {
@@ -362,6 +398,8 @@ public class CodeGenerator {
      */
     private void rvalue(Expr expr, Bindings bindings, String trueLabel, String falseLabel) {
         String l0, l1;
+        Binding b;
+        Arg arg;
         switch (expr.op) {
         case AND:
             // expr & expr
@@ -371,10 +409,11 @@ public class CodeGenerator {
             }
             else if (trueLabel != null) {
                 rvalue(expr.expr1, bindings);
-                instr("PUSH", acc);
-                rvalue(expr.expr2, bindings);
-                instr("POP", reg1);
-                instr("AND", reg1, acc);
+                if ((arg = immediate(expr.expr2, bindings)) == null) {
+                    rightOperand(expr.expr2, bindings);
+                    arg = reg1;
+                }
+                instr("AND", arg, acc);
                 branchTrueFalse(trueLabel, null);
             }
             else if (falseLabel != null) {
@@ -383,10 +422,11 @@ public class CodeGenerator {
             }
             else {
                 rvalue(expr.expr1, bindings);
-                instr("PUSH", acc);
-                rvalue(expr.expr2, bindings);
-                instr("POP", reg1);
-                instr("AND", reg1, acc);
+                if ((arg = immediate(expr.expr2, bindings)) == null) {
+                    rightOperand(expr.expr2, bindings);
+                    arg = reg1;
+                }
+                instr("AND", arg, acc);
                 l0 = L(label++);
                 l1 = L(label++);
                 branchTrueFalse(null, l0);
@@ -400,10 +440,10 @@ public class CodeGenerator {
         case APP:
             // expr ( expr , ... )
             comment("function call");
-            if (expr.expr1.op == NAME && bindings.lookupDeep(expr.expr1.name) == null) {
+            if (expr.expr1.op == NAME && bindings.lookupDeep(expr.expr1.id) == null) {
                 // consider undefined function name as external
                 externals.add(expr.expr1.name);
-                bindings.bind(expr.expr1.name, BindingType.EXTERNAL, 0);
+                bindings.bind(expr.expr1.id, expr.expr1.name, BindingType.EXTERNAL, 0);
             }            
             int nargs = expr.args.size();
             while (!expr.args.isEmpty()) {
@@ -429,11 +469,21 @@ public class CodeGenerator {
             break;
         case ASS:
             // expr = expr
-            lvalue(expr.expr1, bindings);
-            instr("PUSH", acc);
-            rvalue(expr.expr2, bindings);
-            instr("POP", reg1);
-            instr("MOV", acc, ind(reg1));
+            b = expr.expr1.op == NAME ? bindings.lookupDeep(expr.expr1.id) : null;
+            if (b != null && (b.type == BindingType.AUTO || b.type == BindingType.FORMAL)) {
+                // store directly into the auto or formal
+                rvalue(expr.expr2, bindings);
+                instr("MOV", acc, ind(fp, b.offset));
+            }
+            else if (b != null && b.type == BindingType.EXTERNAL) {
+                rvalue(expr.expr2, bindings);
+                instr("MOV", acc, Arg.label(b.name));
+            }
+            else {
+                lvalue(expr.expr1, bindings);
+                rightOperand(expr.expr2, bindings);
+                instr("MOV", acc, ind(reg1));
+            }
             branchTrueFalse(trueLabel, falseLabel); 
             break;
         case ASAND:
@@ -515,55 +565,60 @@ public class CodeGenerator {
         case DIV:
             // expr / expr
             rvalue(expr.expr1, bindings);
-            instr("PUSH", acc);
-            rvalue(expr.expr2, bindings);
-            instr("MOV", acc, reg1);
-            instr("POP", acc);
-            instr("DIV", reg1, acc);
+            if ((arg = immediate(expr.expr2, bindings)) == null) {
+                rightOperand(expr.expr2, bindings);
+                instr("EXCH", reg1, acc);
+                arg = reg1;
+            }
+            instr("DIV", arg, acc);
             branchTrueFalse(trueLabel, falseLabel); 
             break;
         case LSHIFT:
             // expr << expr
             rvalue(expr.expr1, bindings);
-            instr("PUSH", acc);
-            rvalue(expr.expr2, bindings);
-            instr("MOV", acc, reg1);
-            instr("POP", acc);
-            instr("LSH", reg1, acc); // acc <- acc << reg1
+            if ((arg = immediate(expr.expr2, bindings)) == null) {
+                rightOperand(expr.expr2, bindings);
+                instr("EXCH", reg1, acc);
+                arg = reg1;
+            }
+            instr("LSH", arg, acc); // acc <- acc << arg
             branchTrueFalse(trueLabel, falseLabel); 
             break;
         case MINUS:
             // expr - expr
             rvalue(expr.expr1, bindings);
-            instr("PUSH", acc);
-            rvalue(expr.expr2, bindings);
-            instr("POP", reg1);
-            instr("EXCH", reg1, acc);
-            instr("SUB", reg1, acc); // acc <- acc - reg1
+            if ((arg = immediate(expr.expr2, bindings)) == null) {
+                rightOperand(expr.expr2, bindings);
+                instr("EXCH", reg1, acc);
+                arg = reg1;
+            }
+            instr("SUB", arg, acc); // acc <- acc - arg
             branchTrueFalse(trueLabel, falseLabel); 
             break;
         case MOD:
             // expr % expr
             rvalue(expr.expr1, bindings);
-            instr("PUSH", acc);
-            rvalue(expr.expr2, bindings);
-            instr("MOV", acc, reg1);
-            instr("POP", acc);
-            instr("MOD", reg1, acc); // acc <- acc % reg1
+            if ((arg = immediate(expr.expr2, bindings)) == null) {
+                rightOperand(expr.expr2, bindings);
+                instr("EXCH", reg1, acc);
+                arg = reg1;
+            }
+            instr("MOD", arg, acc); // acc <- acc % arg
             branchTrueFalse(trueLabel, falseLabel); 
             break;
         case MUL:            
             // expr * expr
             rvalue(expr.expr1, bindings);
-            instr("PUSH", acc);
-            rvalue(expr.expr2, bindings);
-            instr("POP", reg1);
-            instr("MUL", reg1, acc); // acc <- acc * reg1
+            if ((arg = immediate(expr.expr2, bindings)) == null) {
+                rightOperand(expr.expr2, bindings);
+                arg = reg1;
+            }
+            instr("MUL", arg, acc); // acc <- acc * arg
             branchTrueFalse(trueLabel, falseLabel); 
             break;
         case NAME:
             // name
-            Binding b = bindings.lookupDeep(expr.name);
+            b = bindings.lookupDeep(expr.id);
             if (b == null)
                 error(expr.line, expr.col, "name not declared: "+expr.name);                
             else if (b.type == BindingType.AUTO)
@@ -607,10 +662,11 @@ public class CodeGenerator {
             }
             else if (falseLabel != null) {
                 rvalue(expr.expr1, bindings);
-                instr("PUSH", acc);
-                rvalue(expr.expr2, bindings);
-                instr("POP", reg1);
-                instr("OR", reg1, acc);
+                if ((arg = immediate(expr.expr2, bindings)) == null) {
+                    rightOperand(expr.expr2, bindings);
+                    arg = reg1;
+                }
+                instr("OR", arg, acc);
                 branchTrueFalse(null, falseLabel);
             }
             else if (trueLabel != null) {
@@ -619,10 +675,11 @@ public class CodeGenerator {
             }
             else {
                 rvalue(expr.expr1, bindings);
-                instr("PUSH", acc);
-                rvalue(expr.expr2, bindings);
-                instr("POP", reg1);
-                instr("OR", reg1, acc);
+                if ((arg = immediate(expr.expr2, bindings)) == null) {
+                    rightOperand(expr.expr2, bindings);
+                    arg = reg1;
+                }
+                instr("OR", arg, acc);
                 l0 = L(label++);
                 l1 = L(label++);
                 branchTrueFalse(null, l0);
@@ -636,10 +693,11 @@ public class CodeGenerator {
         case PLUS:
             // expr + expr
             rvalue(expr.expr1, bindings);
-            instr("PUSH", acc);
-            rvalue(expr.expr2, bindings);
-            instr("POP", reg1);
-            instr("ADD", reg1, acc); // acc <- acc + reg1
+            if ((arg = immediate(expr.expr2, bindings)) == null) {
+                rightOperand(expr.expr2, bindings);
+                arg = reg1;
+            }
+            instr("ADD", arg, acc); // acc <- acc + arg
             branchTrueFalse(trueLabel, falseLabel); 
             break;
         case REF:
@@ -650,29 +708,32 @@ public class CodeGenerator {
         case RSHIFT:
             // expr >> expr
             rvalue(expr.expr1, bindings);
-            instr("PUSH", acc);
-            rvalue(expr.expr2, bindings);
-            instr("MOV", acc, reg1);
-            instr("POP", acc);
-            instr("RSH", reg1, acc); // acc <- acc >> reg1 
+            if ((arg = immediate(expr.expr2, bindings)) == null) {
+                rightOperand(expr.expr2, bindings);
+                instr("EXCH", reg1, acc);
+                arg = reg1;
+            }
+            instr("RSH", arg, acc); // acc <- acc >> arg
             branchTrueFalse(trueLabel, falseLabel); 
             break;
         case XOR:
             // expr ^ expr
             rvalue(expr.expr1, bindings);
-            instr("PUSH", acc);
-            rvalue(expr.expr2, bindings);
-            instr("POP", reg1);
-            instr("XOR", reg1, acc); // acc <- acc ^ reg1
+            if ((arg = immediate(expr.expr2, bindings)) == null) {
+                rightOperand(expr.expr2, bindings);
+                arg = reg1;
+            }
+            instr("XOR", arg, acc); // acc <- acc ^ arg
             branchTrueFalse(trueLabel, falseLabel); 
             break;
         case EQUALS:
             // expr == expr
             rvalue(expr.expr1, bindings);
-            instr("PUSH", acc);
-            rvalue(expr.expr2, bindings);
-            instr("POP", reg1);
-            instr("XOR", reg1, acc);
+            if ((arg = immediate(expr.expr2, bindings)) == null) {
+                rightOperand(expr.expr2, bindings);
+                arg = reg1;
+            }
+            instr("XOR", arg, acc);
             if (!branchTrueFalse(falseLabel, trueLabel)) {
                 l0 = L(label++);
                 l1 = L(label++);
@@ -687,10 +748,11 @@ public class CodeGenerator {
         case NEQUALS:
             // expr != expr
             rvalue(expr.expr1, bindings);
-            instr("PUSH", acc);
-            rvalue(expr.expr2, bindings);
-            instr("POP", reg1);
-            instr("XOR", reg1, acc);
+            if ((arg = immediate(expr.expr2, bindings)) == null) {
+                rightOperand(expr.expr2, bindings);
+                arg = reg1;
+            }
+            instr("XOR", arg, acc);
             if (!branchTrueFalse(trueLabel, falseLabel)) {
                 l0 = L(label++);
                 l1 = L(label++);
@@ -704,11 +766,7 @@ public class CodeGenerator {
             break;
         case LT:
             // expr < expr
-            rvalue(expr.expr1, bindings);
-            instr("PUSH", acc);
-            rvalue(expr.expr2, bindings);
-            instr("POP", reg1);
-            instr("SUB", reg1, acc);
+            compare(expr, bindings);
             if (trueLabel != null && falseLabel != null) {
                 instr("BPS", trueLabel);
                 instr("JRL", falseLabel);
@@ -733,11 +791,7 @@ public class CodeGenerator {
             break;
         case LE:
             // expr <= expr
-            rvalue(expr.expr1, bindings);
-            instr("PUSH", acc);
-            rvalue(expr.expr2, bindings);
-            instr("POP", reg1);
-            instr("SUB", reg1, acc);
+            compare(expr, bindings);
             if (trueLabel != null && falseLabel != null) {
                 instr("BPS", trueLabel);
                 instr("BNE", trueLabel);
@@ -764,11 +818,7 @@ public class CodeGenerator {
             break;
         case GT:
             // expr > expr
-            rvalue(expr.expr1, bindings);
-            instr("PUSH", acc);
-            rvalue(expr.expr2, bindings);
-            instr("POP", reg1);
-            instr("SUB", reg1, acc);
+            compare(expr, bindings);
             if (trueLabel != null && falseLabel != null) {
                 instr("BNG", trueLabel);
                 instr("JRL", falseLabel);
@@ -793,11 +843,7 @@ public class CodeGenerator {
             break;
         case GE:
             // expr >= expr
-            rvalue(expr.expr1, bindings);
-            instr("PUSH", acc);
-            rvalue(expr.expr2, bindings);
-            instr("POP", reg1);
-            instr("SUB", reg1, acc);
+            compare(expr, bindings);
             if (trueLabel != null && falseLabel != null) {
                 instr("BNG", trueLabel);
                 instr("BNE", trueLabel);
@@ -845,11 +891,17 @@ public class CodeGenerator {
             // expr [ expr ]
             comment("indexing: "+expr); 
             rvalue(expr.expr1, bindings);
-            instr("PUSH", acc);
-            rvalue(expr.expr2, bindings);
-            instr("POP", reg1);
-            instr("ADD", reg1, acc);
-            instr("MOV", ind(acc), acc);
+            if (expr.expr2.op == NUMBER && isLiteral(expr.expr2.number)) {
+                instr("MOV", ind(acc, expr.expr2.number), acc);
+            }
+            else {
+                if ((arg = immediate(expr.expr2, bindings)) == null) {
+                    rightOperand(expr.expr2, bindings);
+                    arg = reg1;
+                }
+                instr("ADD", arg, acc);
+                instr("MOV", ind(acc), acc);
+            }
             branchTrueFalse(trueLabel, falseLabel);
             break;
         case POSTDEC:
@@ -900,7 +952,7 @@ public class CodeGenerator {
     private void lvalue(Expr expr, Bindings bindings) {
         switch (expr.op) {
         case NAME:
-            Binding b = bindings.lookupDeep(expr.name);
+            Binding b = bindings.lookupDeep(expr.id);
             if (b == null) {
                 error(expr.line, expr.col, "name not declared: "+expr.name);                
             }
@@ -934,10 +986,12 @@ public class CodeGenerator {
         case INDEX:
             comment("indexing: "+expr); 
             rvalue(expr.expr1, bindings);
-            instr("PUSH", acc);
-            rvalue(expr.expr2, bindings);
-            instr("POP", reg1);
-            instr("ADD", reg1, acc);
+            Arg arg = immediate(expr.expr2, bindings);
+            if (arg == null) {
+                rightOperand(expr.expr2, bindings);
+                arg = reg1;
+            }
+            instr("ADD", arg, acc);
             break;
         default:
             error(expr.line, expr.col, "no lvalue");
@@ -945,9 +999,76 @@ public class CodeGenerator {
         }
     }
     
-    private void movNumber(int n, String reg) {
-        if ((n & 0xFF000000) != 0) {
-            // number does not fit into 24 bits available
+    /**
+     * Returns the operand for an operation on R0 (acc) with the value of
+     * expr, if it is a number that fits into the literal of the
+     * operation, or an auto or formal, which is loaded into R1 (reg1).
+     * Otherwise returns null and generates no code.
+     */
+    private Arg immediate(Expr expr, Bindings bindings) {
+        if (expr.op == NUMBER && isLiteral(expr.number)) {
+            return lit(expr.number);
+        }
+        else if (expr.op == NAME) {
+            Binding b = bindings.lookupDeep(expr.id);
+            if (b != null && (b.type == BindingType.AUTO || b.type == BindingType.FORMAL)) {
+                instr("MOV", ind(fp, b.offset), reg1);
+                return reg1;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves the left operand of a binary operation from R0 (acc) to
+     * R1 (reg1) and leaves the right operand, expr, in R0. The left
+     * operand is only pushed on the stack if the code for expr uses R1,
+     * that is unless expr is a number, string or declared name.
+     */
+    private void rightOperand(Expr expr, Bindings bindings) {
+        boolean leaf = expr.op == NUMBER || expr.op == STRING;
+        if (expr.op == NAME) {
+            Binding b = bindings.lookupDeep(expr.id);
+            leaf = b != null && b.type != BindingType.INTERNAL;
+        }
+        if (leaf) {
+            instr("MOV", acc, reg1);
+            rvalue(expr, bindings);
+        }
+        else {
+            instr("PUSH", acc);
+            rvalue(expr, bindings);
+            instr("POP", reg1);
+        }
+    }
+
+    /**
+     * Leaves the right operand minus the left operand of a comparison
+     * in R0 (acc).
+     */
+    private void compare(Expr expr, Bindings bindings) {
+        rvalue(expr.expr1, bindings);
+        Arg arg = immediate(expr.expr2, bindings);
+        if (arg != null) {
+            instr("SUB", arg, acc);
+            instr("NEG", acc, acc);
+        }
+        else {
+            rightOperand(expr.expr2, bindings);
+            instr("SUB", reg1, acc);
+        }
+    }
+
+    /**
+     * Whether n fits into the 20 bit literal of an operation.
+     */
+    private static boolean isLiteral(int n) {
+        return n >= -0x80000 && n < 0x80000;
+    }
+
+    private void movNumber(int n, Arg reg) {
+        if (n < -0x800000 || n >= 0x800000) {
+            // number does not fit into the 24 bit signed literal
             instr("MOV", lit((n&0xFFFFFF00)>>8), reg);
             instr("LSH", lit(8), reg);
             instr("OR", lit(n&0xFF), reg);
@@ -963,41 +1084,58 @@ public class CodeGenerator {
         return trueLabel != null || falseLabel != null;
     }
     
-    private String ind(String arg) {
-        return "["+arg+"]";
+    private Arg ind(Arg reg) {
+        return Arg.indirect(reg.reg, 0);
     }
 
-    private String ind(String arg, int offset) {
-        if (offset == 0)
-            return "["+arg+"]";
-        else if (offset < 0)
-            return "["+arg+"-"+(-offset)+"]";
-        else
-            return "["+arg+"+"+offset+"]";
+    private Arg ind(Arg reg, int offset) {
+        return Arg.indirect(reg.reg, offset);
     }
 
-    private String lit(int n) {
-        return "#"+n;
+    private Arg lit(int n) {
+        return Arg.literal(n);
     }
 
     private void comment(Object text) {
-        code.append(String.format("%16s// %s\n", "", text.toString()));
+        code.add(new Instr(InstrType.COMMENT, text.toString()));
     }
     
-    private void instr(String ins, String ... args) {
-        code.append(String.format("%16s%-5s", "", ins));
-        if (args.length > 0) {
-            code.append(args[0]);
-            if (args.length > 1) {
-                code.append(",");
-                code.append(args[1]);
-            }
+    private void instr(String ins) {
+        code.add(new Instr(ins, null, null));
+    }
+    
+    private void instr(String ins, Arg arg) {
+        code.add(new Instr(ins, arg, null));
+    }
+    
+    private void instr(String ins, Arg arg1, Arg arg2) {
+        code.add(new Instr(ins, arg1, arg2));
+    }
+    
+    /**
+     * An instruction with a label or name as first operand.
+     */
+    private void instr(String ins, String label) {
+        code.add(new Instr(ins, Arg.label(label), null));
+    }
+    
+    private void instr(String ins, String label, Arg arg2) {
+        code.add(new Instr(ins, Arg.label(label), arg2));
+    }
+
+    /**
+     * Marks the following code as generated for source line
+     * <code>line</code> (counted from 0).
+     */
+    private void line(int line) {
+        if (line != this.line) {
+            code.add(new Instr(InstrType.LINE, null, line+1));
+            this.line = line;
         }
-        code.append("\n");
     }
 
     private void label(String label) {
-        code.append(String.format("%s:\n", label));
+        code.add(new Instr(InstrType.LABEL, label));
     }
 
     private String L(int labelno) {
@@ -1013,6 +1151,7 @@ public class CodeGenerator {
     }
     
     private void error(int line, int col, String text) {
+        errorCount++;
         errorHandler.error(line, col, text);
     }
     
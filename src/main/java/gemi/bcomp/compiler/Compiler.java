@@ -1,12 +1,16 @@
 package gemi.bcomp.compiler;
 
-import java.io.FileInputStream;
 import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.List;
 
+import gemi.bcomp.assembler.Assembler;
+import gemi.bcomp.assembler.Instr;
 import gemi.bcomp.codegen.CodeGenerator;
-import gemi.bcomp.parser.Definition;
+import gemi.bcomp.linker.BObject;
 import gemi.bcomp.parser.Parser;
+import gemi.bcomp.parser.Simplifier;
 import gemi.bcomp.scanner.Scanner;
 import gemi.bcomp.utilities.ErrorHandler;
 
@@ -14,17 +18,56 @@ public class Compiler {
 
     private PrintStream out = null;
     private ErrorHandler errorHandler;
+    // whether line numbers are generated
+    public boolean debug = false;
+    // whether the syntax tree is simplified
+    public boolean optimize = true;
+    // whether the parser found errors
+    private boolean syntaxErrors = false;
     
     public Compiler(PrintStream out, ErrorHandler errorHandler) {
         this.out = out;
         this.errorHandler = errorHandler;
     }
     
-    public void compile(List<Definition> definitions) {
+    /**
+     * Parses the source and compiles each definition as soon as it has
+     * been parsed, so that only the syntax tree of one definition is
+     * kept. Each definition is simplified first unless
+     * <code>optimize</code> is false. No code is generated after syntax
+     * errors.
+     * Returns the generated code, which is also written as assembler
+     * source if an output stream is given.
+     */
+    public List<Instr> compile(Parser parser) {
         CodeGenerator codeGenerator = new CodeGenerator(errorHandler);
-        codeGenerator.definitions(definitions);
-        codeGenerator.outputSymbols(out);
-        codeGenerator.outputCode(out);
+        codeGenerator.debug = debug;
+        codeGenerator.filename = errorHandler.filename;
+        Simplifier simplifier = new Simplifier();
+        parser.parse(definition -> {
+            if (errorHandler.errorCount == codeGenerator.errorCount) {
+                if (optimize) simplifier.definition(definition);
+                codeGenerator.definition(definition);
+            }
+        });
+        syntaxErrors = errorHandler.errorCount > codeGenerator.errorCount;
+        List<Instr> code = codeGenerator.instructions();
+        if (out != null) {
+            for (Instr instr : code) out.println(instr);
+        }
+        return code;
+    }
+    
+    /**
+     * Compiles the source and assembles the code in memory.
+     * Returns <code>null</code> after syntax errors.
+     */
+    public BObject object(Parser parser) {
+        List<Instr> code = compile(parser);
+        if (syntaxErrors) return null;
+        Assembler assembler = new Assembler(null, errorHandler);
+        assembler.assemble(code);
+        return assembler.object();
     }
     
     public static void warning(String msg) {
@@ -39,6 +82,9 @@ public class Compiler {
     public static void main(String[] args) throws Exception {
         String filename = null;
         String outname = null;
+        boolean debug = false;
+        boolean optimize = true;
+        boolean object = false;
 
         for (int i = 0; i < args.length; i++) {
             if (args[i].startsWith("-o")) {
@@ -50,9 +96,18 @@ public class Compiler {
                     error("missing filename after -o");
             }
             else if (args[i].equals("--help") || args[i].equals("-h")) {
-                System.out.println("Usage: b-comp [-o FILE] FILE");
+                System.out.println("Usage: b-comp [-c] [-g] [-O0] [-o FILE] FILE");
                 System.exit(0);
             }
+            else if (args[i].equals("-g")) {
+                debug = true;
+            }
+            else if (args[i].equals("-O0")) {
+                optimize = false;
+            }
+            else if (args[i].equals("-c")) {
+                object = true;
+            }
             else if (args[i].startsWith("-")) {
                 warning("unknown option '"+args[i]+"'");
             }
@@ -70,17 +125,27 @@ public class Compiler {
         
         try {
             ErrorHandler errorHandler = new ErrorHandler(filename, System.err);
-            FileInputStream in = new FileInputStream(filename);
-            Scanner scanner = new Scanner(in, errorHandler);
+            Scanner scanner = new Scanner(Files.readAllBytes(Paths.get(filename)), errorHandler);
             Parser parser = new Parser(scanner, errorHandler);
-            List<Definition> definitions = parser.parse();
+            Compiler compiler = new Compiler(null, errorHandler);
+            compiler.debug = debug;
+            compiler.optimize = optimize;
+            BObject obj = null;
+            List<Instr> code = null;
+            if (object)
+                obj = compiler.object(parser);
+            else
+                code = compiler.compile(parser);
             if (errorHandler.errorCount > 0) System.exit(1);
-            if (outname == null) outname = filename.substring(0, filename.length()-"b".length())+"bs";
+            if (outname == null) outname = filename.substring(0, filename.length()-"b".length())+(object?"bo":"bs");
             PrintStream out = new PrintStream(outname);
-            Compiler compiler = new Compiler(out, errorHandler);
-            compiler.compile(definitions);
+            if (object) {
+                obj.write(out);
+            }
+            else {
+                for (Instr instr : code) out.println(instr);
+            }
             out.close();
-            if (errorHandler.errorCount > 0) System.exit(1);
         }
         catch (Exception e) {
             error("cannot open input file '"+filename+"'");
@@ -3,8 +3,7 @@ package gemi.bcomp.disassembler;
 import static gemi.bcomp.assembler.Opcodes.*;
 import static gemi.bcomp.utilities.Utilities.*;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import gemi.bcomp.vm.Executable;
 
 public class Disassembler {
     
@@ -144,23 +143,13 @@ public class Disassembler {
 
         if (filename == null) error("not input file");
         
-        try (BufferedReader reader = new BufferedReader(new FileReader(args[0]))) {
-            int n = 0;
-            String line = null;
-            while ((line = reader.readLine()) != null) {
-                line = line.trim();
-                if (line.startsWith("#")) {
-                    continue;
-                }
-                else if (line.startsWith(".memsize ")) {
-                    // ignore
-                }
-                else if (line.length() == 8) {
-                    System.out.print(int2hex(n)+": ["+line+"] ");
-                    System.out.print(disassemble(hex2int(line)));
-                    System.out.println();
-                    n++;
-                }
+        try {
+            Executable exe = Executable.load(filename);
+            int[] text = exe.text();
+            for (int n = 0; n < exe.n; n++) {
+                System.out.print(int2hex(n)+": ["+int2hex(text[n])+"] ");
+                System.out.print(disassemble(text[n]));
+                System.out.println();
             }
         }
         catch (Exception e) {
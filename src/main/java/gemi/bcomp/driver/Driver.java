@@ -0,0 +1,256 @@
+package gemi.bcomp.driver;
+
+import static gemi.bcomp.utilities.Utilities.string2int;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import gemi.bcomp.assembler.Assembler;
+import gemi.bcomp.compiler.Compiler;
+import gemi.bcomp.linker.BObject;
+import gemi.bcomp.linker.Linker;
+import gemi.bcomp.parser.Parser;
+import gemi.bcomp.scanner.Scanner;
+import gemi.bcomp.utilities.ErrorHandler;
+import gemi.bcomp.vm.Executable;
+import gemi.bcomp.vm.VM;
+
+/**
+ * Compiles, assembles and links source, assembler and object files in
+ * one process, passing the intermediate results in memory, and writes
+ * the executable or runs it directly.
+ * <p>
+ * The files are translated in parallel. The messages for each file are
+ * collected and printed in the order of the files.
+ */
+public class Driver {
+
+    // whether line numbers are generated
+    public boolean debug = false;
+    // whether the syntax tree is simplified
+    public boolean optimize = true;
+    // objects of source and assembler files, or null
+    public ObjectCache cache = null;
+
+    /**
+     * A file translated to an object.
+     */
+    public static class Unit {
+        public String filename;
+        // the object, null if the file has errors
+        public BObject obj = null;
+        public int errorCount = 0;
+        public ByteArrayOutputStream messages = new ByteArrayOutputStream();
+
+        public Unit(String filename) {
+            this.filename = filename;
+        }
+    }
+
+    /**
+     * Translates the files in parallel, with at most as many threads as
+     * there are processors, and returns them in the same order.
+     */
+    public List<Unit> translate(List<String> filenames) throws Exception {
+        int threads = Math.max(1, Math.min(filenames.size(), Runtime.getRuntime().availableProcessors()));
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<ForkJoinTask<Unit>> tasks = new ArrayList<>();
+            for (String filename : filenames) {
+                tasks.add(pool.submit(() -> translate(filename)));
+            }
+            List<Unit> units = new ArrayList<>();
+            for (ForkJoinTask<Unit> task : tasks) {
+                units.add(task.get());
+            }
+            return units;
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Compiles or assembles the file depending on its suffix, or loads
+     * the object file.
+     */
+    public Unit translate(String filename) {
+        Unit unit = new Unit(filename);
+        PrintStream messages = new PrintStream(unit.messages, true);
+        try {
+            byte[] source = Files.readAllBytes(Paths.get(filename));
+            String key = null;
+            if (cache != null && (filename.endsWith(".b") || filename.endsWith(".bs"))) {
+                // the file name is part of the object only with line numbers
+                String options = filename.substring(filename.lastIndexOf('.'))+(optimize?"":" -O0")+(debug?" -g "+filename:"");
+                key = cache.key(source, options);
+                unit.obj = cache.get(key);
+                if (unit.obj != null) return unit;
+            }
+            InputStream in = new ByteArrayInputStream(source);
+            ErrorHandler errorHandler = new ErrorHandler(filename, messages);
+            BObject obj = null;
+            if (filename.endsWith(".b")) {
+                Parser parser = new Parser(new Scanner(source, errorHandler), errorHandler);
+                Compiler compiler = new Compiler(null, errorHandler);
+                compiler.debug = debug;
+                compiler.optimize = optimize;
+                obj = compiler.object(parser);
+            }
+            else if (filename.endsWith(".bs")) {
+                Assembler assembler = new Assembler(null, errorHandler);
+                assembler.assemble(in);
+                obj = assembler.object();
+            }
+            else {
+                obj = BObject.load(in);
+                if (obj == null) throw new IOException();
+            }
+            unit.errorCount = errorHandler.errorCount;
+            if (unit.errorCount == 0) unit.obj = obj;
+            // objects with warnings are not cached, so that the warnings are repeated
+            if (key != null && unit.obj != null && unit.messages.size() == 0) cache.put(key, obj);
+        }
+        catch (Exception e) {
+            messages.println("b-cc: error: cannot read file "+filename);
+            unit.errorCount++;
+        }
+        return unit;
+    }
+
+    public static void error(String msg) {
+        System.err.println("b-cc: error: "+msg);
+        System.exit(1);
+    }
+
+    public static void main(String[] args) {
+        List<String> filenames = new LinkedList<>();
+        List<String> argv = new LinkedList<>();
+        String exefilename = null;
+        int memsize = 1024*1024;
+        String bcompLib = System.getProperty("bcomp.lib");
+        String vmexe = System.getProperty("bcomp.vmexe");
+        String cachedir = System.getProperty("bcomp.cache");
+        boolean binary = false;
+        boolean running = false;
+        boolean compiling = false;
+        Driver driver = new Driver();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--help") || args[i].equals("-h")) {
+                System.out.println("Usage: b-cc [-g] [-O0] [-b] [-C DIR] [-s SIZE] [-o FILE] [-r [-j]] FILE... [-- ARG...]");
+                System.exit(0);
+            }
+            else if (args[i].startsWith("-o")) {
+                if (args[i].length() > 2)
+                    exefilename = args[i].substring(2);
+                else if (i < args.length-1)
+                    exefilename = args[++i];
+                else
+                    error("missing filename after -o");
+            }
+            else if (args[i].startsWith("-C")) {
+                if (args[i].length() > 2)
+                    cachedir = args[i].substring(2);
+                else if (i < args.length-1)
+                    cachedir = args[++i];
+                else
+                    error("missing directory after -C");
+            }
+            else if (args[i].startsWith("-s")) {
+                String arg = args[i].substring(2);
+                if (arg.length() == 0) {
+                    if (i == args.length-1) error("missing argument to option -s");
+                    arg = args[++i];
+                }
+                Integer s = string2int(arg);
+                if (s == null || s < 1)
+                    error("argument to -s must be a positive integer");
+                else
+                    memsize = s*1024*1024;
+            }
+            else if (args[i].equals("-g")) {
+                driver.debug = true;
+            }
+            else if (args[i].equals("-O0")) {
+                driver.optimize = false;
+            }
+            else if (args[i].equals("-b")) {
+                binary = true;
+            }
+            else if (args[i].equals("-r")) {
+                running = true;
+            }
+            else if (args[i].equals("-j")) {
+                compiling = true;
+            }
+            else if (args[i].equals("--")) {
+                for (i++; i < args.length; i++) argv.add(args[i]);
+            }
+            else if (args[i].startsWith("-")) {
+                System.err.println("b-cc: warning: unknown option '"+args[i]+"'");
+            }
+            else {
+                filenames.add(args[i]);
+            }
+        }
+
+        if (filenames.isEmpty()) error("no input files");
+        if (exefilename == null && !running) exefilename = "b.out";
+        if (cachedir != null && cachedir.length() > 0) driver.cache = new ObjectCache(new File(cachedir));
+
+        Linker linker = new Linker(null);
+        linker.memsize = memsize;
+        if (vmexe != null) linker.vmexe = vmexe;
+        linker.binary = binary;
+        if (bcompLib != null) filenames.add(0, bcompLib);
+        List<Unit> units = null;
+        try {
+            units = driver.translate(filenames);
+        }
+        catch (Exception e) {
+            error("cannot translate files");
+        }
+        int errorCount = 0;
+        for (Unit unit : units) {
+            System.err.print(unit.messages.toString());
+            errorCount += unit.errorCount;
+            if (unit.obj != null) linker.objects.add(unit.obj);
+        }
+        if (errorCount > 0) System.exit(1);
+        if (!linker.link()) System.exit(1);
+
+        if (exefilename != null) {
+            File exefile = new File(exefilename);
+            try (PrintStream out = new PrintStream(exefile)) {
+                linker.output(out);
+            }
+            catch (Exception e) {
+                exefile.delete();
+                error("cannot write file "+exefilename);
+            }
+            exefile.setExecutable(true);
+        }
+
+        if (running) {
+            Executable exe = linker.executable();
+            VM vm = new VM(exe.memory(), exe.memsize, exe.data);
+            vm.compiling = compiling;
+            vm.predecode(exe.n);
+            vm.lines = exe.lines();
+            vm.argv(argv);
+            VM.exit(vm, vm.run(exe.entry));
+        }
+    }
+}
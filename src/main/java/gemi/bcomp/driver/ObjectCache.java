@@ -0,0 +1,161 @@
+package gemi.bcomp.driver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.UUID;
+
+import gemi.bcomp.linker.BObject;
+
+/**
+ * A directory of object files, each named by the SHA-256 hash of the
+ * source it was translated from, the options, and the version of the
+ * translator.
+ * <p>
+ * Files are written under a temporary name and then renamed, so that
+ * concurrent builds never see a partial file. A hit sets the time of
+ * last modification of the file, and when the files take up more than
+ * <code>maxSize</code> bytes, those least recently used are deleted.
+ * Temporary files older than an hour are left over from builds that did
+ * not finish, and are deleted as well.
+ * <p>
+ * The version of the translator includes the id of the build of the
+ * classes, which Maven writes into <code>build.properties</code>, so
+ * that objects are not reused after the translator has been rebuilt.
+ */
+public class ObjectCache {
+
+    public final static String VERSION = "0.9";
+    // the build id, written into the resource when the classes are built
+    private final static String BUILD = "build.properties";
+    // age in milliseconds after which temporary files are left over
+    private final static long TMP_AGE = 60*60*1000;
+
+    public File dir;
+    // maximum total size of the files in bytes
+    public long maxSize = 64L*1024*1024;
+    // VERSION and the build id
+    private String version;
+
+    public ObjectCache(File dir) {
+        this.dir = dir;
+        dir.mkdirs();
+        version = VERSION+" "+build();
+    }
+
+    /**
+     * Returns the id of the build of the classes. Without one, the
+     * objects are only reused within this process.
+     */
+    private static String build() {
+        Properties properties = new Properties();
+        try (InputStream in = ObjectCache.class.getResourceAsStream(BUILD)) {
+            if (in != null) properties.load(in);
+        }
+        catch (IOException e) {}
+        String build = properties.getProperty("build", "");
+        if (build.length() == 0 || build.startsWith("${")) build = UUID.randomUUID().toString();
+        return build;
+    }
+
+    /**
+     * Returns the key of the object translated from <code>source</code>
+     * with <code>options</code>.
+     */
+    public String key(byte[] source, String options) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((version+"\n"+options+"\n").getBytes(StandardCharsets.UTF_8));
+            digest.update(source);
+            StringBuilder s = new StringBuilder();
+            for (byte b : digest.digest()) {
+                s.append(Character.forDigit((b >> 4) & 0xF, 16));
+                s.append(Character.forDigit(b & 0xF, 16));
+            }
+            return s.toString();
+        }
+        catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the cached object, or <code>null</code> if there is none.
+     */
+    public BObject get(String key) {
+        File file = new File(dir, key+".bo");
+        if (!file.exists()) return null;
+        try (InputStream in = new FileInputStream(file)) {
+            BObject obj = BObject.load(in);
+            if (obj != null) file.setLastModified(System.currentTimeMillis());
+            return obj;
+        }
+        catch (Exception e) {
+            // removed by another build
+            return null;
+        }
+    }
+
+    /**
+     * Adds the object, and deletes the least recently used objects if
+     * the cache has become too large.
+     */
+    public void put(String key, BObject obj) {
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(key, ".tmp", dir);
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                obj.write(out);
+            }
+            Files.move(tmp.toPath(), new File(dir, key+".bo").toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (Exception e) {
+            // the cache is only an optimization
+            if (tmp != null) tmp.delete();
+            return;
+        }
+        evict();
+    }
+
+    /**
+     * Deletes the least recently used objects, and temporary files left
+     * by builds that did not finish.
+     */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        File[] tmps = dir.listFiles((d, name) -> name.endsWith(".tmp"));
+        if (tmps != null) {
+            for (File tmp : tmps) {
+                if (now-tmp.lastModified() > TMP_AGE) tmp.delete();
+            }
+        }
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".bo"));
+        if (files == null) return;
+        long size = 0;
+        for (File file : files) size += file.length();
+        if (size <= maxSize) return;
+        long[] used = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            used[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> used[i]));
+        for (int i = 0; i < order.length && size > maxSize; i++) {
+            File file = files[order[i]];
+            long length = file.length();
+            if (file.delete()) size -= length;
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package gemi.bcomp.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal writer for JVM class files.
+ * Classes are written with version 49, so that no stack map frames
+ * are needed and the verifier infers the types itself.
+ */
+public class ClassBuilder {
+
+    // opcodes used by the translator
+    public final static int ICONST_0      = 0x03;
+    public final static int BIPUSH        = 0x10;
+    public final static int SIPUSH        = 0x11;
+    public final static int LDC           = 0x12;
+    public final static int LDC_W         = 0x13;
+    public final static int ILOAD         = 0x15;
+    public final static int ALOAD         = 0x19;
+    public final static int IALOAD        = 0x2E;
+    public final static int ISTORE        = 0x36;
+    public final static int ASTORE        = 0x3A;
+    public final static int IASTORE       = 0x4F;
+    public final static int DUP           = 0x59;
+    public final static int SWAP          = 0x5F;
+    public final static int IADD          = 0x60;
+    public final static int ISUB          = 0x64;
+    public final static int IMUL          = 0x68;
+    public final static int IDIV          = 0x6C;
+    public final static int IREM          = 0x70;
+    public final static int INEG          = 0x74;
+    public final static int ISHL          = 0x78;
+    public final static int ISHR          = 0x7A;
+    public final static int IAND          = 0x7E;
+    public final static int IOR           = 0x80;
+    public final static int IXOR          = 0x82;
+    public final static int IINC          = 0x84;
+    public final static int IFEQ          = 0x99;
+    public final static int IFNE          = 0x9A;
+    public final static int IFLT          = 0x9B;
+    public final static int IFGE          = 0x9C;
+    public final static int IFGT          = 0x9D;
+    public final static int IFLE          = 0x9E;
+    public final static int IF_ICMPLT     = 0xA1;
+    public final static int IF_ICMPGE     = 0xA2;
+    public final static int GOTO          = 0xA7;
+    public final static int LOOKUPSWITCH  = 0xAB;
+    public final static int IRETURN       = 0xAC;
+    public final static int RETURN        = 0xB1;
+    public final static int GETSTATIC     = 0xB2;
+    public final static int GETFIELD      = 0xB4;
+    public final static int PUTFIELD      = 0xB5;
+    public final static int INVOKEVIRTUAL = 0xB6;
+    public final static int INVOKESPECIAL = 0xB7;
+    public final static int ARRAYLENGTH   = 0xBE;
+
+    public final static int ACC_PUBLIC = 0x0001;
+    public final static int ACC_FINAL  = 0x0010;
+    public final static int ACC_SUPER  = 0x0020;
+
+    private ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private DataOutputStream pool = new DataOutputStream(poolBytes);
+    private Map<String,Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private String name;
+    private String superName;
+    private String[] interfaces;
+    private List<byte[]> methods = new ArrayList<>();
+
+    /**
+     * Class names are given in internal form, e.g. <code>java/lang/Object</code>.
+     */
+    public ClassBuilder(String name, String superName, String ... interfaces) {
+        this.name = name;
+        this.superName = superName;
+        this.interfaces = interfaces;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int utf8(String s) {
+        Integer index = poolIndex.get("U"+s);
+        if (index != null) return index;
+        try {
+            pool.writeByte(1);
+            pool.writeUTF(s);
+        } catch (IOException e) {}
+        return add("U"+s, 1);
+    }
+
+    public int integer(int n) {
+        Integer index = poolIndex.get("I"+n);
+        if (index != null) return index;
+        try {
+            pool.writeByte(3);
+            pool.writeInt(n);
+        } catch (IOException e) {}
+        return add("I"+n, 1);
+    }
+
+    public int classRef(String className) {
+        Integer index = poolIndex.get("C"+className);
+        if (index != null) return index;
+        int n = utf8(className);
+        try {
+            pool.writeByte(7);
+            pool.writeShort(n);
+        } catch (IOException e) {}
+        return add("C"+className, 1);
+    }
+
+    public int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(9, owner, name, descriptor);
+    }
+
+    public int methodRef(String owner, String name, String descriptor) {
+        return memberRef(10, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        String key = "M"+tag+owner+"."+name+":"+descriptor;
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+        int c = classRef(owner);
+        int nt = nameAndType(name, descriptor);
+        try {
+            pool.writeByte(tag);
+            pool.writeShort(c);
+            pool.writeShort(nt);
+        } catch (IOException e) {}
+        return add(key, 1);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        String key = "N"+name+":"+descriptor;
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+        int n = utf8(name);
+        int d = utf8(descriptor);
+        try {
+            pool.writeByte(12);
+            pool.writeShort(n);
+            pool.writeShort(d);
+        } catch (IOException e) {}
+        return add(key, 1);
+    }
+
+    private int add(String key, int size) {
+        int index = poolCount;
+        poolIndex.put(key, index);
+        poolCount += size;
+        return index;
+    }
+
+    /**
+     * Adds a method with the given code.
+     */
+    public void method(int access, String name, String descriptor, Code code) {
+        byte[] bytecode = code.toBytes();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            // attributes: Code
+            out.writeShort(1);
+            out.writeShort(utf8("Code"));
+            out.writeInt(12+bytecode.length);
+            out.writeShort(code.maxStack);
+            out.writeShort(code.maxLocals);
+            out.writeInt(bytecode.length);
+            out.write(bytecode);
+            // exception table, attributes
+            out.writeShort(0);
+            out.writeShort(0);
+        } catch (IOException e) {}
+        methods.add(bytes.toByteArray());
+    }
+
+    /**
+     * Adds a public constructor calling the constructor of the superclass.
+     */
+    public void defaultConstructor() {
+        Code code = new Code(this);
+        code.maxStack = 1;
+        code.maxLocals = 1;
+        code.op(ALOAD, 0);
+        code.op(INVOKESPECIAL);
+        code.u2(methodRef(superName, "<init>", "()V"));
+        code.op(RETURN);
+        method(ACC_PUBLIC, "<init>", "()V", code);
+    }
+
+    public byte[] toBytes() {
+        int thisIndex = classRef(name);
+        int superIndex = classRef(superName);
+        int[] interfaceIndices = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaceIndices[i] = classRef(interfaces[i]);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            out.write(poolBytes.toByteArray());
+            out.writeShort(ACC_PUBLIC|ACC_FINAL|ACC_SUPER);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(interfaceIndices.length);
+            for (int i : interfaceIndices) out.writeShort(i);
+            // fields
+            out.writeShort(0);
+            out.writeShort(methods.size());
+            for (byte[] method : methods) out.write(method);
+            // attributes
+            out.writeShort(0);
+        } catch (IOException e) {}
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Bytecode of a method with forward and backward jumps to labels.
+     */
+    public static class Code {
+
+        public int maxStack = 8;
+        public int maxLocals = 1;
+
+        private ClassBuilder cb;
+        private byte[] code = new byte[1024];
+        private int length = 0;
+        // jumps to be patched: position of the offset, position of the
+        // jump instruction, label, width of the offset
+        private List<int[]> fixups = new ArrayList<>();
+        private List<Label> fixupLabels = new ArrayList<>();
+
+        public Code(ClassBuilder cb) {
+            this.cb = cb;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public void op(int op) {
+            u1(op);
+        }
+
+        public void op(int op, int index) {
+            u1(op);
+            u1(index);
+        }
+
+        public void u1(int b) {
+            if (length == code.length) code = java.util.Arrays.copyOf(code, 2*code.length);
+            code[length++] = (byte)b;
+        }
+
+        public void u2(int n) {
+            u1(n >> 8);
+            u1(n);
+        }
+
+        public void u4(int n) {
+            u2(n >> 16);
+            u2(n);
+        }
+
+        /**
+         * Pushes an integer constant.
+         */
+        public void iconst(int n) {
+            if (n >= -1 && n <= 5) {
+                op(ICONST_0+n);
+            }
+            else if (n >= Byte.MIN_VALUE && n <= Byte.MAX_VALUE) {
+                op(BIPUSH, n);
+            }
+            else if (n >= Short.MIN_VALUE && n <= Short.MAX_VALUE) {
+                op(SIPUSH);
+                u2(n);
+            }
+            else {
+                int index = cb.integer(n);
+                if (index < 256) {
+                    op(LDC, index);
+                }
+                else {
+                    op(LDC_W);
+                    u2(index);
+                }
+            }
+        }
+
+        public void iload(int local) {
+            op(ILOAD, local);
+        }
+
+        public void istore(int local) {
+            op(ISTORE, local);
+        }
+
+        public void iinc(int local, int n) {
+            u1(IINC);
+            u1(local);
+            u1(n);
+        }
+
+        public void getfield(String owner, String name, String descriptor) {
+            op(GETFIELD);
+            u2(cb.fieldRef(owner, name, descriptor));
+        }
+
+        public void putfield(String owner, String name, String descriptor) {
+            op(PUTFIELD);
+            u2(cb.fieldRef(owner, name, descriptor));
+        }
+
+        public void getstatic(String owner, String name, String descriptor) {
+            op(GETSTATIC);
+            u2(cb.fieldRef(owner, name, descriptor));
+        }
+
+        public void invoke(int op, String owner, String name, String descriptor) {
+            op(op);
+            u2(cb.methodRef(owner, name, descriptor));
+        }
+
+        /**
+         * Emits a jump instruction to <code>label</code>.
+         */
+        public void jump(int op, Label label) {
+            int pos = length;
+            u1(op);
+            fixup(pos, label, 2);
+            u2(0);
+        }
+
+        /**
+         * Emits a lookupswitch instruction on the integer on the stack.
+         */
+        public void lookupswitch(Label dflt, int[] keys, Label[] labels) {
+            int pos = length;
+            u1(LOOKUPSWITCH);
+            while (length % 4 != 0) u1(0);
+            fixup(pos, dflt, 4);
+            u4(0);
+            u4(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                u4(keys[i]);
+                fixup(pos, labels[i], 4);
+                u4(0);
+            }
+        }
+
+        public void label(Label label) {
+            label.pos = length;
+        }
+
+        private void fixup(int pos, Label label, int width) {
+            fixups.add(new int[] { length, pos, width });
+            fixupLabels.add(label);
+        }
+
+        /**
+         * Returns the bytecode with all jumps resolved.
+         * Throws <code>IllegalStateException</code> for undefined labels
+         * or jumps that are too long.
+         */
+        public byte[] toBytes() {
+            for (int i = 0; i < fixups.size(); i++) {
+                int[] fixup = fixups.get(i);
+                Label label = fixupLabels.get(i);
+                if (label.pos < 0) throw new IllegalStateException("undefined label");
+                int offset = label.pos-fixup[1];
+                int at = fixup[0];
+                if (fixup[2] == 2) {
+                    if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+                        throw new IllegalStateException("jump too long");
+                    code[at] = (byte)(offset >> 8);
+                    code[at+1] = (byte)offset;
+                }
+                else {
+                    code[at] = (byte)(offset >> 24);
+                    code[at+1] = (byte)(offset >> 16);
+                    code[at+2] = (byte)(offset >> 8);
+                    code[at+3] = (byte)offset;
+                }
+            }
+            if (length > 0xFFFF) throw new IllegalStateException("method too large");
+            return java.util.Arrays.copyOf(code, length);
+        }
+    }
+
+    public static class Label {
+        public int pos = -1;
+    }
+}
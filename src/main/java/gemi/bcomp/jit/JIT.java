@@ -0,0 +1,126 @@
+package gemi.bcomp.jit;
+
+import static gemi.bcomp.utilities.Utilities.*;
+
+import java.util.Arrays;
+
+import gemi.bcomp.vm.Compiled;
+import gemi.bcomp.vm.VM;
+
+/**
+ * Compiles frequently executed code of the text segment to JVM bytecode.
+ * The interpreter calls <code>enter</code> at the targets of calls,
+ * returns, computed jumps and backward branches. When such an address
+ * has been entered <code>THRESHOLD</code> times, the region starting
+ * there is translated and executed as compiled code from then on.
+ */
+public class JIT {
+
+    // number of entries before an address is compiled
+    public final static int THRESHOLD = 1000;
+
+    private VM vm;
+    private int text;
+    private int[] counters;
+    private Compiled[] compiled;
+    private Loader loader = new Loader();
+    // translator of the text segment as of the first compilation
+    private Translator translator = null;
+    private int classCount = 0;
+
+    public boolean verbose = false;
+
+    public JIT(VM vm, int text) {
+        this.vm = vm;
+        this.text = text;
+        counters = new int[text];
+        compiled = new Compiled[text];
+    }
+
+    /**
+     * Continues execution at <code>ip</code> with compiled code as long
+     * as possible, but not beyond <code>vm.budget</code>, and returns
+     * the instruction pointer where the interpreter has to continue.
+     */
+    public int enter(int ip) {
+        while (ip >= 0 && ip < text && vm.budget > 0) {
+            Compiled c = compiled[ip];
+            if (c == null) {
+                if (++counters[ip] < THRESHOLD) return ip;
+                c = compile(ip);
+                if (c == null) return ip;
+            }
+            vm.trap = false;
+            int next = c.exec(vm, ip);
+            // the interpreter returns and clears the trap
+            if (vm.trap) return next;
+            // the first instruction must be interpreted
+            if (next == ip && Translator.isInterpreted(vm.mem(ip))) return ip;
+            ip = next;
+        }
+        return ip;
+    }
+
+    /**
+     * Installs compiled code for the given entry points.
+     */
+    public void install(Compiled code, int[] entries) {
+        for (int adr : entries) {
+            if (adr >= 0 && adr < text && compiled[adr] == null) compiled[adr] = code;
+        }
+    }
+
+    /**
+     * Discards all compiled code, e.g., after the text segment has been
+     * modified.
+     */
+    public void invalidate() {
+        Arrays.fill(compiled, null);
+        Arrays.fill(counters, 0);
+        translator = null;
+    }
+
+    private Compiled compile(int entry) {
+        if (translator == null) {
+            // snapshot of the text segment until it is modified
+            int[] words = new int[text];
+            for (int i = 0; i < text; i++) words[i] = vm.mem(i);
+            translator = new Translator(words, text);
+        }
+        String name = "gemi/bcomp/jit/C"+int2hex(entry)+"_"+(classCount++);
+        Compiled c = null;
+        try {
+            byte[] bytes = translator.translate(name, entry);
+            if (bytes != null) {
+                c = (Compiled)loader.define(name.replace('/', '.'), bytes).getDeclaredConstructor().newInstance();
+            }
+        }
+        catch (ReflectiveOperationException|LinkageError e) {
+            if (verbose) System.err.println("b-vm: cannot compile "+int2hex(entry)+": "+e);
+            c = null;
+        }
+        if (c == null) {
+            // never try again
+            counters[entry] = Integer.MIN_VALUE;
+            return null;
+        }
+        if (verbose) {
+            System.err.println("b-vm: compiled "+int2hex(entry)+": "+translator.region.size()+" instructions");
+        }
+        for (int adr : translator.entries) {
+            if (compiled[adr] == null) compiled[adr] = c;
+        }
+        return c;
+    }
+
+    private static class Loader extends ClassLoader {
+
+        public Loader() {
+            super(VM.class.getClassLoader());
+        }
+
+        public Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
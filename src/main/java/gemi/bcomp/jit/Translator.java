@@ -0,0 +1,735 @@
+package gemi.bcomp.jit;
+
+import static gemi.bcomp.assembler.Opcodes.*;
+import static gemi.bcomp.jit.ClassBuilder.*;
+import static gemi.bcomp.utilities.Utilities.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import gemi.bcomp.jit.ClassBuilder.Code;
+import gemi.bcomp.jit.ClassBuilder.Label;
+import gemi.bcomp.vm.VM;
+
+/**
+ * Translates a region of VM instructions into a class implementing
+ * <code>gemi.bcomp.vm.Compiled</code>.
+ * <p>
+ * The region consists of the instructions reachable from the entry
+ * by branches and fall through, and the return points of calls.
+ * Registers are kept in local variables. Calls, returns, computed
+ * jumps and branches out of the region leave the compiled code with the
+ * new instruction pointer. System calls are executed directly. HALT,
+ * illegal instructions, divisions by zero and failing system calls leave
+ * the compiled code with the address of the instruction itself, which
+ * is then executed by the interpreter.
+ * After an access to an illegal address the instruction is completed
+ * and the compiled code is left with the address of the next
+ * instruction, as in the interpreter.
+ * <p>
+ * The executed instructions are counted and taken from
+ * <code>vm.budget</code> when the compiled code is left. Backward
+ * branches leave the compiled code when the budget is spent.
+ */
+public class Translator {
+
+    // maximal number of instructions in a region
+    public int maxRegion = 800;
+    // methods with more bytecode are not compiled by the JVM
+    private final static int HUGE_METHOD = 8000;
+    // maximal number of instructions counted at once
+    private final static int MAX_BLOCK = 100;
+
+    private final static String VM_CLASS = "gemi/bcomp/vm/VM";
+    private final static String COMPILED_CLASS = "gemi/bcomp/vm/Compiled";
+
+    // local variables of exec
+    private final static int L_VM   = 1;
+    private final static int L_IP   = 2;
+    private final static int L_REG  = 3;
+    private final static int L_REGS = 7;
+    private final static int L_TMP  = 8;
+    private final static int L_ADR  = 9;
+    private final static int L_IDX  = 10;
+    private final static int L_ARR  = 11;
+    private final static int L_CNT  = 12;
+    private final static int L_LIM  = 13;
+
+    private int[] words;
+    private int text;
+
+    // instruction addresses of the region (sorted)
+    public TreeSet<Integer> region = new TreeSet<>();
+    // addresses where the compiled code can be entered
+    public TreeSet<Integer> entries = new TreeSet<>();
+
+    private Code code;
+    // labels of the instructions of the region
+    private Map<Integer,Label> labels = new HashMap<>();
+    private Label exit;
+    // end of the straight-line block being translated
+    private int blockEnd;
+
+    /**
+     * The <code>words</code> are the text segment,
+     * i.e., the first <code>text</code> words of memory.
+     */
+    public Translator(int[] words, int text) {
+        this.words = words;
+        this.text = text;
+    }
+
+    /**
+     * Returns the class file translated from the region starting at
+     * <code>entry</code>, or <code>null</code> if the region cannot be
+     * translated.
+     */
+    public byte[] translate(String className, int entry) {
+        ClassBuilder cb = new ClassBuilder(className, "java/lang/Object", COMPILED_CLASS);
+        cb.defaultConstructor();
+        if (!method(cb, "exec", entry)) return null;
+        return cb.toBytes();
+    }
+
+    /**
+     * Adds the method <code>int name(VM vm, int ip)</code> translated from
+     * the region starting at <code>entry</code> to the class.
+     * Returns false if the region cannot be translated.
+     */
+    public boolean method(ClassBuilder cb, String name, int entry) {
+        // smaller regions until the method is small enough
+        for (int max = maxRegion; ; max /= 2) {
+            if (!emit(cb, entry, max)) return false;
+            if (code.length() <= HUGE_METHOD || max < 32) break;
+        }
+        try {
+            cb.method(ACC_PUBLIC, name, "(L"+VM_CLASS+";I)I", code);
+        }
+        catch (IllegalStateException e) {
+            // method too large
+            return false;
+        }
+        return true;
+    }
+
+    private boolean emit(ClassBuilder cb, int entry, int max) {
+        region.clear();
+        entries.clear();
+        collect(entry, max);
+        if (region.isEmpty()) return false;
+        code = new Code(cb);
+        code.maxStack = 8;
+        code.maxLocals = L_LIM+1;
+        labels.clear();
+        for (int adr : region) labels.put(adr, new Label());
+        exit = new Label();
+
+        // load registers into locals
+        code.op(ALOAD, L_VM);
+        code.getfield(VM_CLASS, "regs", "[I");
+        code.op(ASTORE, L_REGS);
+        loadRegs();
+        // instruction count and limit
+        code.iconst(0);
+        code.istore(L_CNT);
+        code.op(ALOAD, L_VM);
+        code.invoke(INVOKEVIRTUAL, VM_CLASS, "slice", "()I");
+        code.istore(L_LIM);
+        // dispatch to the entry
+        int[] keys = new int[entries.size()];
+        Label[] targets = new Label[entries.size()];
+        int k = 0;
+        for (int adr : entries) {
+            keys[k] = adr;
+            targets[k] = labels.get(adr);
+            k++;
+        }
+        Label dflt = new Label();
+        code.iload(L_IP);
+        code.lookupswitch(dflt, keys, targets);
+        code.label(dflt);
+        code.iload(L_IP);
+        code.jump(GOTO, exit);
+
+        int last = -2;
+        blockEnd = 0;
+        for (int adr : region) {
+            if (last >= 0 && last+1 != adr && fallsThrough(words[last])) {
+                exitTo(last+1);
+            }
+            code.label(labels.get(adr));
+            if (adr >= blockEnd || entries.contains(adr)) {
+                // count the instructions of the block
+                blockEnd = adr+1;
+                while (blockEnd-adr < MAX_BLOCK && region.contains(blockEnd)
+                       && !entries.contains(blockEnd) && fallsThrough(words[blockEnd-1])
+                       && !isBranch(words[blockEnd-1])) {
+                    blockEnd++;
+                }
+                code.iinc(L_CNT, blockEnd-adr);
+            }
+            translate(adr, words[adr]);
+            last = adr;
+        }
+        if (fallsThrough(words[last])) exitTo(last+1);
+
+        // store registers and return the instruction pointer
+        code.label(exit);
+        code.istore(L_IP);
+        storeRegs();
+        code.op(ALOAD, L_VM);
+        code.iload(L_CNT);
+        code.invoke(INVOKEVIRTUAL, VM_CLASS, "spend", "(I)V");
+        code.iload(L_IP);
+        code.op(IRETURN);
+        return true;
+    }
+
+    /**
+     * Collects the instructions of the region starting at <code>entry</code>.
+     */
+    private void collect(int entry, int max) {
+        List<Integer> work = new ArrayList<>();
+        work.add(entry);
+        entries.add(entry);
+        while (!work.isEmpty() && region.size() < max) {
+            int adr = work.remove(work.size()-1);
+            if (adr < 0 || adr >= text || region.contains(adr)) continue;
+            region.add(adr);
+            int instr = words[adr];
+            int op = opcode(instr);
+            switch (op) {
+            case CALL_R:
+            case CALL_A:
+                // return point
+                if (adr+1 < text) {
+                    entries.add(adr+1);
+                    work.add(adr+1);
+                }
+                break;
+            case JMP_A:
+                entries.add(adr(instr));
+                work.add(adr(instr));
+                break;
+            case BNE:
+            case BEQ:
+            case BNG:
+            case BPS:
+                entries.add(adr+1+offset(instr));
+                work.add(adr+1+offset(instr));
+                work.add(adr+1);
+                break;
+            case JRL:
+                entries.add(adr+1+offset(instr));
+                work.add(adr+1+offset(instr));
+                break;
+            default:
+                if (fallsThrough(instr)) work.add(adr+1);
+            }
+        }
+        entries.retainAll(region);
+    }
+
+    /**
+     * Whether control may continue with the next instruction.
+     */
+    private static boolean fallsThrough(int instr) {
+        switch (opcode(instr)) {
+        case RET:
+        case HALT:
+        case CALL_R:
+        case CALL_A:
+        case JMP_R:
+        case JMP_A:
+        case JRL:
+            return false;
+        case DIV:
+        case MOD:
+            return r2r(instr) || lit(instr) != 0;
+        default:
+            return isLegal(instr);
+        }
+    }
+
+    private static boolean isBranch(int instr) {
+        int op = opcode(instr);
+        return op == BNE || op == BEQ || op == BNG || op == BPS;
+    }
+
+    /**
+     * Whether the instruction is (possibly) left to the interpreter.
+     */
+    public static boolean isInterpreted(int instr) {
+        switch (opcode(instr)) {
+        case HALT:
+        case SYS_R:
+        case SYS_L:
+        case DIV:
+        case MOD:
+            return true;
+        default:
+            return !isLegal(instr);
+        }
+    }
+
+    private static boolean isLegal(int instr) {
+        int op = opcode(instr);
+        return op <= HALT || (op >= CALL_R && op <= SYS_L) || (op >= CALL_A && op <= MOV_0A);
+    }
+
+    private void translate(int adr, int instr) {
+        int op = opcode(instr);
+        int ra = ra(instr);
+        int rb = rb(instr);
+        switch (op) {
+        case NOP:
+            break;
+        case RET:
+            // ip = mem(FP); SP = FP+1; FP = mem(SP)
+            code.iload(L_REG+VM.FP);
+            memRead(true);
+            code.istore(L_TMP);
+            code.iload(L_REG+VM.FP);
+            code.iconst(1);
+            code.op(IADD);
+            code.istore(L_REG+VM.SP);
+            code.iload(L_REG+VM.SP);
+            memRead(true);
+            code.istore(L_REG+VM.FP);
+            code.iload(L_TMP);
+            code.jump(GOTO, exit);
+            break;
+        case CALL_R:
+            call(adr);
+            code.iload(L_REG+rb);
+            code.jump(GOTO, exit);
+            break;
+        case CALL_A:
+            call(adr);
+            code.iconst(adr(instr));
+            code.jump(GOTO, exit);
+            break;
+        case JMP_R:
+            code.iload(L_REG+rb);
+            code.jump(GOTO, exit);
+            break;
+        case JMP_A:
+            jumpTo(GOTO, adr(instr), adr);
+            break;
+        case LAD_A0:
+            code.iconst(adr(instr));
+            code.istore(L_REG+VM.R0);
+            break;
+        case MOV_A0:
+            code.iconst(adr(instr));
+            memRead(false);
+            code.istore(L_REG+VM.R0);
+            trapCheck(adr);
+            break;
+        case MOV_0A:
+            code.iconst(adr(instr));
+            code.iload(L_REG+VM.R0);
+            memWrite(false);
+            trapCheck(adr);
+            break;
+        case ADD:
+            arith(instr, IADD);
+            break;
+        case SUB:
+            arith(instr, ISUB);
+            break;
+        case MUL:
+            arith(instr, IMUL);
+            break;
+        case AND:
+            arith(instr, IAND);
+            break;
+        case OR:
+            arith(instr, IOR);
+            break;
+        case XOR:
+            arith(instr, IXOR);
+            break;
+        case DIV:
+        case MOD:
+            if (r2r(instr)) {
+                // division by zero is reported by the interpreter
+                Label ok = new Label();
+                code.iload(L_REG+ra);
+                code.jump(IFNE, ok);
+                interpret(adr);
+                code.label(ok);
+                code.iload(L_REG+rb);
+                code.iload(L_REG+ra);
+            }
+            else if (lit(instr) == 0) {
+                interpret(adr);
+                break;
+            }
+            else {
+                code.iload(L_REG+rb);
+                code.iconst(lit(instr));
+            }
+            code.op(op == DIV?IDIV:IREM);
+            code.istore(L_REG+rb);
+            break;
+        case NEG:
+            code.iload(L_REG+ra);
+            code.op(INEG);
+            code.istore(L_REG+rb);
+            break;
+        case NOT: {
+            Label zero = new Label();
+            Label done = new Label();
+            code.iload(L_REG+ra);
+            code.jump(IFEQ, zero);
+            code.iconst(0);
+            code.jump(GOTO, done);
+            code.label(zero);
+            code.iconst(1);
+            code.label(done);
+            code.istore(L_REG+rb);
+            break;
+        }
+        case CPL:
+            code.iload(L_REG+ra);
+            code.iconst(-1);
+            code.op(IXOR);
+            code.istore(L_REG+rb);
+            break;
+        case LSH:
+        case RSH: {
+            // shift by a positive amount, or the other way by a negative one
+            if (r2r(instr)) {
+                code.iload(L_REG+ra);
+            }
+            else {
+                code.iconst(lit(instr));
+            }
+            code.istore(L_TMP);
+            Label neg = new Label();
+            Label done = new Label();
+            code.iload(L_REG+rb);
+            code.iload(L_TMP);
+            code.jump(IFLE, neg);
+            code.iload(L_TMP);
+            code.op(op == LSH?ISHL:ISHR);
+            code.jump(GOTO, done);
+            code.label(neg);
+            code.iload(L_TMP);
+            code.op(INEG);
+            code.op(op == LSH?ISHR:ISHL);
+            code.label(done);
+            code.istore(L_REG+rb);
+            break;
+        }
+        case EXCH:
+            code.iload(L_REG+rb);
+            code.iload(L_REG+ra);
+            code.istore(L_REG+rb);
+            code.istore(L_REG+ra);
+            break;
+        case POP:
+            code.iinc(L_REG+VM.SP, 1);
+            code.iload(L_REG+VM.SP);
+            memRead(true);
+            code.istore(L_REG+rb);
+            trapCheck(adr);
+            break;
+        case PUSH:
+            code.iload(L_REG+VM.SP);
+            code.iload(L_REG+rb);
+            memWrite(true);
+            code.iinc(L_REG+VM.SP, -1);
+            trapCheck(adr);
+            break;
+        case MOV_RR:
+            code.iload(L_REG+ra);
+            code.istore(L_REG+rb);
+            break;
+        case MOV_L0:
+            code.iconst(offset(instr));
+            code.istore(L_REG+VM.R0);
+            break;
+        case MOV_L1:
+            code.iconst(offset(instr));
+            code.istore(L_REG+VM.R1);
+            break;
+        case MOV_RI:
+            // MOV ra,[rb+lit]
+            code.iload(L_REG+((instr >> 20) & 0b11));
+            addLiteral(lit(instr));
+            code.iload(L_REG+((instr >> 22) & 0b11));
+            memWrite(isStack((instr >> 20) & 0b11));
+            trapCheck(adr);
+            break;
+        case MOV_IR:
+            // MOV [ra+lit],rb
+            code.iload(L_REG+((instr >> 22) & 0b11));
+            addLiteral(lit(instr));
+            memRead(isStack((instr >> 22) & 0b11));
+            code.istore(L_REG+((instr >> 20) & 0b11));
+            trapCheck(adr);
+            break;
+        case MOV_OR:
+            // MOV ra+lit,rb
+            code.iload(L_REG+((instr >> 22) & 0b11));
+            addLiteral(lit(instr));
+            code.istore(L_REG+((instr >> 20) & 0b11));
+            break;
+        case BNE:
+            code.iload(L_REG+VM.R0);
+            jumpTo(IFEQ, adr+1+offset(instr), adr);
+            break;
+        case BEQ:
+            code.iload(L_REG+VM.R0);
+            jumpTo(IFNE, adr+1+offset(instr), adr);
+            break;
+        case BNG:
+            code.iload(L_REG+VM.R0);
+            jumpTo(IFLT, adr+1+offset(instr), adr);
+            break;
+        case BPS:
+            code.iload(L_REG+VM.R0);
+            jumpTo(IFGT, adr+1+offset(instr), adr);
+            break;
+        case JRL:
+            jumpTo(GOTO, adr+1+offset(instr), adr);
+            break;
+        case SYS_R:
+            // the register number is passed
+            syscall(adr, rb);
+            break;
+        case SYS_L:
+            syscall(adr, lit(instr));
+            break;
+        default:
+            // HALT and illegal instructions
+            // are executed by the interpreter
+            interpret(adr);
+        }
+    }
+
+    /**
+     * Pushes the frame of a call at <code>adr</code>:
+     * mem(SP) = FP; SP--; FP = SP; mem(SP) = adr+1; SP--
+     */
+    private void call(int adr) {
+        code.iload(L_REG+VM.SP);
+        code.iload(L_REG+VM.FP);
+        memWrite(true);
+        code.iinc(L_REG+VM.SP, -1);
+        code.iload(L_REG+VM.SP);
+        code.istore(L_REG+VM.FP);
+        code.iload(L_REG+VM.SP);
+        code.iconst(adr+1);
+        memWrite(true);
+        code.iinc(L_REG+VM.SP, -1);
+    }
+
+    /**
+     * Executes system call <code>sys</code> with the registers stored in
+     * the VM.
+     */
+    private void syscall(int adr, int sys) {
+        storeRegs();
+        Label ok = new Label();
+        code.op(ALOAD, L_VM);
+        code.iconst(sys);
+        code.invoke(INVOKEVIRTUAL, VM_CLASS, "syscall", "(I)Z");
+        code.jump(IFNE, ok);
+        interpret(adr);
+        code.label(ok);
+        loadRegs();
+        trapCheck(adr);
+    }
+
+    private void loadRegs() {
+        for (int r = 0; r < 4; r++) {
+            code.op(ALOAD, L_REGS);
+            code.iconst(r);
+            code.op(IALOAD);
+            code.istore(L_REG+r);
+        }
+    }
+
+    private void storeRegs() {
+        for (int r = 0; r < 4; r++) {
+            code.op(ALOAD, L_REGS);
+            code.iconst(r);
+            code.iload(L_REG+r);
+            code.op(IASTORE);
+        }
+    }
+
+    private void arith(int instr, int jop) {
+        int rb = rb(instr);
+        code.iload(L_REG+rb);
+        if (r2r(instr))
+            code.iload(L_REG+ra(instr));
+        else
+            code.iconst(lit(instr));
+        code.op(jop);
+        code.istore(L_REG+rb);
+    }
+
+    private void addLiteral(int n) {
+        if (n != 0) {
+            code.iconst(n);
+            code.op(IADD);
+        }
+    }
+
+    /**
+     * Whether addresses relative to the register are in the stack.
+     */
+    private static boolean isStack(int reg) {
+        return reg == VM.SP || reg == VM.FP;
+    }
+
+    /**
+     * Replaces the address on the stack by the memory word.
+     * Words in the stack segment of the VM are accessed directly.
+     */
+    private void memRead(boolean stack) {
+        if (!stack) {
+            code.op(ALOAD, L_VM);
+            code.op(SWAP);
+            code.invoke(INVOKEVIRTUAL, VM_CLASS, "mem", "(I)I");
+            return;
+        }
+        Label slow = new Label();
+        Label done = new Label();
+        stackIndex(slow);
+        code.op(ALOAD, L_ARR);
+        code.iload(L_IDX);
+        code.op(IALOAD);
+        code.jump(GOTO, done);
+        code.label(slow);
+        code.op(ALOAD, L_VM);
+        code.iload(L_ADR);
+        code.invoke(INVOKEVIRTUAL, VM_CLASS, "mem", "(I)I");
+        code.label(done);
+    }
+
+    /**
+     * Stores the value on the stack at the address below it.
+     */
+    private void memWrite(boolean stack) {
+        code.istore(L_TMP);
+        if (!stack) {
+            code.op(ALOAD, L_VM);
+            code.op(SWAP);
+            code.iload(L_TMP);
+            code.invoke(INVOKEVIRTUAL, VM_CLASS, "mem", "(II)V");
+            return;
+        }
+        Label slow = new Label();
+        Label done = new Label();
+        stackIndex(slow);
+        code.op(ALOAD, L_ARR);
+        code.iload(L_IDX);
+        code.iload(L_TMP);
+        code.op(IASTORE);
+        code.jump(GOTO, done);
+        code.label(slow);
+        code.op(ALOAD, L_VM);
+        code.iload(L_ADR);
+        code.iload(L_TMP);
+        code.invoke(INVOKEVIRTUAL, VM_CLASS, "mem", "(II)V");
+        code.label(done);
+    }
+
+    /**
+     * Computes the index of the address on the stack in the stack segment,
+     * or jumps to <code>slow</code> if it is outside.
+     */
+    private void stackIndex(Label slow) {
+        code.istore(L_ADR);
+        code.op(ALOAD, L_VM);
+        code.getfield(VM_CLASS, "stack", "[I");
+        code.op(ASTORE, L_ARR);
+        code.iload(L_ADR);
+        code.op(ALOAD, L_VM);
+        code.getfield(VM_CLASS, "stackBase", "I");
+        code.op(ISUB);
+        code.op(DUP);
+        code.istore(L_IDX);
+        code.jump(IFLT, slow);
+        code.iload(L_IDX);
+        code.op(ALOAD, L_ARR);
+        code.op(ARRAYLENGTH);
+        code.jump(IF_ICMPGE, slow);
+    }
+
+    /**
+     * Leaves the compiled code after the instruction at <code>adr</code>
+     * if a memory access has trapped.
+     */
+    private void trapCheck(int adr) {
+        Label ok = new Label();
+        code.op(ALOAD, L_VM);
+        code.getfield(VM_CLASS, "trap", "Z");
+        code.jump(IFEQ, ok);
+        uncount(adr+1);
+        exitTo(adr+1);
+        code.label(ok);
+    }
+
+    /**
+     * Jumps from <code>adr</code> to <code>target</code>, inside the
+     * region if possible. Backward jumps leave the compiled code if the
+     * budget is spent.
+     */
+    private void jumpTo(int jop, int target, int adr) {
+        boolean inside = labels.containsKey(target);
+        if (inside && target > adr) {
+            code.jump(jop, labels.get(target));
+            return;
+        }
+        Label skip = new Label();
+        if (jop != GOTO) code.jump(negate(jop), skip);
+        if (inside) {
+            code.iload(L_CNT);
+            code.iload(L_LIM);
+            code.jump(IF_ICMPLT, labels.get(target));
+        }
+        exitTo(target);
+        code.label(skip);
+    }
+
+    private static int negate(int jop) {
+        switch (jop) {
+        case IFEQ: return IFNE;
+        case IFNE: return IFEQ;
+        case IFLT: return IFGE;
+        case IFGT: return IFLE;
+        }
+        return jop;
+    }
+
+    /**
+     * Leaves the compiled code to execute the instruction at
+     * <code>adr</code> in the interpreter.
+     */
+    private void interpret(int adr) {
+        uncount(adr);
+        exitTo(adr);
+    }
+
+    /**
+     * Subtracts the instructions of the block from <code>adr</code>
+     * on, which are not executed when the compiled code is left.
+     */
+    private void uncount(int adr) {
+        if (adr < blockEnd) code.iinc(L_CNT, adr-blockEnd);
+    }
+
+    private void exitTo(int ip) {
+        code.iconst(ip);
+        code.jump(GOTO, exit);
+    }
+}
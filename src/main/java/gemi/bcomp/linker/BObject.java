@@ -1,101 +1,329 @@
 package gemi.bcomp.linker;
 
 import static gemi.bcomp.utilities.Utilities.hex2int;
+import static gemi.bcomp.utilities.Utilities.int2hex;
 import static gemi.bcomp.utilities.Utilities.string2int;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
 
+import gemi.bcomp.utilities.IntList;
+import gemi.bcomp.utilities.LineTable;
+
+/**
+ * An object file as generated by the assembler.
+ * <p>
+ * There are two formats. The text format has directive lines and one
+ * hex word per line. The binary format consists of little-endian words:
+ * <code>MAGIC</code>, the string table, the external and the internal
+ * references, the exports, the address of <code>$init</code> (-1 if
+ * missing), the data, the index of the source file name (-1 if
+ * missing) and the encoded <code>LineTable</code>, and the code words.
+ * <p>
+ * The string table contains the number of strings, and for each string
+ * its length in bytes and the bytes, padded with zero bytes to a
+ * multiple of 4. Names are given by their index in the table. The
+ * references of a symbol are given by its name, the number of
+ * locations and the locations, the exports by name and address, and
+ * the data by name and size, each preceded by their number. The line
+ * table is given by its length and the bytes, padded as the strings,
+ * and the code by the number of words and the words.
+ */
 public class BObject {
 
-    public Map<String,List<Integer>> externalRef = new HashMap<>();
-    public Map<String,List<Integer>> internalRef = new HashMap<>();
+    // "BOBJ" as little-endian word
+    public final static int MAGIC = 0x4A424F42;
+
+    public Map<String,IntList> externalRef = new HashMap<>();
+    public Map<String,IntList> internalRef = new HashMap<>();
     public Map<String,Integer> exports = new HashMap<>();
     public Map<String,Integer> data = new HashMap<>();
-    public Map<String,List<Integer>> dataRef = new HashMap<>();
+    public Map<String,IntList> dataRef = new HashMap<>();
     public Map<String,Integer> internalSymbols = new HashMap<>();
     public Integer init = null;
     public int offset = 0;
     public int[] text = null;
+    // source file and lines, if compiled with line numbers
+    public String file = null;
+    public LineTable lines = null;
     
+    /**
+     * Reads an object file in either format, and returns
+     * <code>null</code> if it is invalid.
+     */
     public static BObject load(InputStream in) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] b = new byte[65536];
+            for (int k; (k = in.read(b)) > 0; ) bytes.write(b, 0, k);
+            ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+            if (buf.limit() >= 4 && buf.getInt(0) == MAGIC) return loadBinary(buf);
+            return loadText(new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf.array()))));
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static BObject loadBinary(ByteBuffer buf) {
+        BObject obj = new BObject();
+        buf.position(4);
+        String[] strings = new String[count(buf, 1)];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = new String(get(buf), StandardCharsets.UTF_8);
+        }
+        loadRefs(buf, strings, obj.externalRef);
+        loadRefs(buf, strings, obj.internalRef);
+        for (int i = count(buf, 2); i > 0; i--) {
+            obj.exports.put(strings[buf.getInt()], buf.getInt());
+        }
+        int init = buf.getInt();
+        if (init >= 0) obj.init = init;
+        for (int i = count(buf, 2); i > 0; i--) {
+            obj.data.put(strings[buf.getInt()], buf.getInt());
+        }
+        int file = buf.getInt();
+        ByteBuffer table = slice(buf);
+        if (file >= 0) {
+            obj.file = strings[file];
+            obj.lines = new LineTable(Arrays.asList(obj.file), table);
+        }
+        obj.text = new int[count(buf, 1)];
+        buf.asIntBuffer().get(obj.text);
+        return obj;
+    }
+
+    private static void loadRefs(ByteBuffer buf, String[] strings, Map<String,IntList> refs) {
+        for (int i = count(buf, 2); i > 0; i--) {
+            String name = strings[buf.getInt()];
+            int[] locs = new int[count(buf, 1)];
+            buf.asIntBuffer().get(locs);
+            buf.position(buf.position()+4*locs.length);
+            refs.put(name, new IntList(locs));
+        }
+    }
+
+    /**
+     * Returns a count of items of <code>words</code> words each, which
+     * must fit in the rest of the buffer.
+     */
+    private static int count(ByteBuffer buf, int words) {
+        int count = buf.getInt();
+        if (count < 0 || (long)4*words*count > buf.remaining())
+            throw new IllegalArgumentException("invalid object file");
+        return count;
+    }
+
+    private static byte[] get(ByteBuffer buf) {
+        ByteBuffer slice = slice(buf);
+        byte[] bytes = new byte[slice.remaining()];
+        slice.get(bytes);
+        return bytes;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0 || length > buf.remaining())
+            throw new IllegalArgumentException("invalid object file");
+        ByteBuffer slice = buf.slice();
+        slice.limit(length);
+        buf.position((buf.position()+length+3) & ~3);
+        return slice;
+    }
+
+    private static BObject loadText(BufferedReader reader) throws IOException {
         BObject obj = new BObject();
         String line;
         int n = 0;
-        try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-            while ((line = reader.readLine()) != null) {
-                line = line.trim();
-                if (line.startsWith(".external ")) {
-                    line = line.substring(".external ".length());
-                    int i = line.indexOf(':');
-                    if (i > 0) {
-                        String name = line.substring(0, i).trim();
-                        List<Integer> list = new LinkedList<>();
-                        obj.externalRef.put(name, list);
-                        for (String ref : line.substring(i+1).trim().split("\\s+")) {
-                            list.add(hex2int(ref));
-                        }
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.startsWith(".external ")) {
+                line = line.substring(".external ".length());
+                int i = line.indexOf(':');
+                if (i > 0) {
+                    String name = line.substring(0, i).trim();
+                    IntList list = new IntList();
+                    obj.externalRef.put(name, list);
+                    for (String ref : line.substring(i+1).trim().split("\\s+")) {
+                        list.add(hex2int(ref));
                     }
                 }
-                else if (line.startsWith(".internal ")) {
-                    line = line.substring(".external ".length());
-                    int i = line.indexOf(':');
-                    if (i > 0) {
-                        String name = line.substring(0, i).trim();
-                        List<Integer> list = new LinkedList<>();
-                        obj.internalRef.put(name, list);
-                        for (String ref : line.substring(i+1).trim().split("\\s+")) {
-                            list.add(hex2int(ref));
-                        }
+            }
+            else if (line.startsWith(".internal ")) {
+                line = line.substring(".external ".length());
+                int i = line.indexOf(':');
+                if (i > 0) {
+                    String name = line.substring(0, i).trim();
+                    IntList list = new IntList();
+                    obj.internalRef.put(name, list);
+                    for (String ref : line.substring(i+1).trim().split("\\s+")) {
+                        list.add(hex2int(ref));
                     }
                 }
-                else if (line.startsWith(".export ")) {
-                    line = line.substring(".export ".length());
-                    int i = line.indexOf(':');
-                    if (i > 0) {
-                        String name = line.substring(0, i).trim();
-                        String ref = line.substring(i+1).trim();
-                        int adr = hex2int(ref);
-                        if (name.equals("$init"))
-                            obj.init = adr;
-                        else
-                            obj.exports.put(name, adr);
-                    }
-                    else {
-                        obj.exports.put(line.trim(), 0);
-                    }
+            }
+            else if (line.startsWith(".export ")) {
+                line = line.substring(".export ".length());
+                int i = line.indexOf(':');
+                if (i > 0) {
+                    String name = line.substring(0, i).trim();
+                    String ref = line.substring(i+1).trim();
+                    int adr = hex2int(ref);
+                    if (name.equals("$init"))
+                        obj.init = adr;
+                    else
+                        obj.exports.put(name, adr);
                 }
-                else if (line.startsWith(".data ")) {
-                    line = line.substring(".data ".length());
-                    int i = line.indexOf(':');
-                    if (i > 0) {
-                        String name = line.substring(0, i).trim();
-                        int size = string2int(line.substring(i+1).trim());
-                        obj.data.put(name, size);
-                    }
+                else {
+                    obj.exports.put(line.trim(), 0);
                 }
-                else if (line.startsWith(".text ")) {
-                    int textsize = Integer.parseInt(line.substring(".text ".length()).trim());
-                    obj.text = new int[textsize];
+            }
+            else if (line.startsWith(".data ")) {
+                line = line.substring(".data ".length());
+                int i = line.indexOf(':');
+                if (i > 0) {
+                    String name = line.substring(0, i).trim();
+                    int size = string2int(line.substring(i+1).trim());
+                    obj.data.put(name, size);
                 }
-                else if (line.length() == 8) {
-                    if (n < obj.text.length) {
-                        int word = hex2int(line);
-                        obj.text[n] = word;
-                        n++;
-                    }
+            }
+            else if (line.startsWith(".file ")) {
+                obj.file = line.substring(".file ".length()).trim();
+            }
+            else if (line.startsWith(".lines ")) {
+                obj.lines = new LineTable(Arrays.asList(obj.file), line.substring(".lines ".length()).trim());
+            }
+            else if (line.startsWith(".text ")) {
+                int textsize = Integer.parseInt(line.substring(".text ".length()).trim());
+                obj.text = new int[textsize];
+            }
+            else if (line.length() == 8) {
+                if (n < obj.text.length) {
+                    int word = hex2int(line);
+                    obj.text[n] = word;
+                    n++;
                 }
             }
-            return obj;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
+        }
+        return obj;
+    }
+
+    /**
+     * Writes the object file in binary format.
+     */
+    public void write(OutputStream out) throws IOException {
+        Map<String,Integer> strings = new LinkedHashMap<>();
+        Map<String,IntList> externalRef = new TreeMap<>(this.externalRef);
+        Map<String,IntList> internalRef = new TreeMap<>(this.internalRef);
+        Map<String,Integer> exports = new TreeMap<>(this.exports);
+        Map<String,Integer> data = new TreeMap<>(this.data);
+        for (String name : externalRef.keySet()) strings.putIfAbsent(name, strings.size());
+        for (String name : internalRef.keySet()) strings.putIfAbsent(name, strings.size());
+        for (String name : exports.keySet()) strings.putIfAbsent(name, strings.size());
+        for (String name : data.keySet()) strings.putIfAbsent(name, strings.size());
+        boolean hasLines = lines != null && lines.size() > 0;
+        if (hasLines) strings.putIfAbsent(file, strings.size());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        putInt(bytes, MAGIC);
+        putInt(bytes, strings.size());
+        for (String s : strings.keySet()) put(bytes, s.getBytes(StandardCharsets.UTF_8));
+        for (Map<String,IntList> refs : Arrays.asList(externalRef, internalRef)) {
+            putInt(bytes, refs.size());
+            for (Entry<String,IntList> e : refs.entrySet()) {
+                IntList locs = e.getValue();
+                putInt(bytes, strings.get(e.getKey()));
+                putInt(bytes, locs.size());
+                for (int i = 0; i < locs.size(); i++) putInt(bytes, locs.get(i));
+            }
+        }
+        putInt(bytes, exports.size());
+        for (Entry<String,Integer> e : exports.entrySet()) {
+            putInt(bytes, strings.get(e.getKey()));
+            putInt(bytes, e.getValue());
+        }
+        putInt(bytes, (init == null)?-1:init);
+        putInt(bytes, data.size());
+        for (Entry<String,Integer> e : data.entrySet()) {
+            putInt(bytes, strings.get(e.getKey()));
+            putInt(bytes, e.getValue());
+        }
+        putInt(bytes, hasLines?strings.get(file):-1);
+        put(bytes, hasLines?lines.encode():new byte[0]);
+        putInt(bytes, text.length);
+        bytes.writeTo(out);
+        ByteBuffer words = ByteBuffer.allocate(4*text.length).order(ByteOrder.LITTLE_ENDIAN);
+        words.asIntBuffer().put(text);
+        out.write(words.array());
+    }
+
+    private static void putInt(ByteArrayOutputStream out, int n) {
+        out.write(n);
+        out.write(n >> 8);
+        out.write(n >> 16);
+        out.write(n >> 24);
+    }
+
+    private static void put(ByteArrayOutputStream out, byte[] bytes) {
+        putInt(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+        for (int i = bytes.length; i % 4 != 0; i++) out.write(0);
+    }
+
+    /**
+     * Writes the object file in text format.
+     */
+    public void writeText(PrintStream out) {
+        for (Entry<String,IntList> e : new TreeMap<>(externalRef).entrySet()) {
+            out.print(".external "+e.getKey()+":");
+            for (int i = 0; i < e.getValue().size(); i++) {
+                out.print(" ");
+                out.print(int2hex(e.getValue().get(i)));
+            }
+            out.println();
+        }
+        for (Entry<String,IntList> e : new TreeMap<>(internalRef).entrySet()) {
+            out.print(".internal "+e.getKey()+":");
+            for (int i = 0; i < e.getValue().size(); i++) {
+                out.print(" ");
+                out.print(int2hex(e.getValue().get(i)));
+            }
+            out.println();
+        }
+        Map<String,Integer> labels = new TreeMap<>(exports);
+        if (init != null) labels.put("$init", init);
+        for (Entry<String,Integer> e : labels.entrySet()) {
+            if (!data.containsKey(e.getKey())) {
+                out.println(".export "+e.getKey()+": "+int2hex(e.getValue()));
+            }
+        }
+        for (Entry<String,Integer> e : new TreeMap<>(data).entrySet()) {
+            if (exports.containsKey(e.getKey()))
+                out.println(".export "+e.getKey());
+            out.println(".data "+e.getKey()+": "+e.getValue());
+        }
+        if (lines != null && lines.size() > 0) {
+            out.println(".file "+file);
+            out.println(".lines "+lines.encodeHex());
+        }
+        out.println(".text "+text.length);
+        for (int word : text) {
+            out.println(int2hex(word));
         }
     }
 }
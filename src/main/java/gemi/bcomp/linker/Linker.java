@@ -8,10 +8,15 @@ import static gemi.bcomp.utilities.Utilities.string2int;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.*;
 import java.util.Map.Entry;
 
+import gemi.bcomp.utilities.IntList;
+import gemi.bcomp.utilities.LineTable;
+import gemi.bcomp.vm.Executable;
+
 public class Linker {
 
     private PrintStream out;
@@ -21,7 +26,16 @@ public class Linker {
     public int offset = 0;
     public int[] code = new int[1024];
     public int dataoffset = 0;
+    // location and size of the function pointer table
+    public int ftable = 0;
+    public int fcount = 0;
+    // function names by entry address
+    public TreeMap<Integer,String> symbols = new TreeMap<>();
+    // source lines of objects compiled with line numbers
+    public LineTable lines = null;
     public String vmexe = "/usr/bin/b-vm";
+    // whether the executable is written in binary format
+    public boolean binary = false;
     
     public Linker(PrintStream out) {
         this.out = out;
@@ -39,6 +53,12 @@ public class Linker {
         int init_function = 0;
         for (BObject obj : objects) {
             obj.offset = offset;
+            if (obj.lines != null || lines != null) {
+                if (lines == null) lines = new LineTable();
+                // no lines unless given by the object
+                lines.add(offset, 0, 0);
+                if (obj.lines != null) lines.append(obj.lines, offset);
+            }
             if (obj.init != null) {
                 // patch init function
                 code[init_function] = addAdr(code[init_function], obj.init+offset);
@@ -48,6 +68,7 @@ public class Linker {
                 addcode(c);
             }
         }
+        if (lines != null) lines.add(offset, 0, 0);
 
         // allocation and resolve references 
         if (!resolve())
@@ -56,10 +77,50 @@ public class Linker {
         return true;
     }
     
+    /**
+     * Returns the linked program as executable.
+     */
+    public Executable executable() {
+        Executable exe = new Executable();
+        exe.memsize = memsize;
+        exe.data = dataoffset;
+        exe.ftable = ftable;
+        exe.fcount = fcount;
+        exe.text = code;
+        exe.n = offset;
+        exe.symbols = symbols;
+        exe.lines = lines;
+        return exe;
+    }
+    
     public void output() {
+        output(out);
+    }
+    
+    /**
+     * Writes the executable to <code>out</code>.
+     */
+    public void output(PrintStream out) {
+        if (binary) {
+            try {
+                executable().write(out, vmexe);
+            }
+            catch (IOException e) {
+                error("cannot write executable");
+            }
+            return;
+        }
         out.println("#!"+vmexe);
         out.println(".memsize "+int2hex(memsize));
         out.println(".data "+int2hex(dataoffset));
+        out.println(".ftable "+int2hex(ftable)+" "+int2hex(fcount));
+        for (Entry<Integer,String> symbol : symbols.entrySet()) {
+            out.println(".symbol "+int2hex(symbol.getKey())+" "+symbol.getValue());
+        }
+        if (lines != null) {
+            for (String file : lines.files) out.println(".file "+file);
+            out.println(".lines "+lines.encodeHex());
+        }
         for (int i = 0; i < offset; i++) {
             out.println(int2hex(code[i]));
         }
@@ -95,96 +156,101 @@ public class Linker {
         return true;
     }
     
+    /**
+     * A symbol exported by an object, or the data of an object that is
+     * not internal.
+     */
+    private static class Symbol {
+        boolean data;
+        // the address of the data or of the function pointer
+        int adr;
+
+        Symbol(boolean data, int adr) {
+            this.data = data;
+            this.adr = adr;
+        }
+    }
+
     private boolean resolve() {
-        Map<String,Integer> dataSymbols  = new HashMap<>();
-        Map<String,Integer> functionSymbols = new HashMap<String,Integer>();
+        // all symbols by name
+        Map<String,Symbol> table = new HashMap<>();
 
         // get offsets to function functions symbols
+        ftable = offset;
         for (BObject obj : objects) {
+            if (obj.init != null) symbols.put(obj.init+obj.offset, "$init");
             for (Entry<String,Integer> export : obj.exports.entrySet()) {
                 String name = export.getKey();
                 if (obj.data.containsKey(name)) {
                     // this is a data symbol
-                    dataSymbols.put(name, 0);
+                    table.put(name, new Symbol(true, 0));
                 }
                 else {
                     int adr = export.getValue()+obj.offset;
+                    symbols.put(adr, name);
                     // allocate location containing pointer to function
                     adr = addcode(adr);
-                    functionSymbols.put(name, adr);
+                    table.put(name, new Symbol(false, adr));
                 }
             }
         }
         
-        // patch references to function symbols
-        for (BObject obj : objects) {
-            for (Entry<String,List<Integer>> externalRefs : obj.externalRef.entrySet()) {
-                String name = externalRefs.getKey();
-                Integer adr = functionSymbols.get(name);
-                if (adr == null) {
-                    if (!dataSymbols.containsKey(name))
-                        error("cannot resolve function symbol "+name);
-                }
-                else if (externalRefs.getValue() != null) {
-                    for (int loc : externalRefs.getValue()) {
-                        loc = loc+obj.offset;
-                        code[loc] = addAdr(code[loc], adr);
-                    }
-                }
-            }
-        }
+        fcount = offset-ftable;
 
         dataoffset = offset;
         for (BObject obj : objects) {
             for (Entry<String,Integer> data : obj.data.entrySet()) {
                 String name = data.getKey();
-                Integer size = obj.data.get(name);
+                Integer size = data.getValue();
                 if (size != null) {
                     if (obj.internalRef.containsKey(name))
                         obj.internalSymbols.put(name, dataoffset);
                     else
-                        dataSymbols.put(name, dataoffset);
+                        table.put(name, new Symbol(true, dataoffset));
                     dataoffset += size;
                 }
             }
         }
 
-        // patch references to data symbols
+        // patch references to function and data symbols
         for (BObject obj : objects) {
-            // external data symbols
-            for (Entry<String,List<Integer>> externalRefs : obj.externalRef.entrySet()) {
+            for (Entry<String,IntList> externalRefs : obj.externalRef.entrySet()) {
                 String name = externalRefs.getKey();
-                Integer adr = dataSymbols.get(name);
-                if (adr == null) {
-                    if (!functionSymbols.containsKey(name))
-                        error("cannot resolve data symbol "+name);
-                }
-                else if (externalRefs.getValue() != null) {
-                    for (int loc : externalRefs.getValue()) {
-                        loc = loc+obj.offset;
-                        code[loc] = addAdr(code[loc], adr);
-                    }
-                }
+                Symbol symbol = table.get(name);
+                if (symbol == null)
+                    error("cannot resolve symbol "+name);
+                else
+                    patch(externalRefs.getValue(), obj.offset, symbol.adr);
             }
             // internal data symbols
-            for (Entry<String,List<Integer>> internalRefs : obj.internalRef.entrySet()) {
+            for (Entry<String,IntList> internalRefs : obj.internalRef.entrySet()) {
                 String name = internalRefs.getKey();
                 Integer adr = obj.internalSymbols.get(name);
                 if (adr == null) {
-                    if (!functionSymbols.containsKey(name))
+                    Symbol symbol = table.get(name);
+                    if (symbol == null || symbol.data)
                         error("cannot resolve internal data symbol "+name);
                 }
-                else if (internalRefs.getValue() != null) {
-                    for (int loc : internalRefs.getValue()) {
-                        loc = loc+obj.offset;
-                        code[loc] = addAdr(code[loc], adr);
-                    }
+                else {
+                    patch(internalRefs.getValue(), obj.offset, adr);
                 }
             }
         }
         
         return true;
     }
+
+    /**
+     * Adds <code>adr</code> to the words at the locations, which are
+     * relative to <code>offset</code>.
+     */
+    private void patch(IntList locs, int offset, int adr) {
+        if (locs == null) return;
+        for (int i = 0; i < locs.size(); i++) {
+            int loc = locs.get(i)+offset;
+            code[loc] = addAdr(code[loc], adr);
+        }
+    }
     
     public static void error(String msg) {
         System.err.println("b-link: error: "+msg);
@@ -197,6 +263,7 @@ public class Linker {
         int memsize = 1024*1024;
         String bcompLib = System.getProperty("bcomp.lib");
         String vmexe = System.getProperty("bcomp.vmexe");
+        boolean binary = false;
         if (bcompLib != null) objnames.add(bcompLib);
         for (int i = 0; i < args.length; i++) {
             if (args[i].startsWith("-o")) {
@@ -212,6 +279,9 @@ public class Linker {
                     error("missing argument to option -o");
                 }
             }
+            else if (args[i].equals("-b")) {
+                binary = true;
+            }
             else if (args[i].startsWith("-s")) {
                 String arg = args[i].substring("-s".length());
                 Integer s = null;
@@ -248,6 +318,7 @@ public class Linker {
             Linker linker = new Linker(out);
             linker.memsize = memsize;
             if (vmexe != null) linker.vmexe = vmexe;
+            linker.binary = binary;
             for (String objname : objnames) {
                 try {
                     BObject obj = BObject.load(new FileInputStream(objname));
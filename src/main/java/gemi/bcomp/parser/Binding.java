@@ -9,11 +9,14 @@ public class Binding {
         EXTERNAL
     }
 
+    // the id of the name in the name table
+    public int id;
     public String name;
     public BindingType type;
     public int offset = 0;
     
-    public Binding(String name, BindingType type, int offset) {
+    public Binding(int id, String name, BindingType type, int offset) {
+        this.id = id;
         this.name = name;
         this.type = type;
         this.offset = offset;
@@ -1,16 +1,20 @@
 package gemi.bcomp.parser;
 
-import java.util.TreeMap;
-
 import gemi.bcomp.parser.Binding.BindingType;
 
-public class Bindings extends TreeMap<String,Binding> {
-
-    private static final long serialVersionUID = 2654570102006967785L;
+/**
+ * The names bound in a scope, by their id in the name table of the
+ * scanner. The bindings are found by open addressing on the id, and
+ * the table is only allocated when the first name is bound.
+ */
+public class Bindings {
 
     public int offset = -1; 
     public String breakLabel = null;
     public Bindings next = null;
+
+    private Binding[] bindings = null;
+    private int count = 0;
     
     public Bindings(Bindings next) {
         this.next = next;
@@ -20,25 +24,29 @@ public class Bindings extends TreeMap<String,Binding> {
         }
     }
 
-    public boolean bind(String name, BindingType type, int offset) {
-        Binding binding = lookupShallow(name);
+    public boolean bind(int id, String name, BindingType type, int offset) {
+        Binding binding = lookupShallow(id);
         if (binding != null && binding.type == type)
             return false;
-        binding = new Binding(name, type, offset);
-        put(name, binding);
+        put(new Binding(id, name, type, offset));
         return true;
     }
 
-    public Binding lookupShallow(String name) {
-        return get(name);
+    public Binding lookupShallow(int id) {
+        if (bindings == null) return null;
+        int mask = bindings.length-1;
+        for (int i = id & mask; bindings[i] != null; i = (i+1) & mask) {
+            if (bindings[i].id == id) return bindings[i];
+        }
+        return null;
     }
 
-    public Binding lookupDeep(String name) {
-        Binding binding = get(name);
-        if (binding == null && next != null)
-            return next.lookupDeep(name);
-        else
-            return binding;
+    public Binding lookupDeep(int id) {
+        for (Bindings b = this; b != null; b = b.next) {
+            Binding binding = b.lookupShallow(id);
+            if (binding != null) return binding;
+        }
+        return null;
     }
     
     public String getBreakLabel() {
@@ -47,4 +55,22 @@ public class Bindings extends TreeMap<String,Binding> {
         else
             return breakLabel;
     }
+
+    private void put(Binding binding) {
+        if (bindings == null) bindings = new Binding[8];
+        int mask = bindings.length-1;
+        int i = binding.id & mask;
+        while (bindings[i] != null && bindings[i].id != binding.id) i = (i+1) & mask;
+        if (bindings[i] == null) count++;
+        bindings[i] = binding;
+        // at most half full
+        if (2*count > bindings.length) {
+            Binding[] old = bindings;
+            bindings = new Binding[2*old.length];
+            count = 0;
+            for (Binding b : old) {
+                if (b != null) put(b);
+            }
+        }
+    }
 }
@@ -1,21 +1,27 @@
 package gemi.bcomp.parser;
 
 import static gemi.bcomp.utilities.Utilities.indent;
+import static gemi.bcomp.utilities.Utilities.int2hex;
 
 import java.util.List;
 
 import gemi.bcomp.scanner.Token;
+import gemi.bcomp.utilities.IntList;
 
 public class Definition {
 
     public String name;
     public List<String> formals = null;
+    // the ids of the formals in the name table
+    public IntList formalIds = null;
     public List<Statement> statements = null;
     public boolean isFunction = false;
     public boolean isVector = false;
     public boolean isString = false;
     public int size = 0;
     public List<Token> ivals = null;
+    // the words of a string
+    public int[] string = null;
     public int line = 0;
     public int col = 0;
     
@@ -43,6 +49,12 @@ public class Definition {
                 statement.dump(indent+2);
             }
         }
+        if (string != null) {
+            indent(indent+1, "string\n");
+            for (int word : string) {
+                indent(indent+2, int2hex(word)+"\n");
+            }
+        }
         if (ivals != null && ivals.size() > 0) {
             indent(indent+1, "ivals\n");
             for (Token token : ivals) {
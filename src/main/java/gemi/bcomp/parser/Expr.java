@@ -9,7 +9,9 @@ public class Expr {
     public Expr expr2 = null; 
     public Expr expr3 = null;
     public String name = null;
-    public Integer number = null;
+    // the id of a name in the name table
+    public int id = -1;
+    public int number = 0;
     public List<Expr> args = null;
     
     public int line = 0;
@@ -67,7 +69,7 @@ public class Expr {
         for (int i = 0; i < indent; i++) System.out.print("  ");
         System.out.print(op);
         if (name != null) System.out.print(": "+name);
-        if (number != null) System.out.print(": "+number);
+        if (op == ExprType.NUMBER) System.out.print(": "+number);
         System.out.println();
         if (expr1 != null) {
             expr1.dump(indent+1);
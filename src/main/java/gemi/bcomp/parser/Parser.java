@@ -2,14 +2,17 @@ package gemi.bcomp.parser;
 
 import static gemi.bcomp.scanner.TokenType.*;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.function.Consumer;
 
 import gemi.bcomp.parser.Statement.StatementType;
 import gemi.bcomp.scanner.Scanner;
 import gemi.bcomp.scanner.Token;
 import gemi.bcomp.scanner.TokenType;
 import gemi.bcomp.utilities.ErrorHandler;
+import gemi.bcomp.utilities.IntList;
 
 public class Parser {
 
@@ -18,7 +21,8 @@ public class Parser {
     private Token curToken = null;
     private Token lastToken = null;
     private int label = 0;
-    private List<Definition> definitions = new LinkedList<>();
+    // definitions of strings not yet handed over
+    private List<Definition> definitions = new ArrayList<>();
 
 
     public Parser(Scanner scanner, ErrorHandler errorHandler) {
@@ -27,13 +31,25 @@ public class Parser {
     }
  
     public List<Definition> parse() {
+        List<Definition> all = new ArrayList<>();
+        parse(all::add);
+        return all;
+    }
+
+    /**
+     * Hands each definition to <code>consumer</code> as soon as it has
+     * been parsed, after the definitions of the strings in it, so that
+     * the syntax trees need not be kept.
+     */
+    public void parse(Consumer<Definition> consumer) {
         next();
         while (at(NAME)) {
             Definition definition = definition();
-            if (definition != null) definitions.add(definition);
+            for (Definition string : definitions) consumer.accept(string);
+            definitions.clear();
+            if (definition != null) consumer.accept(definition);
         }
         if (!at(EOF)) error(curToken.line, curToken.col, "unexpected token "+curToken.text);
-        return definitions;
     }
     
     private Definition definition() {
@@ -41,10 +57,12 @@ public class Parser {
         definition.name = curToken.text;
         next();
         if (at(LPAREN)) {
-            definition.formals = new LinkedList<>();
+            definition.formals = new ArrayList<>();
+            definition.formalIds = new IntList();
             next();
             while (at(NAME)) {
                 definition.formals.add(curToken.text);
+                definition.formalIds.add(curToken.id);
                 next();
                 if (at(COMMA)) next();
             }
@@ -52,14 +70,14 @@ public class Parser {
                 next();
             else
                 error(curToken.line, curToken.col, "expected ), got "+curToken.text);
-            definition.statements = new LinkedList<>();
+            definition.statements = new ArrayList<>();
             statement(definition.statements);
             definition.isFunction = true;
             return definition;
         }
         else if (at(LBRACKET)) {
             next();
-            definition.ivals = new LinkedList<>();
+            definition.ivals = new ArrayList<>();
             definition.isVector = true;
             definition.size = 0;
             if (at(RBRACKET)) {
@@ -105,7 +123,7 @@ public class Parser {
             return definition;
         }
         else {
-            definition.ivals = new LinkedList<>();
+            definition.ivals = new ArrayList<>();
             if (at(SEMICOLON)) {            
             }
             else {
@@ -145,7 +163,7 @@ public class Parser {
         if (at(LBRACE)) {
             // { statement ... }
             Statement statement = new Statement(StatementType.COMPOUND, curToken.line, curToken.col);
-            statement.statements = new LinkedList<>();
+            statement.statements = new ArrayList<>(2);
             next();
             while (!at(EOF) && !at(RBRACE)) {
                 statement(statement.statements);
@@ -167,10 +185,11 @@ public class Parser {
             // auto NAME [ival], NAME [ival], ... 
             Statement statement = new Statement(StatementType.AUTO, curToken.line, curToken.col);
             next();
-            statement.exprs = new LinkedList<>();
+            statement.exprs = new ArrayList<>(1);
             while (at(NAME) && !at(EOF)) {
                 String name = curToken.text;
                 Expr expr = new Expr(ExprType.NAME, name, curToken.line, curToken.col);
+                expr.id = curToken.id;
                 next();
                 if (at(NUMBER)) {
                     expr.expr1 = expression();
@@ -192,10 +211,12 @@ public class Parser {
             // extrn NAME, NAME ...
             Statement statement = new Statement(StatementType.EXTRN, curToken.line, curToken.col);
             next();
-            statement.exprs = new LinkedList<>();
+            statement.exprs = new ArrayList<>(1);
             while (at(NAME) && !at(EOF)) {
                 String name = curToken.text;
-                statement.exprs.add(new Expr(ExprType.NAME, name, curToken.line, curToken.col));
+                Expr expr = new Expr(ExprType.NAME, name, curToken.line, curToken.col);
+                expr.id = curToken.id;
+                statement.exprs.add(expr);
                 next();
                 if (at(COMMA))
                     next();
@@ -223,9 +244,9 @@ public class Parser {
                 else {
                     next();
                 }
-                statement.exprs = new LinkedList<>();
+                statement.exprs = new ArrayList<>(1);
                 statement.exprs.add(condition);
-                statement.statements = new LinkedList<>();
+                statement.statements = new ArrayList<>(2);
                 if (!statement(statement.statements))
                     return false;
                 if (at(ELSE)) {
@@ -255,9 +276,9 @@ public class Parser {
                     error(curToken.line, curToken.col, "expected ), got "+curToken.text);
                     return false;
                 }
-                statement.exprs = new LinkedList<>();
+                statement.exprs = new ArrayList<>(1);
                 statement.exprs.add(condition);
-                statement.statements = new LinkedList<>();
+                statement.statements = new ArrayList<>(2);
                 statements.add(statement);
                 return statement(statement.statements);
             }
@@ -269,8 +290,8 @@ public class Parser {
         else if (at(SWITCH)) {
             // switch ( expr ) statement
             Statement statement = new Statement(StatementType.SWITCH, curToken.line, curToken.col);
-            statement.exprs = new LinkedList<>();
-            statement.statements = new LinkedList<>();
+            statement.exprs = new ArrayList<>(1);
+            statement.statements = new ArrayList<>(2);
             next();
             statement.exprs.add(expression());
             statements.add(statement);            
@@ -279,7 +300,7 @@ public class Parser {
         else if (at(CASE)) {
             // case constant :
             Statement statement = new Statement(StatementType.CASE, curToken.line, curToken.col);
-            statement.exprs = new LinkedList<>();
+            statement.exprs = new ArrayList<>(1);
             next();
             if (at(NUMBER)) {
                 statement.exprs.add(new Expr(ExprType.NUMBER, curToken.number, curToken.line, curToken.col));
@@ -328,7 +349,7 @@ public class Parser {
                 else
                     error(curToken.line, curToken.col, "expected ), got "+curToken.text);
                 
-                statement.exprs = new LinkedList<>();
+                statement.exprs = new ArrayList<>(1);
                 statement.exprs.add(expr);
                 if (at(SEMICOLON))
                     next();
@@ -344,6 +365,7 @@ public class Parser {
             next();
             if (at(NAME)) {
                 statement.name = curToken.text;
+                statement.id = curToken.id;
                 next();
             }
             else {
@@ -365,6 +387,7 @@ public class Parser {
                 next();
                 Statement statement = new Statement(StatementType.LABEL, curToken.line, curToken.col);
                 statement.name = name;
+                statement.id = nameToken.id;
                 statements.add(statement);
                 statement(statements);
                 return true;
@@ -374,7 +397,7 @@ public class Parser {
                 lastToken = curToken;
                 curToken = nameToken;
                 Statement statement = new Statement(StatementType.EXPR, curToken.line, curToken.col);
-                statement.exprs = new LinkedList<>();
+                statement.exprs = new ArrayList<>(1);
                 statement.exprs.add(expression());
                 if (at(SEMICOLON))
                     next();
@@ -387,7 +410,7 @@ public class Parser {
         else {
             // expression as statement
             Statement statement = new Statement(StatementType.EXPR, curToken.line, curToken.col);
-            statement.exprs = new LinkedList<>();
+            statement.exprs = new ArrayList<>(1);
             statement.exprs.add(expression());
             if (at(SEMICOLON))
                 next();
@@ -627,6 +650,7 @@ public class Parser {
         else if (at(NAME)) {
             // name
             expr = new Expr(ExprType.NAME, curToken.text, l, c);
+            expr.id = curToken.id;
             next();
         }
         else if (at(NUMBER)) {
@@ -659,7 +683,7 @@ public class Parser {
                 // expr ( expr , expr, ... )
                 next();
                 expr = new Expr(ExprType.APP, expr, l, c);
-                expr.args = new LinkedList<>();
+                expr.args = new ArrayList<>(2);
                 if (!at(RPAREN)) while (!at(EOF)) {
                     Expr arg = expression();
                     if (arg != null) expr.args.add(arg);
@@ -684,11 +708,8 @@ public class Parser {
         Definition definition = new Definition(line, col);
         definition.name = name;
         definition.isString = true;
-        definition.ivals = new LinkedList<>();
-        for (int i : token.string) {
-            definition.ivals.add(new Token(NUMBER, i, token.line, token.col));
-        }
-        definition.size = definition.ivals.size();
+        definition.string = token.string;
+        definition.size = definition.string.length;
         definitions.add(definition);
         return expr;
     }
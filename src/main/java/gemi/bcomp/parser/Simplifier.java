@@ -0,0 +1,269 @@
+package gemi.bcomp.parser;
+
+import static gemi.bcomp.utilities.Utilities.isNotEmpty;
+
+import java.util.List;
+
+import gemi.bcomp.parser.Statement.StatementType;
+
+/**
+ * Simplifies the syntax tree of a definition before code is generated.
+ * <p>
+ * Constant subexpressions are folded, with the arithmetic of the VM,
+ * and identities like <code>x+0</code>, <code>x*1</code> and
+ * <code>x*2^k</code> (which becomes <code>x&lt;&lt;k</code>) are
+ * simplified. An <code>if</code> with a constant condition is replaced
+ * by the branch that is taken, a <code>while (0)</code> is removed and
+ * the condition of a <code>while</code> that is always true is not
+ * tested. Code is only removed if it contains no labels, cases or
+ * declarations that are visible outside of it.
+ * <p>
+ * The operators <code>&amp;</code> and <code>|</code> are not folded,
+ * since they are logical in conditions but bitwise in values, and no
+ * expression is replaced by one of them.
+ */
+public class Simplifier {
+
+    public void definition(Definition definition) {
+        if (definition.isFunction) statements(definition.statements);
+    }
+
+    private void statements(List<Statement> statements) {
+        if (statements == null) return;
+        for (int i = 0; i < statements.size(); i++) {
+            statements.set(i, statement(statements.get(i)));
+        }
+    }
+
+    private Statement statement(Statement statement) {
+        switch (statement.type) {
+        case AUTO:
+            for (Expr expr : statement.exprs) {
+                if (expr.expr1 != null) expr.expr1 = expr(expr.expr1);
+            }
+            return statement;
+        case EXPR:
+        case RETURN:
+        case SWITCH:
+            if (statement.exprs != null) statement.exprs.set(0, expr(statement.exprs.get(0)));
+            statements(statement.statements);
+            return statement;
+        case COMPOUND:
+            statements(statement.statements);
+            return statement;
+        case IF:
+            statement.exprs.set(0, expr(statement.exprs.get(0)));
+            statements(statement.statements);
+            Expr condition = statement.exprs.get(0);
+            if (condition.op == ExprType.NUMBER) {
+                // only the first two statements are branches
+                Statement taken = null;
+                if (condition.number != 0)
+                    taken = statement.statements.get(0);
+                else if (statement.statements.size() == 2)
+                    taken = statement.statements.get(1);
+                for (Statement st : statement.statements) {
+                    if (st != taken && !removable(st, false)) return statement;
+                }
+                return taken != null ? taken : new Statement(StatementType.NULL, statement.line, statement.col);
+            }
+            return statement;
+        case WHILE:
+            statement.exprs.set(0, expr(statement.exprs.get(0)));
+            statements(statement.statements);
+            condition = statement.exprs.get(0);
+            if (condition.op == ExprType.NUMBER) {
+                if (condition.number != 0) {
+                    // loop without a condition
+                    statement.exprs = null;
+                }
+                else if (removable(statement, false)) {
+                    return new Statement(StatementType.NULL, statement.line, statement.col);
+                }
+            }
+            return statement;
+        default:
+            return statement;
+        }
+    }
+
+    /**
+     * Whether the statement can be removed, which is the case if no
+     * label or case is defined in it, and, unless it is in a compound
+     * statement, no name is declared in it.
+     */
+    private boolean removable(Statement statement, boolean compound) {
+        if (statement.type == StatementType.COMPOUND) compound = true;
+        switch (statement.type) {
+        case LABEL:
+        case CASE:
+            return false;
+        case AUTO:
+        case EXTRN:
+            return compound;
+        default:
+            if (isNotEmpty(statement.statements)) {
+                for (Statement st : statement.statements) {
+                    if (!removable(st, compound)) return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the simplified expression, which may be the same one.
+     */
+    private Expr expr(Expr expr) {
+        if (expr.expr1 != null) expr.expr1 = expr(expr.expr1);
+        if (expr.expr2 != null) expr.expr2 = expr(expr.expr2);
+        if (expr.expr3 != null) expr.expr3 = expr(expr.expr3);
+        if (expr.args != null) {
+            for (int i = 0; i < expr.args.size(); i++) {
+                expr.args.set(i, expr(expr.args.get(i)));
+            }
+        }
+        Expr e1 = expr.expr1, e2 = expr.expr2;
+        switch (expr.op) {
+        case GROUP:
+            if (isNumber(e1)) return e1;
+            break;
+        case NEG:
+            if (isNumber(e1)) return number(expr, -e1.number);
+            break;
+        case NOT:
+            if (isNumber(e1)) return number(expr, e1.number == 0 ? 1 : 0);
+            break;
+        case COMPL:
+            if (isNumber(e1)) return number(expr, ~e1.number);
+            break;
+        case COND:
+            if (isNumber(e1)) return operand(expr, e1.number != 0 ? e2 : expr.expr3);
+            break;
+        case PLUS:
+            if (isNumber(e1) && isNumber(e2)) return number(expr, e1.number+e2.number);
+            if (isNumber(e2, 0)) return operand(expr, e1);
+            if (isNumber(e1, 0)) return operand(expr, e2);
+            return offset(expr, e1, e2.number, isNumber(e2));
+        case MINUS:
+            if (isNumber(e1) && isNumber(e2)) return number(expr, e1.number-e2.number);
+            if (isNumber(e2, 0)) return operand(expr, e1);
+            if (isNumber(e1, 0)) return new Expr(ExprType.NEG, e2, expr.line, expr.col);
+            return offset(expr, e1, -e2.number, isNumber(e2));
+        case MUL:
+            if (isNumber(e1) && isNumber(e2)) return number(expr, e1.number*e2.number);
+            if (isNumber(e2, 1)) return operand(expr, e1);
+            if (isNumber(e1, 1)) return operand(expr, e2);
+            if (isNumber(e2) && power(e2.number) > 0) return shift(expr, e1, power(e2.number));
+            if (isNumber(e1) && power(e1.number) > 0) return shift(expr, e2, power(e1.number));
+            break;
+        case DIV:
+            if (isNumber(e1) && isNumber(e2) && e2.number != 0) return number(expr, e1.number/e2.number);
+            if (isNumber(e2, 1)) return operand(expr, e1);
+            break;
+        case MOD:
+            if (isNumber(e1) && isNumber(e2) && e2.number != 0) return number(expr, e1.number%e2.number);
+            break;
+        case LSHIFT:
+            if (isNumber(e1) && isNumber(e2)) return number(expr, lshift(e1.number, e2.number));
+            if (isNumber(e2, 0)) return operand(expr, e1);
+            break;
+        case RSHIFT:
+            if (isNumber(e1) && isNumber(e2)) return number(expr, lshift(e1.number, -e2.number));
+            if (isNumber(e2, 0)) return operand(expr, e1);
+            break;
+        case XOR:
+            if (isNumber(e1) && isNumber(e2)) return number(expr, e1.number^e2.number);
+            if (isNumber(e2, 0)) return operand(expr, e1);
+            if (isNumber(e1, 0)) return operand(expr, e2);
+            break;
+        case EQUALS:
+            if (isNumber(e1) && isNumber(e2)) return truth(expr, e1.number == e2.number);
+            break;
+        case NEQUALS:
+            if (isNumber(e1) && isNumber(e2)) return truth(expr, e1.number != e2.number);
+            break;
+        // compared by the sign of the difference, which wraps around,
+        // as in the generated code
+        case LT:
+            if (isNumber(e1) && isNumber(e2)) return truth(expr, e2.number-e1.number > 0);
+            break;
+        case LE:
+            if (isNumber(e1) && isNumber(e2)) return truth(expr, e2.number-e1.number >= 0);
+            break;
+        case GT:
+            if (isNumber(e1) && isNumber(e2)) return truth(expr, e2.number-e1.number < 0);
+            break;
+        case GE:
+            if (isNumber(e1) && isNumber(e2)) return truth(expr, e2.number-e1.number <= 0);
+            break;
+        default:
+            break;
+        }
+        return expr;
+    }
+
+    /**
+     * Combines the constant of <code>expr1</code>, if it is itself
+     * a sum or difference with a constant, and <code>offset</code>,
+     * which is added to it.
+     */
+    private Expr offset(Expr expr, Expr expr1, int offset, boolean constant) {
+        if (!constant) return expr;
+        if ((expr1.op == ExprType.PLUS || expr1.op == ExprType.MINUS) && isNumber(expr1.expr2)) {
+            int n = (expr1.op == ExprType.PLUS ? expr1.expr2.number : -expr1.expr2.number)+offset;
+            if (n == 0) return operand(expr, expr1.expr1);
+            ExprType op = n > 0 || n == Integer.MIN_VALUE ? ExprType.PLUS : ExprType.MINUS;
+            return new Expr(op, expr1.expr1, number(expr, op == ExprType.PLUS ? n : -n), expr.line, expr.col);
+        }
+        return expr;
+    }
+
+    /**
+     * Returns <code>operand</code> in place of <code>expr</code>,
+     * unless it is a <code>&amp;</code> or <code>|</code>.
+     */
+    private Expr operand(Expr expr, Expr operand) {
+        if (operand.op == ExprType.AND || operand.op == ExprType.OR) return expr;
+        return operand;
+    }
+
+    private Expr shift(Expr expr, Expr operand, int k) {
+        if (operand.op == ExprType.AND || operand.op == ExprType.OR) return expr;
+        return new Expr(ExprType.LSHIFT, operand, number(expr, k), expr.line, expr.col);
+    }
+
+    private static Expr number(Expr expr, int n) {
+        return new Expr(ExprType.NUMBER, n, expr.line, expr.col);
+    }
+
+    private static Expr truth(Expr expr, boolean b) {
+        return number(expr, b ? 1 : 0);
+    }
+
+    private static boolean isNumber(Expr expr) {
+        return expr != null && expr.op == ExprType.NUMBER;
+    }
+
+    private static boolean isNumber(Expr expr, int n) {
+        return isNumber(expr) && expr.number == n;
+    }
+
+    /**
+     * Returns k if n = 2^k with 0 < k < 31, otherwise 0.
+     */
+    private static int power(int n) {
+        if (n > 1 && (n & (n-1)) == 0) {
+            int k = Integer.numberOfTrailingZeros(n);
+            if (k < 31) return k;
+        }
+        return 0;
+    }
+
+    /**
+     * Shifts as the VM does, to the right if <code>b</code> is negative.
+     */
+    private static int lshift(int a, int b) {
+        return b > 0 ? a << b : a >> -b;
+    }
+}
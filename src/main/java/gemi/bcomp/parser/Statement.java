@@ -26,6 +26,8 @@ public class Statement {
     public List<Statement> statements = null;
     public List<Expr> exprs = null;
     public String name = null;
+    // the id of the name in the name table
+    public int id = -1;
 
     public int line = 0;
     public int col = 0;
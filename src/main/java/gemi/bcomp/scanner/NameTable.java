@@ -0,0 +1,92 @@
+package gemi.bcomp.scanner;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Interns the names of a source file. Each distinct name is created as
+ * a <code>String</code> once and gets an id, counting from 0, which the
+ * compiler uses in place of the name.
+ * <p>
+ * The names are found by open addressing on their hash code, which is
+ * computed from the bytes of the source as <code>String.hashCode</code>
+ * computes it from the characters.
+ */
+public class NameTable {
+
+    // id+1 of the name in each slot, 0 if empty
+    private int[] slots = new int[256];
+    private String[] names = new String[128];
+    private int[] hashes = new int[128];
+    private int count = 0;
+
+    /**
+     * Returns the id of the name in <code>bytes[start..start+length-1]</code>.
+     */
+    public int intern(byte[] bytes, int start, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) hash = 31*hash+(bytes[start+i] & 0xFF);
+        int mask = slots.length-1;
+        for (int i = mix(hash) & mask; ; i = (i+1) & mask) {
+            int id = slots[i]-1;
+            if (id < 0) return add(i, new String(bytes, start, length, StandardCharsets.ISO_8859_1), hash);
+            if (hashes[id] == hash && equals(names[id], bytes, start, length)) return id;
+        }
+    }
+
+    /**
+     * Returns the id of <code>name</code>.
+     */
+    public int intern(String name) {
+        int hash = name.hashCode();
+        int mask = slots.length-1;
+        for (int i = mix(hash) & mask; ; i = (i+1) & mask) {
+            int id = slots[i]-1;
+            if (id < 0) return add(i, name, hash);
+            if (hashes[id] == hash && names[id].equals(name)) return id;
+        }
+    }
+
+    public String name(int id) {
+        return names[id];
+    }
+
+    public int size() {
+        return count;
+    }
+
+    private int add(int slot, String name, int hash) {
+        if (count == names.length) {
+            names = Arrays.copyOf(names, 2*count);
+            hashes = Arrays.copyOf(hashes, 2*count);
+        }
+        names[count] = name;
+        hashes[count] = hash;
+        slots[slot] = ++count;
+        // at most half full
+        if (2*count > slots.length) rehash();
+        return count-1;
+    }
+
+    private void rehash() {
+        slots = new int[2*slots.length];
+        int mask = slots.length-1;
+        for (int id = 0; id < count; id++) {
+            int i = mix(hashes[id]) & mask;
+            while (slots[i] != 0) i = (i+1) & mask;
+            slots[i] = id+1;
+        }
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean equals(String name, byte[] bytes, int start, int length) {
+        if (name.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != (bytes[start+i] & 0xFF)) return false;
+        }
+        return true;
+    }
+}
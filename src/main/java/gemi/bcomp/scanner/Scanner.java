@@ -2,14 +2,20 @@ package gemi.bcomp.scanner;
 
 import static gemi.bcomp.scanner.TokenType.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 
 import gemi.bcomp.utilities.ErrorHandler;
 
+/**
+ * Splits B source into tokens. The whole source is held in memory as
+ * bytes, and names are interned in <code>names</code> directly from it.
+ */
 public class Scanner {
     
     public final static int NUL = 0x00;
@@ -21,20 +27,46 @@ public class Scanner {
     public final static int STRING_QUOTE = '\"';
 
     private ErrorHandler errorHandler;
-    private InputStream in;
+    // the source and the position after ch
+    private byte[] source;
+    private int pos = 0;
     private int col = -1;
     private int line = 0;
     private int ch;
     
     public boolean kernighan = false;
-        
-    private final static Map<String,TokenType> keywords = new HashMap<>();
+    // the names of the source, starting with the keywords
+    public NameTable names = new NameTable();
+    // keywords by id
+    private TokenType[] keywords;
 
-    public Scanner(InputStream in, ErrorHandler errorHandler) throws IOException {
-        this.in = in;
+    public Scanner(byte[] source, ErrorHandler errorHandler) {
+        this.source = source;
         this.errorHandler = errorHandler;
+        List<TokenType> types = new ArrayList<>();
+        for (TokenType tokenType : TokenType.values()) {
+            if (tokenType.keyword) {
+                names.intern(tokenType.name);
+                types.add(tokenType);
+            }
+        }
+        keywords = types.toArray(new TokenType[types.size()]);
         nextChar();
     }
+
+    /**
+     * A scanner of the rest of <code>in</code>, which is read at once.
+     */
+    public Scanner(InputStream in, ErrorHandler errorHandler) throws IOException {
+        this(readAll(in), errorHandler);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] b = new byte[65536];
+        for (int n; (n = in.read(b)) > 0; ) out.write(b, 0, n);
+        return out.toByteArray();
+    }
     
     public Token next() {
         while (true) {
@@ -207,22 +239,20 @@ public class Scanner {
 
             // identifiers and keywords
             if (isNameStartingCharacter(ch)) {
-                StringBuilder buf = new StringBuilder();
-                buf.append((char)ch);
+                int start = pos-1;
                 nextChar();
-                while (isNameCharacter(ch)) {                
-                    buf.append((char)ch);
-                    nextChar();
-                }
-                String text = buf.toString();
+                while (isNameCharacter(ch)) nextChar();
+                int length = ((ch < 0)?pos:pos-1)-start;
                 int maxlength = 31;
-                if (text.length() > maxlength) {
+                if (length > maxlength) {
+                    String text = new String(source, start, length, StandardCharsets.ISO_8859_1);
                     error(cur_line, cur_col, "identifier '"+text+"' too long, truncated to "+maxlength+" characters");
-                    text = text.substring(0, maxlength);
+                    length = maxlength;
                 }
-                
-                Token token = new Token(TokenType.NAME, text, cur_line, cur_col);
-                lookupKeyword(token);
+                int id = names.intern(source, start, length);
+                TokenType type = (id < keywords.length)?keywords[id]:NAME;
+                Token token = new Token(type, names.name(id), cur_line, cur_col);
+                token.id = id;
                 return token;
             }
     
@@ -321,8 +351,8 @@ public class Scanner {
     }
     
     private void nextChar() {
-        try {
-            ch = in.read();
+        if (pos < source.length) {
+            ch = source[pos++] & 0xFF;
             if (ch == '\n') {
                 col = -1;
                 line++;
@@ -330,9 +360,10 @@ public class Scanner {
             else {
                 col++;
             }
-        } catch (IOException e) {
-            error(line, col, "I/O");
+        }
+        else {
             ch = -1;
+            col++;
         }
     }
     
@@ -359,11 +390,6 @@ public class Scanner {
         return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9') || (ch == '_');
     }
     
-    private static final void lookupKeyword(Token token) {
-        TokenType tokenType = keywords.get(token.text);
-        if (tokenType != null) token.type = tokenType;
-    }
-    
     private final int escapeChar(int ch) {
         switch (ch) {
         case '0':
@@ -399,10 +425,4 @@ public class Scanner {
         }
         return ch;
     }
-    
-    static {
-        for (TokenType tokenType : TokenType.values()) {
-            if (tokenType.keyword) keywords.put(tokenType.name, tokenType);
-        }
-    }
 }
@@ -8,6 +8,8 @@ public class Token {
     
     // names
     public String text = null;
+    // the id of a name in the name table
+    public int id = -1;
     // literal string (as array of words)
     public int[] string = null;
     // literal for integers or characters
@@ -0,0 +1,45 @@
+package gemi.bcomp.utilities;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of <code>int</code> values, without boxing.
+ */
+public class IntList {
+
+    private int[] values;
+    private int size = 0;
+
+    public IntList() {
+        values = new int[8];
+    }
+
+    /**
+     * A list of the values in <code>values</code>, which is not copied.
+     */
+    public IntList(int[] values) {
+        this.values = values;
+        this.size = values.length;
+    }
+
+    public void add(int value) {
+        if (size == values.length) values = Arrays.copyOf(values, Math.max(8, 2*size));
+        values[size++] = value;
+    }
+
+    public int get(int i) {
+        return values[i];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+}
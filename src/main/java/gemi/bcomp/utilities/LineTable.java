@@ -0,0 +1,204 @@
+package gemi.bcomp.utilities;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps code addresses to source file lines.
+ * <p>
+ * The table is stored as one entry for each address where the source
+ * line changes, in the order of addresses. Each entry consists of the
+ * differences of address, file index and line to the previous entry,
+ * as zigzag-encoded variable-length integers (7 bits per byte, lowest
+ * first). In object files and text executables the bytes are written
+ * in hex. A table read from a file is only decoded when first used,
+ * which is safe while it is shared by several threads.
+ * Line 0 marks code without source lines.
+ */
+public class LineTable {
+
+    public List<String> files = new ArrayList<>();
+
+    // decoded entries, null until decoded, adrs is set last
+    private volatile int[] adrs = null;
+    private int[] fileIndexes = null;
+    private int[] lines = null;
+    private int count = 0;
+
+    // encoded entries of a table read from a file
+    private String hex = null;
+    private ByteBuffer buf = null;
+
+    public LineTable() {
+        adrs = new int[64];
+        fileIndexes = new int[64];
+        lines = new int[64];
+    }
+
+    /**
+     * A table with the entries encoded in hex.
+     */
+    public LineTable(List<String> files, String hex) {
+        this.files.addAll(files);
+        this.hex = hex;
+    }
+
+    /**
+     * A table with the encoded entries in <code>buf</code>.
+     */
+    public LineTable(List<String> files, ByteBuffer buf) {
+        this.files.addAll(files);
+        this.buf = buf;
+    }
+
+    public int size() {
+        decode();
+        return count;
+    }
+
+    /**
+     * Adds an entry at an address not before the last entry, which
+     * replaces the last entry at the same address.
+     */
+    public void add(int adr, int file, int line) {
+        decode();
+        if (count > 0 && adrs[count-1] == adr) count--;
+        if (count > 0 && fileIndexes[count-1] == file && lines[count-1] == line) return;
+        if (count == adrs.length) {
+            adrs = Arrays.copyOf(adrs, 2*count);
+            fileIndexes = Arrays.copyOf(fileIndexes, 2*count);
+            lines = Arrays.copyOf(lines, 2*count);
+        }
+        adrs[count] = adr;
+        fileIndexes[count] = file;
+        lines[count] = line;
+        count++;
+    }
+
+    /**
+     * Adds the entries of <code>table</code> with the addresses moved by
+     * <code>offset</code>.
+     */
+    public void append(LineTable table, int offset) {
+        table.decode();
+        int[] index = new int[table.files.size()];
+        for (int f = 0; f < index.length; f++) {
+            String file = table.files.get(f);
+            index[f] = files.indexOf(file);
+            if (index[f] < 0) {
+                index[f] = files.size();
+                files.add(file);
+            }
+        }
+        for (int i = 0; i < table.count; i++) {
+            add(table.adrs[i]+offset, index[table.fileIndexes[i]], table.lines[i]);
+        }
+    }
+
+    /**
+     * Returns <code>file:line</code> of the address, or
+     * <code>null</code> if it is not known.
+     */
+    public String lookup(int adr) {
+        decode();
+        int lo = 0, hi = count-1, found = -1;
+        while (lo <= hi) {
+            int mid = (lo+hi) >>> 1;
+            if (adrs[mid] <= adr) {
+                found = mid;
+                lo = mid+1;
+            }
+            else {
+                hi = mid-1;
+            }
+        }
+        if (found < 0 || lines[found] == 0 || fileIndexes[found] >= files.size()) return null;
+        return files.get(fileIndexes[found])+":"+lines[found];
+    }
+
+    public byte[] encode() {
+        decode();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int adr = 0, file = 0, line = 0;
+        for (int i = 0; i < count; i++) {
+            writeVarint(out, adrs[i]-adr);
+            writeVarint(out, fileIndexes[i]-file);
+            writeVarint(out, lines[i]-line);
+            adr = adrs[i];
+            file = fileIndexes[i];
+            line = lines[i];
+        }
+        return out.toByteArray();
+    }
+
+    public String encodeHex() {
+        StringBuilder s = new StringBuilder();
+        for (byte b : encode()) {
+            s.append(Character.forDigit((b >> 4) & 0xF, 16));
+            s.append(Character.forDigit(b & 0xF, 16));
+        }
+        return s.toString().toUpperCase();
+    }
+
+    private void decode() {
+        if (adrs != null) return;
+        synchronized (this) {
+            if (adrs != null) return;
+            ByteBuffer in = buf != null ? buf.duplicate() : null;
+            if (hex != null) {
+                byte[] bytes = new byte[hex.length()/2];
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = (byte)Integer.parseInt(hex.substring(2*i, 2*i+2), 16);
+                }
+                in = ByteBuffer.wrap(bytes);
+            }
+            // filled before adrs is published
+            int[] a = new int[64], f = new int[64], l = new int[64];
+            int n = 0;
+            int adr = 0, file = 0, line = 0;
+            while (in != null && in.hasRemaining()) {
+                adr += readVarint(in);
+                file += readVarint(in);
+                line += readVarint(in);
+                if (n == a.length) {
+                    a = Arrays.copyOf(a, 2*n);
+                    f = Arrays.copyOf(f, 2*n);
+                    l = Arrays.copyOf(l, 2*n);
+                }
+                a[n] = adr;
+                f[n] = file;
+                l[n] = line;
+                n++;
+            }
+            fileIndexes = f;
+            lines = l;
+            count = n;
+            hex = null;
+            buf = null;
+            adrs = a;
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int n) {
+        // zigzag
+        int v = (n << 1) ^ (n >> 31);
+        while ((v & ~0x7F) != 0) {
+            out.write((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int v = 0;
+        for (int shift = 0; in.hasRemaining(); shift += 7) {
+            int b = in.get();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+        }
+        return (v >>> 1) ^ -(v & 1);
+    }
+}
@@ -0,0 +1,15 @@
+package gemi.bcomp.vm;
+
+/**
+ * Code translated from VM instructions to JVM bytecode.
+ */
+public interface Compiled {
+
+    /**
+     * Executes from instruction pointer <code>ip</code>, which must be one
+     * of the entry points of the compiled code, and returns the
+     * instruction pointer where the interpreter has to continue.
+     * Registers are read from and written back to <code>vm.regs</code>.
+     */
+    int exec(VM vm, int ip);
+}
@@ -0,0 +1,335 @@
+package gemi.bcomp.vm;
+
+import static gemi.bcomp.utilities.Utilities.*;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import gemi.bcomp.utilities.LineTable;
+
+/**
+ * An executable file as generated by the linker.
+ * <p>
+ * There are two formats, both starting with a <code>#!</code> line.
+ * The text format has directive lines and one hex word per line.
+ * In the binary format the line is followed by zero bytes up to a
+ * multiple of 4, and then little-endian words: <code>MAGIC</code>,
+ * the header length in words, memsize, data, the entry point, the
+ * location and size of the function pointer table, the number of code
+ * words, and the locations (in words from <code>MAGIC</code>, 0 if
+ * missing) of the symbol and line sections. The code words follow the
+ * header.
+ * <p>
+ * The symbol section contains the number of symbols, and for each
+ * symbol its address and name. The line section contains the number of
+ * source files and their names, and the encoded <code>LineTable</code>.
+ * Names and the table are given by their length in bytes and the
+ * bytes, padded with zero bytes to a multiple of 4.
+ */
+public class Executable {
+
+    // "BEXE" as little-endian word
+    public final static int MAGIC = 0x45584542;
+    public final static int HEADER = 10;
+
+    public int memsize = 1024*1024;
+    public int data = 0;
+    public int entry = 0;
+    // code words
+    public int[] text = null;
+    public int n = 0;
+    // location and size of the function pointer table
+    public int ftable = 0;
+    public int fcount = 0;
+    // function names by entry address
+    public NavigableMap<Integer,String> symbols = null;
+    // source lines of the code, or null
+    public LineTable lines = null;
+
+    // code words of a mapped binary executable
+    private IntBuffer image = null;
+    // symbol and line sections of a mapped binary executable
+    private ByteBuffer symbolSection = null;
+    private ByteBuffer lineSection = null;
+
+    /**
+     * Reads the executable file <code>filename</code>.
+     * Throws <code>IllegalArgumentException</code> if a directive has
+     * an illegal value.
+     */
+    public static Executable load(String filename) throws IOException {
+        MappedByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        int start = 0;
+        if (buf.remaining() > 1 && buf.get(0) == '#' && buf.get(1) == '!') {
+            while (start < buf.limit() && buf.get(start) != '\n') start++;
+            start = (start+4) & ~3;
+        }
+        if (start+32 <= buf.limit() && buf.order(ByteOrder.LITTLE_ENDIAN).getInt(start) == MAGIC) {
+            return loadBinary(buf, start);
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
+            return loadText(reader);
+        }
+    }
+
+    private static Executable loadBinary(ByteBuffer buf, int start) {
+        buf.position(start);
+        IntBuffer words = buf.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        Executable exe = new Executable();
+        int header = words.get(1);
+        exe.memsize = words.get(2);
+        exe.data = words.get(3);
+        exe.entry = words.get(4);
+        exe.ftable = words.get(5);
+        exe.fcount = words.get(6);
+        exe.n = words.get(7);
+        if (exe.memsize < 1)
+            throw new IllegalArgumentException("memsize must be positive");
+        if (header < 8 || exe.n < 0 || header+exe.n > words.limit())
+            throw new IllegalArgumentException("invalid executable");
+        checkFtable(exe);
+        words.position(header);
+        exe.image = words.slice();
+        if (header >= HEADER) {
+            exe.symbolSection = section(buf, start, words.get(8));
+            exe.lineSection = section(buf, start, words.get(9));
+        }
+        return exe;
+    }
+
+    private static ByteBuffer section(ByteBuffer buf, int start, int offset) {
+        if (offset <= 0 || start+4*offset+4 > buf.limit()) return null;
+        buf.position(start+4*offset);
+        return buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static Executable loadText(BufferedReader reader) throws IOException {
+        Executable exe = new Executable();
+        exe.text = new int[1024];
+        exe.symbols = new TreeMap<>();
+        List<String> files = new ArrayList<>();
+        String line = null;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.startsWith("#")) {
+                continue;
+            }
+            else if (line.startsWith(".memsize ")) {
+                int s = hex2int(line.substring(".memsize ".length()));
+                if (s < 1)
+                    throw new IllegalArgumentException("memsize must be positive");
+                else
+                    exe.memsize = s;
+            }
+            else if (line.startsWith(".data ")) {
+                int s = hex2int(line.substring(".data ".length()));
+                if (s < 1)
+                    throw new IllegalArgumentException("data must be positive");
+                else
+                    exe.data = s;
+            }
+            else if (line.startsWith(".ftable ")) {
+                String[] f = line.substring(".ftable ".length()).trim().split(" +");
+                exe.ftable = hex2int(f[0]);
+                exe.fcount = hex2int(f[1]);
+            }
+            else if (line.startsWith(".symbol ")) {
+                String[] f = line.substring(".symbol ".length()).trim().split(" +");
+                exe.symbols.put(hex2int(f[0]), f[1]);
+            }
+            else if (line.startsWith(".file ")) {
+                files.add(line.substring(".file ".length()).trim());
+            }
+            else if (line.startsWith(".lines ")) {
+                exe.lines = new LineTable(files, line.substring(".lines ".length()).trim());
+            }
+            else if (line.length() == 8) {
+                if (exe.n == exe.text.length) exe.text = Arrays.copyOf(exe.text, 2*exe.n);
+                exe.text[exe.n] = hex2int(line);
+                exe.n++;
+            }
+        }
+        checkFtable(exe);
+        return exe;
+    }
+
+    /**
+     * Throws <code>IllegalArgumentException</code> if the function
+     * pointer table is not inside the code.
+     */
+    private static void checkFtable(Executable exe) {
+        if (exe.ftable < 0 || exe.fcount < 0 || (long)exe.ftable+exe.fcount > exe.n)
+            throw new IllegalArgumentException("invalid executable");
+    }
+
+    /**
+     * Writes the executable in binary format with the <code>#!</code>
+     * line for <code>vmexe</code>.
+     */
+    public void write(OutputStream out, String vmexe) throws IOException {
+        byte[] line = ("#!"+vmexe+"\n").getBytes(StandardCharsets.UTF_8);
+        out.write(line);
+        for (int i = line.length; i % 4 != 0; i++) out.write(0);
+        NavigableMap<Integer,String> symbols = symbols();
+        LineTable lines = lines();
+        List<byte[]> names = new ArrayList<>();
+        for (String name : symbols.values()) names.add(name.getBytes(StandardCharsets.UTF_8));
+        List<byte[]> files = new ArrayList<>();
+        if (lines != null) {
+            for (String file : lines.files) files.add(file.getBytes(StandardCharsets.UTF_8));
+            files.add(lines.encode());
+        }
+        int symbolSize = 4*(1+symbols.size())+size(names);
+        int lineSize = (lines == null)?0:4+size(files);
+        ByteBuffer buf = ByteBuffer.allocate(4*(HEADER+n)+symbolSize+lineSize).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(MAGIC);
+        buf.putInt(HEADER);
+        buf.putInt(memsize);
+        buf.putInt(data);
+        buf.putInt(entry);
+        buf.putInt(ftable);
+        buf.putInt(fcount);
+        buf.putInt(n);
+        buf.putInt(HEADER+n);
+        buf.putInt((lines == null)?0:HEADER+n+symbolSize/4);
+        buf.asIntBuffer().put(text(), 0, n);
+        buf.position(4*(HEADER+n));
+        buf.putInt(symbols.size());
+        int i = 0;
+        for (int adr : symbols.keySet()) {
+            buf.putInt(adr);
+            put(buf, names.get(i++));
+        }
+        if (lines != null) {
+            // the file names followed by the table
+            buf.putInt(lines.files.size());
+            for (byte[] bytes : files) put(buf, bytes);
+        }
+        out.write(buf.array());
+    }
+
+    private static int size(List<byte[]> strings) {
+        int size = 0;
+        for (byte[] bytes : strings) size += 4+((bytes.length+3) & ~3);
+        return size;
+    }
+
+    private static void put(ByteBuffer buf, byte[] bytes) {
+        buf.putInt(bytes.length);
+        buf.put(bytes);
+        buf.position((buf.position()+3) & ~3);
+    }
+
+    private static byte[] get(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0 || length > buf.remaining())
+            throw new IllegalArgumentException("invalid executable");
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        buf.position((buf.position()+3) & ~3);
+        return bytes;
+    }
+
+    /**
+     * Returns the code words.
+     */
+    public int[] text() {
+        if (text == null) {
+            text = new int[n];
+            image.position(0);
+            image.get(text);
+        }
+        return text;
+    }
+
+    /**
+     * Returns the initial segment of memory with code and static data.
+     */
+    public int[] memory() {
+        int[] mem = new int[Math.min(memsize, Math.max(n, data))];
+        if (text != null) {
+            System.arraycopy(text, 0, mem, 0, n);
+        }
+        else {
+            // bulk copy from the mapped file
+            image.position(0);
+            image.get(mem, 0, n);
+        }
+        return mem;
+    }
+
+    /**
+     * Returns the function names by entry address, which are empty if
+     * the executable has no symbols.
+     */
+    public NavigableMap<Integer,String> symbols() {
+        if (symbols == null) {
+            symbols = new TreeMap<>();
+            ByteBuffer buf = symbolSection;
+            if (buf != null) {
+                buf.position(0);
+                int count = buf.getInt();
+                for (int i = 0; i < count; i++) {
+                    int adr = buf.getInt();
+                    symbols.put(adr, new String(get(buf), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return symbols;
+    }
+
+    /**
+     * Returns the source lines of the code, or <code>null</code> if the
+     * executable has none. The table is decoded when first used.
+     */
+    public LineTable lines() {
+        if (lines == null && lineSection != null) {
+            ByteBuffer buf = lineSection;
+            buf.position(0);
+            List<String> files = new ArrayList<>();
+            int count = buf.getInt();
+            for (int i = 0; i < count; i++) {
+                files.add(new String(get(buf), StandardCharsets.UTF_8));
+            }
+            int length = buf.getInt();
+            if (length < 0 || length > buf.remaining())
+                throw new IllegalArgumentException("invalid executable");
+            ByteBuffer table = buf.slice();
+            table.limit(length);
+            lines = new LineTable(files, table);
+        }
+        return lines;
+    }
+
+    /**
+     * Returns the entry addresses of the functions in the function
+     * pointer table.
+     */
+    public int[] functions() {
+        int[] text = text();
+        int[] functions = new int[fcount];
+        for (int i = 0; i < fcount; i++) {
+            functions[i] = text[ftable+i];
+        }
+        return functions;
+    }
+}
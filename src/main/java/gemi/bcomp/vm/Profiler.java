@@ -0,0 +1,194 @@
+package gemi.bcomp.vm;
+
+import static gemi.bcomp.utilities.Utilities.*;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Set;
+
+import gemi.bcomp.utilities.LineTable;
+
+/**
+ * Samples the instruction pointer and the call stack of a program every
+ * <code>period</code> instructions, and reports a flat profile, the
+ * calls between functions, the hot source lines and addresses, or the
+ * call stacks in the collapsed format read by flame graph tools.
+ * <p>
+ * A sample is taken whenever the instruction budget of the VM is used
+ * up, so that profiling costs almost nothing. Compiled code only stops
+ * at calls, returns and backward branches, where its samples are taken.
+ * The call stack is found by following the chain of frame pointers.
+ * Each function and each pair of caller and callee is counted at most
+ * once per sample. Of very deep collapsed stacks only the innermost and
+ * the outermost frames are kept, and the frames in between are replaced
+ * by <code>[truncated]</code>.
+ */
+public class Profiler {
+
+    // frames kept of deeper collapsed stacks, half at each end
+    private final static int MAX_DEPTH = 256;
+    // stands for the frames left out in between
+    private final static String TRUNCATED = "[truncated]";
+
+    // instructions between samples
+    public int period = 10007;
+    public long samples = 0;
+
+    private NavigableMap<Integer,String> symbols;
+    // source lines, or null
+    private LineTable lines;
+    // self and total samples by function
+    private Map<String,long[]> functions = new HashMap<>();
+    // samples by caller and callee
+    private Map<String,Map<String,Long>> calls = new HashMap<>();
+    // samples by call stack (outermost first, separated by ';')
+    private Map<String,Long> stacks = new HashMap<>();
+    // samples by instruction address
+    private Map<Integer,Long> addresses = new HashMap<>();
+
+    public Profiler(NavigableMap<Integer,String> symbols, LineTable lines) {
+        this.symbols = symbols;
+        this.lines = lines;
+    }
+
+    /**
+     * Runs the program from <code>entry</code> and takes samples.
+     */
+    public VMResult run(VM vm, int entry) {
+        vm.start(entry);
+        VMResult res;
+        while ((res = vm.resume(period)) == VMResult.BUDGET_EXHAUSTED) {
+            sample(vm);
+        }
+        return res;
+    }
+
+    /**
+     * Records the current instruction and call stack of the VM.
+     */
+    public void sample(VM vm) {
+        samples++;
+        addresses.merge(vm.IP, 1L, Long::sum);
+        // innermost function first
+        List<String> stack = new ArrayList<>();
+        stack.add(function(vm.IP));
+        int fp = vm.regs[VM.FP];
+        while (fp > vm.regs[VM.SP] && fp < vm.memsize-1) {
+            // return address and frame pointer of the caller
+            stack.add(function(vm.peek(fp)-1));
+            int next = vm.peek(fp+1);
+            if (next <= fp) break;
+            fp = next;
+        }
+
+        functions.computeIfAbsent(stack.get(0), f -> new long[2])[0]++;
+        Set<String> seen = new HashSet<>();
+        for (String f : stack) {
+            if (seen.add(f)) functions.computeIfAbsent(f, k -> new long[2])[1]++;
+        }
+        Set<String> edges = new HashSet<>();
+        for (int i = 0; i+1 < stack.size(); i++) {
+            String caller = stack.get(i+1);
+            String callee = stack.get(i);
+            if (edges.add(caller+"\0"+callee)) {
+                calls.computeIfAbsent(caller, f -> new HashMap<>()).merge(callee, 1L, Long::sum);
+            }
+        }
+        if (stack.size() > MAX_DEPTH) {
+            // keep the innermost and the outermost frames
+            List<String> kept = new ArrayList<>(stack.subList(0, MAX_DEPTH/2));
+            kept.add(TRUNCATED);
+            kept.addAll(stack.subList(stack.size()-MAX_DEPTH/2, stack.size()));
+            stack = kept;
+        }
+        StringBuilder collapsed = new StringBuilder();
+        for (int i = stack.size()-1; i >= 0; i--) {
+            collapsed.append(stack.get(i));
+            if (i > 0) collapsed.append(';');
+        }
+        stacks.merge(collapsed.toString(), 1L, Long::sum);
+    }
+
+    /**
+     * Returns the name of the function containing <code>adr</code>.
+     */
+    public String function(int adr) {
+        Entry<Integer,String> symbol = symbols.floorEntry(adr);
+        return symbol == null?int2hex(adr):symbol.getValue();
+    }
+
+    /**
+     * Writes the flat profile, the call graph, the hot source lines
+     * and the hot addresses.
+     */
+    public void report(PrintStream out) {
+        out.println("Flat profile: "+samples+" samples, every "+period+" instructions");
+        out.println("   self%  total%  function");
+        List<Entry<String,long[]>> flat = new ArrayList<>(functions.entrySet());
+        flat.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+        for (Entry<String,long[]> f : flat) {
+            out.format("  %6.2f  %6.2f  %s%n", percent(f.getValue()[0]), percent(f.getValue()[1]), f.getKey());
+        }
+
+        out.println();
+        out.println("Call graph: samples in callee called from caller");
+        List<String> callers = new ArrayList<>(calls.keySet());
+        callers.sort(null);
+        for (String caller : callers) {
+            out.println("  "+caller);
+            List<Entry<String,Long>> callees = new ArrayList<>(calls.get(caller).entrySet());
+            callees.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+            for (Entry<String,Long> callee : callees) {
+                out.format("    %8d  %s%n", callee.getValue(), callee.getKey());
+            }
+        }
+
+        if (lines != null) {
+            Map<String,Long> bySource = new HashMap<>();
+            for (Entry<Integer,Long> a : addresses.entrySet()) {
+                String line = lines.lookup(a.getKey());
+                if (line != null) bySource.merge(line+"  "+function(a.getKey()), a.getValue(), Long::sum);
+            }
+            out.println();
+            out.println("Hot lines:");
+            List<Entry<String,Long>> hot = new ArrayList<>(bySource.entrySet());
+            hot.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+            for (int i = 0; i < hot.size() && i < 20; i++) {
+                out.format("  %6.2f  %s%n", percent(hot.get(i).getValue()), hot.get(i).getKey());
+            }
+        }
+
+        out.println();
+        out.println("Hot addresses:");
+        List<Entry<Integer,Long>> hot = new ArrayList<>(addresses.entrySet());
+        hot.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        for (int i = 0; i < hot.size() && i < 20; i++) {
+            int adr = hot.get(i).getKey();
+            String line = (lines == null)?null:lines.lookup(adr);
+            out.format("  %s  %6.2f  %s%s%n", int2hex(adr), percent(hot.get(i).getValue()), function(adr),
+                       (line == null)?"":"  "+line);
+        }
+    }
+
+    /**
+     * Writes one line per call stack with the functions from the
+     * outermost one, separated by <code>;</code>, and the number of samples.
+     */
+    public void collapsed(PrintStream out) {
+        List<String> keys = new ArrayList<>(stacks.keySet());
+        keys.sort(null);
+        for (String stack : keys) {
+            out.println(stack+" "+stacks.get(stack));
+        }
+    }
+
+    private double percent(long n) {
+        return samples == 0?0:100.0*n/samples;
+    }
+}
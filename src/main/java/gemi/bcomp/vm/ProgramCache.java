@@ -0,0 +1,84 @@
+package gemi.bcomp.vm;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Keeps executables loaded and pre-decoded, so that running the same
+ * file again does not read and decode it again. An entry is loaded
+ * again when the modification time or size of the file has changed.
+ * At most <code>maxPrograms</code> programs are kept, and those least
+ * recently used are dropped first.
+ * <p>
+ * The VMs of a program share its initial memory image until they
+ * write to it.
+ */
+public class ProgramCache {
+
+    /**
+     * A loaded executable.
+     */
+    public static class Program {
+        public final int entry;
+        private final long modified;
+        private final long length;
+        // never run, only copied
+        private final VM prototype;
+
+        private Program(Executable exe, long modified, long length) {
+            this.entry = exe.entry;
+            this.modified = modified;
+            this.length = length;
+            prototype = new VM(exe.memory(), exe.memsize, exe.data);
+            prototype.predecode(exe.n);
+            prototype.lines = exe.lines();
+        }
+
+        /**
+         * Returns a new VM ready to run the program at <code>entry</code>.
+         */
+        public VM instantiate() {
+            return new VM(prototype);
+        }
+    }
+
+    // maximal number of programs kept
+    public int maxPrograms = 32;
+
+    // in access order, least recently used first
+    private Map<String,Program> programs = new LinkedHashMap<String,Program>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Entry<String,Program> eldest) {
+            return size() > maxPrograms;
+        }
+    };
+
+    /**
+     * Returns the program in the executable file <code>filename</code>.
+     * Throws <code>IllegalArgumentException</code> if a directive has
+     * an illegal value.
+     */
+    public Program load(String filename) throws IOException {
+        File file = new File(filename).getCanonicalFile();
+        String key = file.getPath();
+        long modified = file.lastModified();
+        long length = file.length();
+        synchronized (this) {
+            Program program = programs.get(key);
+            if (program != null && program.modified == modified && program.length == length)
+                return program;
+        }
+        Program program = new Program(Executable.load(filename), modified, length);
+        synchronized (this) {
+            programs.put(key, program);
+        }
+        return program;
+    }
+
+    public synchronized void clear() {
+        programs.clear();
+    }
+}
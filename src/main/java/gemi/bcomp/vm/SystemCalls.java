@@ -2,28 +2,52 @@ package gemi.bcomp.vm;
 
 import static gemi.bcomp.scanner.Scanner.EOT;
 import static gemi.bcomp.utilities.Utilities.string2words;
+import static gemi.bcomp.vm.VMResult.HALTED;
 import static gemi.bcomp.vm.VMResult.OK;
 import static gemi.bcomp.vm.VMResult.UNDEFINED_SYSTEM_CALL;
 import static gemi.bcomp.vm.VMResult.UNSUPPORTED_SYSTEM_CALL;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
-import java.io.RandomAccessFile;
 import java.lang.ProcessBuilder.Redirect;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Implementation of most library functions via system calls.
+ * <p>
+ * Files, including standard input and output, are buffered. Standard
+ * output is flushed when the program ends, before standard input is
+ * read, and by <code>flush()</code>.
  */
 public class SystemCalls {
 
+    private final static int BUFSIZE = 65536;
+    // largest part of a file mapped by one buffer
+    private final static int MAP_CHUNK = 1 << 30;
+    
     private VM vm;
-    private String cwd = System.getProperty("user.dir");
-    private RandomAccessFile[] openfiles = new RandomAccessFile[20];
+    private OpenFile[] openfiles = new OpenFile[20];
+    // buffers of the standard streams, created when first used
+    private OpenFile in = null;
+    private OpenFile out = null;
+    private OpenFile err = null;
     
+    // working directory, relative file names are resolved against it
+    public String cwd = System.getProperty("user.dir");
     public PrintStream stdout = System.out;
+    public PrintStream stderr = System.err;
     public InputStream stdin = System.in;
     private List<String> argv = null;
     
@@ -35,6 +59,14 @@ public class SystemCalls {
         this.argv = argv;
     }
     
+    /**
+     * Whether system call <code>sys</code> ends the program
+     * when successful.
+     */
+    public static boolean terminates(int sys) {
+        return sys == 8 || sys == 9;
+    }
+    
     public VMResult syscall(int sys) {
         switch (sys) {
         case 1:
@@ -65,12 +97,10 @@ public class SystemCalls {
             return OK;
         case 8:
             // execl(string, arg0, arg1, ..., 0)
-            execl();
-            return OK;
+            return execl();
         case 9:
             // execv(string, argv, count)
-            execv();
-            return OK;
+            return execv();
         case 11:
             // error = fork()
             return UNSUPPORTED_SYSTEM_CALL;
@@ -112,7 +142,7 @@ public class SystemCalls {
             return OK;
         case 22:
             // putchar(char)
-            outchar(stdout, arg(1));
+            outchar(arg(1));
             return OK;
         case 23:
             // nread = read(file, buffer, count)
@@ -150,6 +180,14 @@ public class SystemCalls {
             // set argv variable
             setArgv();
             return OK;
+        case 51:
+            // flush()
+            flush();
+            return OK;
+        case 52:
+            // adr = mmap(string, mode, lengthv)
+            mmap();
+            return OK;
         default:
             return UNDEFINED_SYSTEM_CALL;
         }
@@ -163,8 +201,7 @@ public class SystemCalls {
     }
     
     private void chdir() {
-        String s = string(arg(1));
-        if (!s.startsWith("/")) s = cwd+'/'+s;
+        String s = path(string(arg(1)));
         File dir = new File(s);
         if (dir.exists() && dir.isDirectory() && dir.canExecute()) {
             cwd = s;
@@ -177,7 +214,7 @@ public class SystemCalls {
     
     private void close() {
         int fd = arg(1)-3;
-        RandomAccessFile file = getFile(fd);
+        OpenFile file = getFile(fd);
         if (file != null) {
             openfiles[fd] = null;
             try {
@@ -192,7 +229,7 @@ public class SystemCalls {
         ret(-1);
     }
 
-    private void execl() {
+    private VMResult execl() {
         List<String> command = new ArrayList<>();
         command.add(string(arg(1)));
         int n = 2;
@@ -200,18 +237,10 @@ public class SystemCalls {
             command.add(string(arg(n)));
             n++;
         }
-        try {
-            ProcessBuilder builder = new ProcessBuilder(command);
-            builder.redirectOutput(Redirect.INHERIT);
-            builder.redirectError(Redirect.INHERIT);
-            Process p = builder.start();
-            p.waitFor();
-            System.exit(p.waitFor());
-        } catch (Exception e) {}
-        ret(-1);
+        return exec(command);
     }
 
-    private void execv() {
+    private VMResult execv() {
         List<String> command = new ArrayList<>();
         command.add(string(arg(1)));
         int argv = arg(2);
@@ -220,15 +249,44 @@ public class SystemCalls {
             command.add(string(mem(argv)));     
             argv++;
         }
+        return exec(command);
+    }
+    
+    /**
+     * Runs the command and halts with its exit code in R0,
+     * or returns -1 if it cannot be run.
+     */
+    private VMResult exec(List<String> command) {
+        flush();
         try {
             ProcessBuilder builder = new ProcessBuilder(command);
-            builder.redirectOutput(Redirect.INHERIT);
-            builder.redirectError(Redirect.INHERIT);
+            builder.directory(new File(cwd));
+            if (stdout == System.out) builder.redirectOutput(Redirect.INHERIT);
+            if (stderr == System.err) builder.redirectError(Redirect.INHERIT);
             Process p = builder.start();
-            p.waitFor();
-            System.exit(p.waitFor());
+            Thread err = null;
+            if (stderr != System.err) {
+                err = copy(p.getErrorStream(), stderr);
+                err.start();
+            }
+            if (stdout != System.out) copy(p.getInputStream(), stdout).run();
+            if (err != null) err.join();
+            vm.regs[VM.R0] = p.waitFor();
+            return HALTED;
         } catch (Exception e) {}
         ret(-1);
+        return OK;
+    }
+    
+    private static Thread copy(InputStream in, PrintStream out) {
+        return new Thread(() -> {
+            byte[] buf = new byte[4096];
+            int n;
+            try {
+                while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+            } catch (IOException e) {}
+            out.flush();
+        });
     }
     
     private void creat() {
@@ -242,10 +300,13 @@ public class SystemCalls {
                     break;
                 }
             }
-            if (fd < 0) ret(-1);
-            @SuppressWarnings("resource")
-            RandomAccessFile file = new RandomAccessFile(filename, "rw");
-            openfiles[fd] = file;
+            if (fd < 0) {
+                ret(-1);
+                return;
+            }
+            FileChannel channel = FileChannel.open(Paths.get(path(filename)),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            openfiles[fd] = new OpenFile(channel, channel, channel);
             ret(fd+3);
         } catch (Exception e) {
             ret(-1);
@@ -258,8 +319,8 @@ public class SystemCalls {
     
     private void getchar() {
         try {
-            int ch = stdin.read();
-            if (ch == -1) ch = EOT;
+            OpenFile in = input();
+            int ch = in.fill()?(in.buf.get()&0xFF):EOT;
             ret(ch);
         } catch (Exception e) {
             e.printStackTrace();
@@ -275,10 +336,9 @@ public class SystemCalls {
     }
 
     private void mkdir() {
-        String dir = string(arg(1));
+        String dir = path(string(arg(1)));
         int mode = arg(2);
         // TODO
-        if (!dir.startsWith("/")) dir = cwd+'/'+dir;
         File file = new File(dir);
         if (file.mkdirs())
             ret(0);
@@ -286,12 +346,34 @@ public class SystemCalls {
             ret(-1);
     }
     
+    private void mmap() {
+        String filename = path(string(arg(1)));
+        int mode = arg(2);
+        int lengthv = arg(3);
+        FileChannel.MapMode mapMode = (mode > 0)?FileChannel.MapMode.READ_WRITE:FileChannel.MapMode.READ_ONLY;
+        try (FileChannel channel = (mode > 0)
+                ? FileChannel.open(Paths.get(filename), StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            long size = channel.size();
+            List<ByteBuffer> bufs = new ArrayList<>();
+            for (long pos = 0; pos < size; pos += MAP_CHUNK) {
+                bufs.add(channel.map(mapMode, pos, Math.min(MAP_CHUNK, size-pos)));
+            }
+            int adr = vm.map(bufs.toArray(new ByteBuffer[bufs.size()]), mode > 0);
+            if (adr >= 0 && lengthv != 0) {
+                mem(lengthv, (int)(size&0xFFFFFFFF));
+                mem(lengthv+1, (int)((size>>32)&0xFFFFFFFF));
+            }
+            ret(adr);
+        } catch (Exception e) {
+            ret(-1);
+        }
+    }
+    
     private void open() {
         String filename = string(arg(1));
         int mode = arg(2);        
         try {
-            String m = "r";
-            if (mode > 0) m = "rw";
             int fd = -1;
             for (int i = 0; i < openfiles.length; i++) {
                 if (openfiles[i] == null) {
@@ -299,10 +381,19 @@ public class SystemCalls {
                     break;
                 }
             }
-            if (fd < 0) ret(-1);
-            @SuppressWarnings("resource")
-            RandomAccessFile file = new RandomAccessFile(filename, m);
-            openfiles[fd] = file;
+            if (fd < 0) {
+                ret(-1);
+                return;
+            }
+            FileChannel channel;
+            if (mode > 0) {
+                channel = FileChannel.open(Paths.get(path(filename)), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                openfiles[fd] = new OpenFile(channel, channel, channel);
+            }
+            else {
+                channel = FileChannel.open(Paths.get(path(filename)), StandardOpenOption.READ);
+                openfiles[fd] = new OpenFile(channel, null, channel);
+            }
             ret(fd+3);
         } catch (Exception e) {
             ret(-1);
@@ -310,6 +401,7 @@ public class SystemCalls {
     }
     
     private void printf() {
+        OpenFile out = output();
         int an = 1;
         int format = arg(an++);
         int word = mem(format);
@@ -320,22 +412,22 @@ public class SystemCalls {
             if (ch == EOT) break;
             if (f) {
                 if (ch == 'd') {
-                    stdout.print(arg(an++));
+                    out.write(Integer.toString(arg(an++)));
                 }
                 else if (ch == 'o') {
-                    stdout.format("%o", arg(an++));
+                    out.write(Integer.toOctalString(arg(an++)));
                 }
                 else if (ch == 'x') {
-                    stdout.format("%x", arg(an++));
+                    out.write(Integer.toHexString(arg(an++)));
                 }
                 else if (ch == 'c') {
-                    outchar(stdout, arg(an++));
+                    outchar(arg(an++));
                 }
                 else if (ch == 's') {
-                    outstring(stdout, arg(an++));
+                    outstring(arg(an++));
                 }
                 else {
-                    stdout.write(ch);
+                    out.write(ch);
                 }
                 f = false;
             }
@@ -343,7 +435,7 @@ public class SystemCalls {
                 f = true;
             }
             else {
-                stdout.write(ch);
+                out.write(ch);
             }
             n++;
             if (n == 4) {
@@ -352,21 +444,20 @@ public class SystemCalls {
                 n = 0;
             }
         }
-        stdout.flush();
     }
     
     private void printn(int n, int b) {
         if (b < 2 || b > 10) return;
         int a = n/b;
         if (a != 0) printn(a, b);
-        outchar(stdout, n%b+'0');
+        outchar(n%b+'0');
     }
     
     private void read() {
-        int fd = arg(1)-3;
+        int fd = arg(1);
         int buf = arg(2);
         int count = arg(3);
-        RandomAccessFile file = getFile(fd);
+        OpenFile file = (fd == 0)?input():getFile(fd-3);
         if (file == null) {
             ret(-1);
             return;
@@ -374,18 +465,25 @@ public class SystemCalls {
         try {
             int n = 0;
             int i = 0;
-            while (n < count) {
-                int b = file.read();
-                if (b < 0) {
-                    ret(n);
-                    return;
+            while (n < count && file.fill()) {
+                ByteBuffer b = file.buf;
+                if (i == 0) {
+                    // whole words
+                    int words = Math.min(count-n, b.remaining()) >> 2;
+                    if (!vm.put(buf, b.asIntBuffer(), words)) break;
+                    b.position(b.position()+4*words);
+                    buf += words;
+                    n += 4*words;
                 }
-                mem(buf, (mem(buf)&~(0xFF<<i*8))|((b&0xFF)<<i*8));
-                n++;
-                i++;
-                if (i == 4) {
-                    i = 0;
-                    buf++;
+                while (n < count && b.hasRemaining()) {
+                    mem(buf, (mem(buf)&~(0xFF<<i*8))|((b.get()&0xFF)<<i*8));
+                    n++;
+                    i++;
+                    if (i == 4) {
+                        i = 0;
+                        buf++;
+                        break;
+                    }
                 }
             }
             ret(n);
@@ -398,7 +496,7 @@ public class SystemCalls {
         int fd = arg(1)-3;
         int offset = arg(2);
         int pointer = arg(3);
-        RandomAccessFile file = getFile(fd);
+        OpenFile file = getFile(fd);
         if (file == null) {
             ret(-1);
             return;
@@ -408,10 +506,10 @@ public class SystemCalls {
                 file.seek(offset);
             }
             else if (pointer == 1) {
-                file.seek(offset+file.getFilePointer());
+                file.seek(offset+file.position());
             }
             else if (pointer == 2) {
-                file.seek(offset+file.length());
+                file.seek(offset+file.size());
             }
             ret(0);
         } catch (Exception e) {
@@ -428,7 +526,7 @@ public class SystemCalls {
     }
     
     private void unlink() {
-        String filename = string(arg(1));
+        String filename = path(string(arg(1)));
         File file = new File(filename);
         if (file.delete())
             ret(0);
@@ -437,41 +535,52 @@ public class SystemCalls {
     }
     
     private void write() {
-        int fd = arg(1)-3;
+        int fd = arg(1);
         int buf = arg(2);
         int count = arg(3);
-        RandomAccessFile file = getFile(fd);
-        if (file == null) {
+        OpenFile file = (fd == 1)?output():(fd == 2)?error():getFile(fd-3);
+        if (file == null || file.out == null) {
             ret(-1);
             return;
         }
         try {
+            file.startWrite();
+            ByteBuffer b = file.buf;
             int n = 0;
             while (n < count) {
-                int v = mem(buf);
-                int i = 0;
-                while (n < count && i < 4) {
-                    file.writeByte(v&0xFF);
-                    v = v >> 8;
-                    i++;
-                    n++;
+                if (b.remaining() < 4) file.flush();
+                // whole words
+                int words = Math.min(count-n, b.remaining()) >> 2;
+                if (!vm.get(buf, b.asIntBuffer(), words)) break;
+                b.position(b.position()+4*words);
+                buf += words;
+                n += 4*words;
+                if (count-n < 4 && b.remaining() >= count-n) {
+                    int v = mem(buf);
+                    while (n < count) {
+                        b.put((byte)v);
+                        v = v >> 8;
+                        n++;
+                    }
                 }
-                buf++;
             }
+            if (file == err) file.flush();
             ret(n);
+            return;
         } catch (Exception e) {}
         ret(-1);
     }
 
-    private void outchar(PrintStream out, int c) {
+    private void outchar(int c) {
+        OpenFile out = output();
         while (c != 0) {
             out.write(c&0xFF);
             c >>= 8;
         }
-        out.flush();
     }
     
-    private void outstring(PrintStream out, int s) {
+    private void outstring(int s) {
+        OpenFile out = output();
         int word = mem(s);
         int n = 0;
         while (true) {
@@ -485,7 +594,6 @@ public class SystemCalls {
                 n = 0;
             }
         }
-        out.flush();
     }
     
     private String string(int s) {
@@ -506,13 +614,64 @@ public class SystemCalls {
         return buf.toString();
     }
     
-    private RandomAccessFile getFile(int fd) {
+    /**
+     * Writes the buffered standard output and error.
+     */
+    public void flush() {
+        try {
+            if (out != null) out.flush();
+            if (err != null) err.flush();
+        } catch (IOException e) {}
+        stdout.flush();
+        stderr.flush();
+    }
+    
+    /**
+     * Flushes the standard output and closes all files left open by the
+     * program.
+     */
+    public void closeAll() {
+        flush();
+        for (int fd = 0; fd < openfiles.length; fd++) {
+            if (openfiles[fd] != null) {
+                try {
+                    openfiles[fd].close();
+                } catch (IOException e) {}
+                openfiles[fd] = null;
+            }
+        }
+    }
+    
+    /**
+     * Returns the file name resolved against the working directory.
+     */
+    private String path(String name) {
+        if (!name.startsWith("/")) name = cwd+'/'+name;
+        return name;
+    }
+    
+    private OpenFile getFile(int fd) {
         if (fd >= 0 && fd < openfiles.length) {
-            RandomAccessFile file = openfiles[fd];
+            OpenFile file = openfiles[fd];
             if (file != null) return file;
         }
         return null;
     }
+    
+    private OpenFile input() {
+        if (in == null) in = new OpenFile(Channels.newChannel(stdin), null, null);
+        return in;
+    }
+    
+    private OpenFile output() {
+        if (out == null) out = new OpenFile(null, Channels.newChannel(stdout), null);
+        return out;
+    }
+    
+    private OpenFile error() {
+        if (err == null) err = new OpenFile(null, Channels.newChannel(stderr), null);
+        return err;
+    }
 
     protected int nargs() {
         return arg(0);
@@ -553,4 +712,109 @@ public class SystemCalls {
             }
         }
     }
+    
+    /**
+     * An open file with a buffer, which holds either bytes read and not
+     * yet consumed, or bytes not yet written.
+     */
+    private class OpenFile {
+        
+        ReadableByteChannel in;
+        WritableByteChannel out;
+        // null if the file is not seekable
+        FileChannel file;
+        ByteBuffer buf = ByteBuffer.allocate(BUFSIZE).order(ByteOrder.LITTLE_ENDIAN);
+        boolean reading = false;
+        
+        OpenFile(ReadableByteChannel in, WritableByteChannel out, FileChannel file) {
+            this.in = in;
+            this.out = out;
+            this.file = file;
+        }
+        
+        /**
+         * Reads into the buffer if it is empty, and returns whether there
+         * are bytes to consume. Standard output is flushed before reading
+         * from standard input.
+         */
+        boolean fill() throws IOException {
+            if (!reading) {
+                flush();
+                reading = true;
+                buf.limit(0);
+            }
+            if (buf.hasRemaining()) return true;
+            if (this == SystemCalls.this.in) SystemCalls.this.flush();
+            buf.clear();
+            int n = (in == null)?-1:in.read(buf);
+            buf.flip();
+            return n > 0;
+        }
+        
+        /**
+         * Switches the buffer to writing, dropping bytes read ahead.
+         */
+        void startWrite() throws IOException {
+            if (reading) {
+                if (file != null) file.position(file.position()-buf.remaining());
+                buf.clear();
+                reading = false;
+            }
+        }
+        
+        void write(int b) {
+            try {
+                startWrite();
+                if (!buf.hasRemaining()) flush();
+                buf.put((byte)b);
+            } catch (IOException e) {}
+        }
+        
+        void write(String s) {
+            for (byte b : s.getBytes(StandardCharsets.ISO_8859_1)) write(b);
+        }
+        
+        void flush() throws IOException {
+            if (reading || buf.position() == 0) return;
+            buf.flip();
+            try {
+                while (buf.hasRemaining()) {
+                    if (out == null) throw new IOException("not writable");
+                    out.write(buf);
+                }
+            }
+            finally {
+                buf.clear();
+            }
+        }
+        
+        long position() throws IOException {
+            return reading?file.position()-buf.remaining():file.position()+buf.position();
+        }
+        
+        /**
+         * Returns the size of the file, including the bytes still in
+         * the buffer.
+         */
+        long size() throws IOException {
+            flush();
+            return file.size();
+        }
+        
+        void seek(long pos) throws IOException {
+            flush();
+            buf.clear();
+            reading = false;
+            file.position(pos);
+        }
+        
+        void close() throws IOException {
+            try {
+                flush();
+            }
+            finally {
+                file.close();
+            }
+        }
+    }
 }
@@ -4,17 +4,45 @@ import static gemi.bcomp.assembler.Opcodes.*;
 import static gemi.bcomp.utilities.Utilities.*;
 import static gemi.bcomp.vm.VMResult.*;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
 import gemi.bcomp.disassembler.Disassembler;
+import gemi.bcomp.jit.JIT;
+import gemi.bcomp.utilities.LineTable;
 
 public class VM {
     
+    // Memory consists of the segment with code and static data, the
+    // stack segment at the end, which grows downwards by whole pages,
+    // and pages in between, which are allocated when first written to.
+    private final static int PAGE_BITS = 12;
+    private final static int PAGE_SIZE = 1 << PAGE_BITS;
+    private final static int PAGE_MASK = PAGE_SIZE-1;
     private int[] mem;
+    // end of the part of mem read directly, the end of the text segment
+    // while mem is shared
+    private int direct;
+    // end of the part of mem written directly, 0 while mem is shared
+    private int writable;
+    // whether mem and the decoded arrays are shared with other VMs;
+    // the data segment is then copied page by page when written to
+    private boolean shared = false;
+    // the stack segment is also accessed directly by compiled code
+    public int[] stack;
+    public int stackBase;
+    private int[][] pages;
+    // memory size in words
+    public int memsize;
+    // memory-mapped files, at the addresses from memsize up to mapEnd
+    private Mapping[] mappings = new Mapping[0];
+    private Mapping lastMapping = null;
+    private int mapEnd = 0;
     
     public int[] regs = {0, 0, 0, 0};
     
@@ -27,9 +55,9 @@ public class VM {
 
     // instruction pointer (program counter)
     public int IP = 0;
-    // instruction register
+    // instruction register (only loaded when tracing)
     public int IR = 0;
-    // opcode from instruction register
+    // decoded opcode of the current instruction
     public int opcode = 0;
     
     // the first address not allocated to code or static data
@@ -39,209 +67,740 @@ public class VM {
     public Integer illegalAddress = null;
     public boolean tracing = false;
     public PrintStream traceOut = System.err;
+    // whether predecode fuses common instruction sequences
+    public boolean fusing = true;
+    // whether hot code is compiled to JVM bytecode
+    public boolean compiling = false;
+    // set on an illegal memory access or when compiled code becomes
+    // invalid, tells compiled code and the interpreter loop to return
+    public boolean trap = false;
+    // number of instructions executed
+    public long retired = 0;
+    // number of instructions compiled code may still execute
+    public long budget = 0;
     
-    private int r, r0, r1;
-    private SystemCalls systemCalls;
+    // Decoded opcodes are kept in the range 0-127, so that the dispatch
+    // switch compiles to a jump table: opcodes with embedded addresses
+    // are shifted right by 4 bits, register/literal operations get the
+    // LITERAL flag added.
+    private final static int D_CALL_A = CALL_A >> 4;
+    private final static int D_JMP_A  = JMP_A >> 4;
+    private final static int D_LAD_A0 = LAD_A0 >> 4;
+    private final static int D_MOV_A0 = MOV_A0 >> 4;
+    private final static int D_MOV_0A = MOV_0A >> 4;
+    private final static int LITERAL  = 0x20;
+    
+    // fused instruction sequences (superinstructions), see fuse
+    private final static int FUSED_OP     = 0x78;
+    private final static int FUSED_MINUS  = 0x79;
+    private final static int FUSED_REV    = 0x7A;
+    private final static int FUSED_ASSIGN = 0x7B;
+    private final static int FUSED_INDEX  = 0x7C;
+    
+    // pre-decoded text segment: opcode, register fields and
+    // sign-extended literal, offset or (branch target) address
+    private int[] dop = null;
+    private int[] dra = null;
+    private int[] drb = null;
+    private int[] dval = null;
+    // number of pre-decoded words
+    private int text = 0;
+    
+    private JIT jit = null;
+    
+    public SystemCalls systemCalls;
+    // source lines of the program for messages, or null
+    public LineTable lines = null;
     
     public VM(int[] mem, int data) {
-        this.mem = mem;
+        this(mem, mem.length, data);
+    }
+    
+    /**
+     * Creates a VM with <code>memsize</code> words of memory, where the
+     * first words are given by <code>mem</code>.
+     */
+    public VM(int[] mem, int memsize, int data) {
+        this.mem = mem.length <= memsize?mem:Arrays.copyOf(mem, memsize);
+        this.memsize = memsize;
+        this.pages = new int[(memsize+PAGE_SIZE-1) >>> PAGE_BITS][];
+        stackBase = ((memsize-1) >>> PAGE_BITS) << PAGE_BITS;
+        if (stackBase < this.mem.length) stackBase = memsize;
+        stack = new int[memsize-stackBase];
+        direct = this.mem.length;
+        writable = this.mem.length;
         this.data = data;
         systemCalls = new SystemCalls(this);
     }
+    
+    /**
+     * Creates a VM with the initial memory and pre-decoded text segment
+     * of <code>prototype</code>, which must not be run itself. They are
+     * shared with the prototype. Pages of the data segment are copied
+     * when first written to, everything only when the text segment is
+     * written to.
+     */
+    public VM(VM prototype) {
+        mem = prototype.mem;
+        memsize = prototype.memsize;
+        pages = new int[prototype.pages.length][];
+        stackBase = prototype.stackBase;
+        stack = new int[prototype.stack.length];
+        direct = prototype.text;
+        writable = 0;
+        shared = true;
+        data = prototype.data;
+        fusing = prototype.fusing;
+        dop = prototype.dop;
+        dra = prototype.dra;
+        drb = prototype.drb;
+        dval = prototype.dval;
+        text = prototype.text;
+        lines = prototype.lines;
+        systemCalls = new SystemCalls(this);
+    }
 
     public void argv(List<String> argv) {
         systemCalls.argv(argv);
     }
     
+    /**
+     * Executes system call <code>sys</code> for compiled code.
+     * Returns false if the system call must be left to the interpreter,
+     * which then reports the error.
+     */
+    public boolean syscall(int sys) {
+        if (SystemCalls.terminates(sys)) return false;
+        return systemCalls.syscall(sys) == OK;
+    }
+    
+    /**
+     * Returns the number of instructions compiled code may execute
+     * before it checks the budget again.
+     */
+    public int slice() {
+        return (int)Math.min(budget, 1 << 30);
+    }
+    
+    /**
+     * Takes <code>n</code> instructions executed by compiled code
+     * from the budget.
+     */
+    public void spend(int n) {
+        budget -= n;
+    }
+    
+    /**
+     * Installs code compiled ahead of time for the given entry points.
+     */
+    public void install(Compiled code, int[] entries) {
+        if (jit == null) jit = new JIT(this, text);
+        jit.install(code, entries);
+    }
+    
     public VMResult run() {
         return run(0);
     }
     
     public VMResult run(int startIP) {
-        regs[SP] = mem.length-1;
-        regs[FP] = 0;
-        regs[R0] = 0;
-        regs[R1] = 0;
-        IP = startIP;
-        illegalAddress = null;
+        start(startIP);
         
         VMResult res = OK;
         while (res == OK && illegalAddress == null) {
-            res = execute();
+            res = execute(Long.MAX_VALUE);
         }
 
         if (illegalAddress != null)
            return ILLEGAL_MEMORY_ACCESS;
         return res;
     }
+    
+    /**
+     * Continues execution for at most <code>max</code> instructions
+     * (compiled code and superinstructions may exceed it slightly).
+     * Returns <code>BUDGET_EXHAUSTED</code> if execution can be resumed,
+     * or the result of the program as <code>run</code>.
+     * Start the program with <code>start</code>.
+     */
+    public VMResult resume(long max) {
+        long end = (max < Long.MAX_VALUE-retired)?retired+max:Long.MAX_VALUE;
+        VMResult res = OK;
+        while (res == OK && illegalAddress == null && retired < end) {
+            res = execute(end-retired);
+        }
 
-    public VMResult execute() {
-        IR = mem(IP);
-        trace();
-        opcode = opcode(IR);
-        IP++;
-        switch (opcode) {
-        case NOP:
-            return OK;
-        case RET:
-            IP = mem(regs[FP]);            
-            regs[SP] = regs[FP];
+        if (illegalAddress != null)
+           return ILLEGAL_MEMORY_ACCESS;
+        if (res == OK)
+            return BUDGET_EXHAUSTED;
+        return res;
+    }
+
+    /**
+     * Decodes the first <code>n</code> words of memory (the text segment)
+     * into the parallel arrays used by <code>execute</code>.
+     * Words outside the text segment are decoded when executed.
+     */
+    public void predecode(int n) {
+        n = Math.max(0, Math.min(n, mem.length));
+        // the last slot is used for words outside the text segment
+        dop = new int[n+1];
+        dra = new int[n+1];
+        drb = new int[n+1];
+        dval = new int[n+1];
+        text = n;
+        for (int i = 0; i < n; i++) {
+            decode(i, mem[i], i);
+        }
+        if (fusing) {
+            for (int i = 0; i < n; i++) {
+                fuse(i);
+            }
+        }
+        jit = compiling?new JIT(this, n):null;
+    }
+    
+    /**
+     * Replaces the decoded <code>PUSH R0</code> at slot <code>i</code> by a
+     * superinstruction, if it starts one of the sequences generated for
+     * binary operators, where the right operand is a single load into R0:
+     * <pre>
+     * FUSED_OP:     PUSH R0; load; POP R1; op R1,R0
+     * FUSED_INDEX:  PUSH R0; load; POP R1; ADD R1,R0; MOV [R0],R0
+     * FUSED_MINUS:  PUSH R0; load; POP R1; EXCH R1,R0; SUB R1,R0
+     * FUSED_REV:    PUSH R0; load; MOV R0,R1; POP R0; op R1,R0
+     * FUSED_ASSIGN: PUSH R0; load; POP R1; MOV R0,[R1]
+     * </pre>
+     * The following slots keep their decoded instructions, so that
+     * branches into the sequence still work.
+     */
+    private void fuse(int i) {
+        if (i+4 >= text || dop[i] != PUSH || drb[i] != R0) return;
+        int load = dop[i+1];
+        if (!(load == MOV_L0 || load == D_LAD_A0 || load == D_MOV_A0 || (load == MOV_IR && drb[i+1] == R0)))
+            return;
+        if (dop[i+2] == POP && drb[i+2] == R1) {
+            int op = dop[i+3];
+            if (dra[i+3] == R1 && drb[i+3] == R0) {
+                if (op == ADD && dop[i+4] == MOV_IR && dra[i+4] == R0 && drb[i+4] == R0 && dval[i+4] == 0)
+                    dop[i] = FUSED_INDEX;
+                else if (op == ADD || op == SUB || op == MUL || op == AND || op == OR || op == XOR)
+                    dop[i] = FUSED_OP;
+                else if (op == EXCH && dop[i+4] == SUB && dra[i+4] == R1 && drb[i+4] == R0)
+                    dop[i] = FUSED_MINUS;
+            }
+            else if (op == MOV_RI && dra[i+3] == R0 && drb[i+3] == R1 && dval[i+3] == 0) {
+                dop[i] = FUSED_ASSIGN;
+            }
+        }
+        else if (dop[i+2] == MOV_RR && dra[i+2] == R0 && drb[i+2] == R1
+                 && dop[i+3] == POP && drb[i+3] == R0
+                 && dra[i+4] == R1 && drb[i+4] == R0) {
+            int op = dop[i+4];
+            if (op == DIV || op == MOD) {
+                // only with a non-zero constant divisor
+                if ((load == MOV_L0 || load == D_LAD_A0) && dval[i+1] != 0)
+                    dop[i] = FUSED_REV;
+            }
+            else if (op == LSH || op == RSH) {
+                dop[i] = FUSED_REV;
+            }
+        }
+    }
+    
+    /**
+     * Executes the superinstruction at slot <code>i</code>
+     * and returns the new instruction pointer.
+     * Stops after the first instruction of the sequence
+     * that accesses an illegal address.
+     */
+    private int fused(int i) {
+        final int[] regs = this.regs;
+        int t = regs[R0];
+        // PUSH R0
+        mem(regs[SP], t);
+        regs[SP]--;
+        if (illegalAddress != null) return i+1;
+        // load R0
+        int j = i+1;
+        int val = dval[j];
+        switch (dop[j]) {
+        case MOV_L0:
+        case D_LAD_A0:
+            regs[R0] = val;
+            break;
+        case D_MOV_A0:
+            regs[R0] = mem(val);
+            break;
+        case MOV_IR:
+            regs[R0] = mem(regs[dra[j]] + val);
+            break;
+        }
+        if (illegalAddress != null) return i+2;
+        int v = regs[R0];
+        switch (dop[i]) {
+        case FUSED_OP:
+            // POP R1; op R1,R0
             regs[SP]++;
-            regs[FP] = mem(regs[SP]);
-            return OK;
-        case HALT:
-            return HALTED;
+            regs[R1] = t;
+            regs[R0] = alu(dop[i+3], v, t);
+            return i+4;
+        case FUSED_INDEX:
+            // POP R1; ADD R1,R0; MOV [R0],R0
+            regs[SP]++;
+            regs[R1] = t;
+            regs[R0] = mem(v + t);
+            return i+5;
+        case FUSED_MINUS:
+            // POP R1; EXCH R1,R0; SUB R1,R0
+            regs[SP]++;
+            regs[R1] = v;
+            regs[R0] = t - v;
+            return i+5;
+        case FUSED_REV:
+            // MOV R0,R1; POP R0; op R1,R0
+            regs[R1] = v;
+            regs[SP]++;
+            regs[R0] = alu(dop[i+4], t, v);
+            return i+5;
+        case FUSED_ASSIGN:
+            // POP R1; MOV R0,[R1]
+            regs[SP]++;
+            regs[R1] = t;
+            mem(t, v);
+            return i+4;
+        }
+        return i+1;
+    }
+    
+    /**
+     * Returns <code>a op b</code> for the register form of
+     * a decoded arithmetic operation.
+     */
+    private static int alu(int op, int a, int b) {
+        switch (op) {
+        case ADD:
+            return a + b;
+        case SUB:
+            return a - b;
+        case MUL:
+            return a * b;
+        case DIV:
+            return a / b;
+        case MOD:
+            return a % b;
+        case AND:
+            return a & b;
+        case OR:
+            return a | b;
+        case XOR:
+            return a ^ b;
+        case LSH:
+            return (b > 0)?(a << b):(a >> -b);
+        case RSH:
+            return (b > 0)?(a >> b):(a << -b);
+        }
+        return 0;
+    }
+    
+    /**
+     * Decodes instruction <code>instr</code> at address <code>adr</code>
+     * into slot <code>i</code> of the decoded arrays.
+     */
+    private void decode(int i, int instr, int adr) {
+        int op = opcode(instr);
+        int ra = 0, rb = 0, val = 0;
+        switch (op) {
         case CALL_R:
-            mem(regs[SP], regs[FP]);
-            regs[SP]--;
-            regs[FP] = regs[SP];
-            mem(regs[SP], IP);
-            regs[SP]--;
-            IP = regs[rb(IR)];
-            return OK;
-        case CALL_A:
-            mem(regs[SP], regs[FP]);
-            regs[SP]--;
-            regs[FP] = regs[SP];
-            mem(regs[SP], IP);
-            regs[SP]--;
-            IP = adr(IR);
-            return OK;
         case JMP_R:
-            IP = regs[rb(IR)];
-            return OK;
+        case POP:
+        case PUSH:
+        case SYS_R:
+            rb = rb(instr);
+            break;
+        case CALL_A:
         case JMP_A:
-            IP = adr(IR);
-            return OK;
         case LAD_A0:
-            regs[R0] = adr(IR);
-            return OK;
         case MOV_A0:
-            regs[R0] = mem(adr(IR));
-            return OK;
         case MOV_0A:
-            mem(adr(IR), regs[R0]);
-            return OK;
+            op >>= 4;
+            val = adr(instr);
+            break;
         case ADD:
-            r = rb(IR);
-            regs[r] = regs[r] + sval(IR);
-            return OK;
         case SUB:
-            r = rb(IR);
-            regs[r] = regs[r] - sval(IR);
-            return OK;
         case MUL:
-            r = rb(IR);
-            regs[r] = regs[r] * sval(IR);
-            return OK;
         case DIV:
-            r = rb(IR);
-            if (sval(IR) == 0) return DIVISION_BY_ZERO;
-            regs[r] = regs[r] / sval(IR);
-            return OK;
         case MOD:
-            r = rb(IR);
-            if (sval(IR) == 0) return DIVISION_BY_ZERO;
-            regs[r] = regs[r] % sval(IR);
-            return OK;
-        case NEG:
-            regs[rb(IR)] = -regs[ra(IR)];
-            return OK;
         case AND:
-            r = rb(IR);
-            regs[r] = regs[r] & sval(IR);
-            return OK;
         case OR:
-            r = rb(IR);
-            regs[r] = regs[r] | sval(IR);
-            return OK;
         case XOR:
-            r = rb(IR);
-            regs[r] = regs[r] ^ sval(IR);
-            return OK;
-        case NOT:
-            regs[rb(IR)] = regs[ra(IR)] == 0?1:0;
-            return OK;
-        case CPL:
-            regs[rb(IR)] = ~regs[ra(IR)];
-            return OK;
         case LSH:
-            r = rb(IR);
-            r0 = sval(IR);
-            if (r0 > 0)
-                regs[r] = regs[r] << r0;
-            else
-                regs[r] = regs[r] >> -r0;
-            return OK;
         case RSH:
-            r = rb(IR);
-            r0 = sval(IR);
-            if (r0 > 0)
-                regs[r] = regs[r] >> r0;
-            else
-                regs[r] = regs[r] << -r0;
-            return OK;
+            rb = rb(instr);
+            if (r2r(instr)) {
+                ra = ra(instr);
+            }
+            else {
+                op |= LITERAL;
+                val = lit(instr);
+            }
+            break;
+        case NEG:
+        case NOT:
+        case CPL:
         case EXCH:
-            r0 = rb(IR);
-            r1 = ra(IR);
-            r = regs[r0];
-            regs[r0] = regs[r1];
-            regs[r1] = r;
-            return OK;
-        case POP:
-            regs[SP]++;
-            regs[rb(IR)] = mem(regs[SP]);
-            return OK;
-        case PUSH:
-            mem(regs[SP], regs[rb(IR)]);
-            regs[SP]--;
-            return OK;
         case MOV_RR:
-            regs[rb(IR)] = regs[ra(IR)];
-            return OK;
+            ra = ra(instr);
+            rb = rb(instr);
+            break;
         case MOV_L0:
-            regs[R0] = offset(IR);
-            return OK;
         case MOV_L1:
-            regs[R1] = offset(IR);
-            return OK;
+            val = offset(instr);
+            break;
         case MOV_RI:
-            r0 = (IR >> 20) & 0b11; // rb
-            r1 = (IR >> 22) & 0b11; // ra
-            mem(regs[r0] + lit(IR), regs[r1]);
-            return OK;
         case MOV_IR:
-            r0 = (IR >> 20) & 0b11; // rb
-            r1 = (IR >> 22) & 0b11; // ra
-            regs[r0] = mem(regs[r1] + lit(IR));
-            return OK;
         case MOV_OR:
-            r0 = (IR >> 20) & 0b11; // rb
-            r1 = (IR >> 22) & 0b11; // ra
-            regs[r0] = regs[r1] + lit(IR);
-            return OK;
+            ra = (instr >> 22) & 0b11;
+            rb = (instr >> 20) & 0b11;
+            val = lit(instr);
+            break;
         case BNE:
-            if (regs[R0] == 0) IP += offset(IR);
-            return OK;
         case BEQ:
-            if (regs[R0] != 0) IP += offset(IR);
-            return OK;
         case BNG:
-            if (regs[R0] < 0) IP += offset(IR);
-            return OK;
         case BPS:
-            if (regs[R0] > 0) IP += offset(IR);
-            return OK;
         case JRL:
-            IP += offset(IR);
-            return OK;
-        case SYS_R:
-            return systemCalls.syscall(rb(IR));
+            // branch target
+            val = adr+1+offset(instr);
+            break;
         case SYS_L:
-            return systemCalls.syscall(lit(IR));
+            val = lit(instr);
+            break;
+        case NOP:
+        case RET:
+        case HALT:
+            break;
         default:
-            return ILLEGAL_INSTRUCTION;
+            // illegal instruction
+            op = -1;
         }
+        dop[i] = op;
+        dra[i] = ra;
+        drb[i] = rb;
+        dval[i] = val;
+    }
+
+    /**
+     * Decodes the words from <code>from</code> to <code>to-1</code> in
+     * the text segment again, and the superinstructions they may be part
+     * of. Compiled code is invalidated once for the whole range.
+     */
+    private void redecode(int from, int to) {
+        for (int i = from; i < to; i++) {
+            decode(i, mem[i], i);
+        }
+        if (fusing) {
+            for (int i = Math.max(0, from-4); i < to; i++) {
+                if (dop[i] >= FUSED_OP) decode(i, mem[i], i);
+                fuse(i);
+            }
+        }
+        if (jit != null) {
+            jit.invalidate();
+            trap = true;
+        }
+    }
+    
+    public VMResult execute() {
+        return execute(1);
+    }
+    
+    /**
+     * Executes at most <code>n</code> instructions.
+     * Returns <code>OK</code> if all have been executed, or execution
+     * is stopped by an illegal memory access.
+     */
+    private VMResult execute(long n) {
+        if (dop == null) predecode(0);
+        if (compiling && jit == null) jit = new JIT(this, text);
+        trap = false;
+        final int[] regs = this.regs;
+        final int[] dop = this.dop, dra = this.dra, drb = this.drb, dval = this.dval;
+        final int text = this.text;
+        final boolean tracing = this.tracing;
+        final JIT jit = tracing?null:this.jit;
+        final long start = n;
+        int ip = IP;
+        int i, ra, rb, val;
+        int op = opcode;
+        VMResult res = OK;
+        loop:
+        while (!trap) {
+            i = ip;
+            if (i < 0 || i >= text) {
+                // outside text segment: decode into the last slot
+                i = text;
+                decode(i, mem(ip), ip);
+            }
+            if (tracing) {
+                IP = ip;
+                IR = mem(ip);
+                trace();
+            }
+            ra = dra[i];
+            rb = drb[i];
+            val = dval[i];
+            op = dop[i];
+            ip++;
+            switch (op) {
+            case NOP:
+                break;
+            case RET:
+                ip = mem(regs[FP]);            
+                regs[SP] = regs[FP];
+                regs[SP]++;
+                regs[FP] = mem(regs[SP]);
+                if (jit != null && !trap) {
+                    budget = n-1;
+                    ip = jit.enter(ip);
+                    n = budget+1;
+                }
+                break;
+            case HALT:
+                res = HALTED;
+                break loop;
+            case CALL_R:
+                mem(regs[SP], regs[FP]);
+                regs[SP]--;
+                regs[FP] = regs[SP];
+                mem(regs[SP], ip);
+                regs[SP]--;
+                ip = regs[rb];
+                if (jit != null && !trap) {
+                    budget = n-1;
+                    ip = jit.enter(ip);
+                    n = budget+1;
+                }
+                break;
+            case D_CALL_A:
+                mem(regs[SP], regs[FP]);
+                regs[SP]--;
+                regs[FP] = regs[SP];
+                mem(regs[SP], ip);
+                regs[SP]--;
+                ip = val;
+                if (jit != null && !trap) {
+                    budget = n-1;
+                    ip = jit.enter(ip);
+                    n = budget+1;
+                }
+                break;
+            case JMP_R:
+                ip = regs[rb];
+                if (jit != null) {
+                    budget = n-1;
+                    ip = jit.enter(ip);
+                    n = budget+1;
+                }
+                break;
+            case D_JMP_A:
+                ip = val;
+                break;
+            case D_LAD_A0:
+                regs[R0] = val;
+                break;
+            case D_MOV_A0:
+                regs[R0] = mem(val);
+                break;
+            case D_MOV_0A:
+                mem(val, regs[R0]);
+                break;
+            case ADD:
+                regs[rb] = regs[rb] + regs[ra];
+                break;
+            case ADD|LITERAL:
+                regs[rb] = regs[rb] + val;
+                break;
+            case SUB:
+                regs[rb] = regs[rb] - regs[ra];
+                break;
+            case SUB|LITERAL:
+                regs[rb] = regs[rb] - val;
+                break;
+            case MUL:
+                regs[rb] = regs[rb] * regs[ra];
+                break;
+            case MUL|LITERAL:
+                regs[rb] = regs[rb] * val;
+                break;
+            case DIV:
+                if (regs[ra] == 0) {
+                    res = DIVISION_BY_ZERO;
+                    break loop;
+                }
+                regs[rb] = regs[rb] / regs[ra];
+                break;
+            case DIV|LITERAL:
+                if (val == 0) {
+                    res = DIVISION_BY_ZERO;
+                    break loop;
+                }
+                regs[rb] = regs[rb] / val;
+                break;
+            case MOD:
+                if (regs[ra] == 0) {
+                    res = DIVISION_BY_ZERO;
+                    break loop;
+                }
+                regs[rb] = regs[rb] % regs[ra];
+                break;
+            case MOD|LITERAL:
+                if (val == 0) {
+                    res = DIVISION_BY_ZERO;
+                    break loop;
+                }
+                regs[rb] = regs[rb] % val;
+                break;
+            case NEG:
+                regs[rb] = -regs[ra];
+                break;
+            case AND:
+                regs[rb] = regs[rb] & regs[ra];
+                break;
+            case AND|LITERAL:
+                regs[rb] = regs[rb] & val;
+                break;
+            case OR:
+                regs[rb] = regs[rb] | regs[ra];
+                break;
+            case OR|LITERAL:
+                regs[rb] = regs[rb] | val;
+                break;
+            case XOR:
+                regs[rb] = regs[rb] ^ regs[ra];
+                break;
+            case XOR|LITERAL:
+                regs[rb] = regs[rb] ^ val;
+                break;
+            case NOT:
+                regs[rb] = regs[ra] == 0?1:0;
+                break;
+            case CPL:
+                regs[rb] = ~regs[ra];
+                break;
+            case LSH:
+                val = regs[ra];
+                if (val > 0)
+                    regs[rb] = regs[rb] << val;
+                else
+                    regs[rb] = regs[rb] >> -val;
+                break;
+            case LSH|LITERAL:
+                if (val > 0)
+                    regs[rb] = regs[rb] << val;
+                else
+                    regs[rb] = regs[rb] >> -val;
+                break;
+            case RSH:
+                val = regs[ra];
+                if (val > 0)
+                    regs[rb] = regs[rb] >> val;
+                else
+                    regs[rb] = regs[rb] << -val;
+                break;
+            case RSH|LITERAL:
+                if (val > 0)
+                    regs[rb] = regs[rb] >> val;
+                else
+                    regs[rb] = regs[rb] << -val;
+                break;
+            case EXCH:
+                val = regs[rb];
+                regs[rb] = regs[ra];
+                regs[ra] = val;
+                break;
+            case POP:
+                regs[SP]++;
+                regs[rb] = mem(regs[SP]);
+                break;
+            case FUSED_OP:
+            case FUSED_MINUS:
+            case FUSED_REV:
+            case FUSED_ASSIGN:
+            case FUSED_INDEX:
+                if (n >= 5 && !tracing) {
+                    ip = fused(i);
+                    n -= ip-i-1;
+                    break;
+                }
+                // execute as PUSH R0
+                mem(regs[SP], regs[rb]);
+                regs[SP]--;
+                break;
+            case PUSH:
+                mem(regs[SP], regs[rb]);
+                regs[SP]--;
+                break;
+            case MOV_RR:
+                regs[rb] = regs[ra];
+                break;
+            case MOV_L0:
+                regs[R0] = val;
+                break;
+            case MOV_L1:
+                regs[R1] = val;
+                break;
+            case MOV_RI:
+                // MOV ra,[rb+val]
+                mem(regs[rb] + val, regs[ra]);
+                break;
+            case MOV_IR:
+                // MOV [ra+val],rb
+                regs[rb] = mem(regs[ra] + val);
+                break;
+            case MOV_OR:
+                // MOV ra+val,rb
+                regs[rb] = regs[ra] + val;
+                break;
+            case BNE:
+                if (regs[R0] == 0) ip = val;
+                break;
+            case BEQ:
+                if (regs[R0] != 0) ip = val;
+                break;
+            case BNG:
+                if (regs[R0] < 0) ip = val;
+                break;
+            case BPS:
+                if (regs[R0] > 0) ip = val;
+                break;
+            case JRL:
+                ip = val;
+                // backward branch
+                if (jit != null && ip <= i) {
+                    budget = n-1;
+                    ip = jit.enter(ip);
+                    n = budget+1;
+                }
+                break;
+            case SYS_R:
+                res = systemCalls.syscall(rb);
+                if (res != OK) break loop;
+                break;
+            case SYS_L:
+                res = systemCalls.syscall(val);
+                if (res != OK) break loop;
+                break;
+            default:
+                res = ILLEGAL_INSTRUCTION;
+                break loop;
+            }
+            // compiled code may have exceeded the budget
+            if (--n <= 0) break;
+        }
+        IP = ip;
+        opcode = op;
+        retired += start-n;
+        return res;
     }
     
     /**
@@ -249,7 +808,7 @@ public class VM {
      * Proceed using <code>step</code>.
      */
     public void start(int startIP) {
-        regs[SP] = mem.length-1;
+        regs[SP] = memsize-1;
         regs[FP] = 0;
         regs[R0] = 0;
         regs[R1] = 0;
@@ -271,7 +830,7 @@ public class VM {
             dumpRegs(traceOut);
             dumpStack(traceOut);
             traceOut.println();
-            traceOut.println(int2hex(IP)+": "+Disassembler.disassemble(IR));
+            traceOut.println(where(IP)+": "+Disassembler.disassemble(IR));
         }
     }
     
@@ -285,55 +844,426 @@ public class VM {
     
     public final void dumpStack(PrintStream out) {
         out.print("Stack:\n");
-        for (int i = mem.length-1; i >= regs[SP]; i--) {
+        for (int i = memsize-1; i >= regs[SP] && i >= 0; i--) {
             if (i == regs[SP]) 
-                out.println("  "+int2hex(mem[i])+" <- SP");
+                out.println("  "+int2hex(word(i))+" <- SP");
             else if (i == regs[FP])
-                out.println("  "+int2hex(mem[i])+" <- FP");
+                out.println("  "+int2hex(word(i))+" <- FP");
             else
-                out.println("  "+int2hex(mem[i]));
+                out.println("  "+int2hex(word(i)));
         }
     }
 
+    // The accessors are split into small methods, so that the JVM
+    // inlines them into the interpreter and compiled code.
+    
     public final int mem(int adr) {
-        if (adr < mem.length)
+        if (adr >= 0 && adr < direct)
             return mem[adr];
-        illegalAddress = adr;
-        return 0;
+        return stackMem(adr);
     }
     
     public final void mem(int adr, int value) {
-        if (adr >= 0 && adr < mem.length)
+        if (adr >= text && adr < writable)
             mem[adr] = value;
         else
-            illegalAddress = adr;
+            stackMem(adr, value);
     }
-
-    private final int sval(int instr) {
-        if (r2r(instr))
-            return regs[ra(instr)];
-        else
-            return lit(instr);
+    
+    private int stackMem(int adr) {
+        int i = adr-stackBase;
+        if (i >= 0 && i < stack.length)
+            return stack[i];
+        // the mapping used last, before the pages
+        Mapping m = lastMapping;
+        if (m != null && adr >= m.start && adr < m.end)
+            return m.get(adr);
+        return pageMem(adr);
+    }
+    
+    private void stackMem(int adr, int value) {
+        int i = adr-stackBase;
+        if (i >= 0 && i < stack.length)
+            stack[i] = value;
+        else if (!putMapped(adr, value))
+            pageMem(adr, value);
     }
     
+    /**
+     * Stores <code>value</code> if <code>adr</code> is in the writable
+     * mapping used last. Returns <code>false</code> otherwise.
+     */
+    private boolean putMapped(int adr, int value) {
+        Mapping m = lastMapping;
+        return m != null && adr >= m.start && adr < m.end && m.put(adr, value);
+    }
+    
+    private int pageMem(int adr) {
+        if (adr >= 0 && adr < memsize) return word(adr);
+        return mappedMem(adr);
+    }
+    
+    private void pageMem(int adr, int value) {
+        if (adr >= 0 && adr < memsize) {
+            if (adr < mem.length && (!shared || adr < text)) {
+                if (shared) unshare();
+                mem[adr] = value;
+                // keep the pre-decoded text segment consistent
+                if (adr < text) redecode(adr, adr+1);
+                return;
+            }
+            if (adr >= stackBase-stack.length) {
+                growStack(adr);
+                if (adr >= stackBase) {
+                    stack[adr-stackBase] = value;
+                    return;
+                }
+            }
+            int[] page = pages[adr >>> PAGE_BITS];
+            if (page == null) {
+                // pages not written to read as zero beyond mem
+                if (value == 0 && (adr & ~PAGE_MASK) >= mem.length) return;
+                page = newPage(adr);
+            }
+            page[adr & PAGE_MASK] = value;
+        }
+        else {
+            mappedMem(adr, value);
+        }
+    }
+    
+    private int mappedMem(int adr) {
+        Mapping m = mapping(adr);
+        return (m == null)?illegal(adr):m.get(adr);
+    }
+    
+    private void mappedMem(int adr, int value) {
+        Mapping m = mapping(adr);
+        if (m == null || !m.put(adr, value)) illegal(adr);
+    }
+    
+    private Mapping mapping(int adr) {
+        if (adr < memsize || adr >= mapEnd) return null;
+        Mapping m = lastMapping;
+        if (m != null && adr >= m.start && adr < m.end) return m;
+        for (Mapping n : mappings) {
+            if (adr >= n.start && adr < n.end) return lastMapping = n;
+        }
+        return null;
+    }
+    
+    /**
+     * Maps the bytes of <code>bufs</code>, one after the other, to the
+     * addresses after memory and the earlier mappings. All buffers but
+     * the last must hold whole words. Returns the first address, or -1
+     * if the address space is exhausted.
+     */
+    public int map(ByteBuffer[] bufs, boolean writable) {
+        int start = (Math.max(memsize, mapEnd)+PAGE_MASK) & ~PAGE_MASK;
+        long end = start;
+        for (ByteBuffer buf : bufs) end += (buf.limit()+3) >>> 2;
+        if (start < 0 || end > Integer.MAX_VALUE) return -1;
+        int adr = start;
+        for (ByteBuffer buf : bufs) {
+            Mapping m = new Mapping(adr, buf.order(ByteOrder.LITTLE_ENDIAN), writable);
+            mappings = Arrays.copyOf(mappings, mappings.length+1);
+            mappings[mappings.length-1] = m;
+            adr = m.end;
+        }
+        mapEnd = Math.max(mapEnd, adr);
+        return start;
+    }
+    
+    /**
+     * A file mapped to the addresses from <code>start</code> up to
+     * <code>end</code>. The last word may be only partially in the file.
+     */
+    private static class Mapping {
+        
+        final int start;
+        final int end;
+        final ByteBuffer buf;
+        final boolean writable;
+        
+        Mapping(int start, ByteBuffer buf, boolean writable) {
+            this.start = start;
+            this.end = start+((buf.limit()+3) >>> 2);
+            this.buf = buf;
+            this.writable = writable;
+        }
+        
+        int get(int adr) {
+            int i = 4*(adr-start);
+            if (i+4 <= buf.limit()) return buf.getInt(i);
+            int word = 0;
+            for (int k = 0; i+k < buf.limit(); k++) word |= (buf.get(i+k)&0xFF) << 8*k;
+            return word;
+        }
+        
+        boolean put(int adr, int value) {
+            if (!writable) return false;
+            int i = 4*(adr-start);
+            if (i+4 <= buf.limit()) {
+                buf.putInt(i, value);
+            }
+            else {
+                for (int k = 0; i+k < buf.limit(); k++) buf.put(i+k, (byte)(value >> 8*k));
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * Extends the stack segment at least to twice its size, or down to
+     * <code>adr</code>, but not into the code and data segment.
+     * Pages in the new part of the stack segment are moved into it.
+     */
+    private void growStack(int adr) {
+        int base = Math.min(memsize-2*Math.max(stack.length, PAGE_SIZE), adr);
+        base = Math.max(base, mem.length+PAGE_MASK);
+        base = (base >>> PAGE_BITS) << PAGE_BITS;
+        if (base >= stackBase) return;
+        int[] s = new int[memsize-base];
+        System.arraycopy(stack, 0, s, stackBase-base, stack.length);
+        for (int p = base >>> PAGE_BITS; p < (stackBase >>> PAGE_BITS); p++) {
+            if (pages[p] != null) {
+                System.arraycopy(pages[p], 0, s, (p << PAGE_BITS)-base, PAGE_SIZE);
+                pages[p] = null;
+            }
+        }
+        stack = s;
+        stackBase = base;
+    }
+    
+    /**
+     * Allocates the page of <code>adr</code>, with the words of mem
+     * that are in it.
+     */
+    private int[] newPage(int adr) {
+        int start = adr & ~PAGE_MASK;
+        int[] page = new int[PAGE_SIZE];
+        if (start < mem.length) System.arraycopy(mem, start, page, 0, Math.min(PAGE_SIZE, mem.length-start));
+        return pages[adr >>> PAGE_BITS] = page;
+    }
+    
+    /**
+     * Copies the memory and decoded arrays shared with the prototype,
+     * with the pages of the data segment copied so far.
+     * The interpreter loop returns, so that it uses the copies.
+     */
+    private void unshare() {
+        mem = mem.clone();
+        for (int p = text >>> PAGE_BITS; (p << PAGE_BITS) < mem.length; p++) {
+            if (pages[p] != null) {
+                int start = p << PAGE_BITS;
+                System.arraycopy(pages[p], 0, mem, start, Math.min(PAGE_SIZE, mem.length-start));
+            }
+        }
+        direct = mem.length;
+        writable = mem.length;
+        dop = dop.clone();
+        dra = dra.clone();
+        drb = drb.clone();
+        dval = dval.clone();
+        shared = false;
+        trap = true;
+    }
+    
+    private int illegal(int adr) {
+        illegalAddress = adr;
+        trap = true;
+        return 0;
+    }
+    
+    /**
+     * Returns the address in hex, followed by its source line if known.
+     */
+    public String where(int adr) {
+        String line = (lines == null)?null:lines.lookup(adr);
+        return (line == null)?int2hex(adr):int2hex(adr)+" ("+line+")";
+    }
+    
+    /**
+     * Returns the word at <code>adr</code>, or 0 if the address is
+     * illegal, without trapping.
+     */
+    public int peek(int adr) {
+        return (adr >= 0 && adr < memsize)?word(adr):0;
+    }
+    
+    /**
+     * Copies <code>n</code> words from <code>src</code> to memory at
+     * <code>adr</code>, segment by segment with bulk transfers. Returns
+     * <code>false</code> after an illegal memory access.
+     */
+    public boolean put(int adr, IntBuffer src, int n) {
+        while (n > 0) {
+            if (adr < 0 || adr >= memsize) {
+                Mapping m = mapping(adr);
+                if (m == null || !m.writable) {
+                    illegal(adr);
+                    return false;
+                }
+                int k = Math.min(n, m.end-adr);
+                for (int i = 0; i < k; i++) m.put(adr+i, src.get());
+                adr += k;
+                n -= k;
+                continue;
+            }
+            int k;
+            if (adr < mem.length && (!shared || adr < text)) {
+                if (shared) unshare();
+                k = Math.min(n, mem.length-adr);
+                src.get(mem, adr, k);
+                // keep the pre-decoded text segment consistent
+                if (adr < text) redecode(adr, Math.min(adr+k, text));
+            }
+            else if (adr >= stackBase) {
+                k = Math.min(n, memsize-adr);
+                src.get(stack, adr-stackBase, k);
+            }
+            else {
+                k = Math.min(n, Math.min(PAGE_SIZE-(adr & PAGE_MASK), stackBase-adr));
+                int[] page = pages[adr >>> PAGE_BITS];
+                if (page == null) page = newPage(adr);
+                src.get(page, adr & PAGE_MASK, k);
+            }
+            adr += k;
+            n -= k;
+        }
+        return true;
+    }
+    
+    /**
+     * Copies <code>n</code> words from memory at <code>adr</code> to
+     * <code>dst</code>, segment by segment with bulk transfers. Returns
+     * <code>false</code> after an illegal memory access.
+     */
+    public boolean get(int adr, IntBuffer dst, int n) {
+        while (n > 0) {
+            if (adr < 0 || adr >= memsize) {
+                Mapping m = mapping(adr);
+                if (m == null) {
+                    illegal(adr);
+                    return false;
+                }
+                int k = Math.min(n, m.end-adr);
+                for (int i = 0; i < k; i++) dst.put(m.get(adr+i));
+                adr += k;
+                n -= k;
+                continue;
+            }
+            int k;
+            if (adr < direct) {
+                k = Math.min(n, direct-adr);
+                dst.put(mem, adr, k);
+            }
+            else if (adr >= stackBase) {
+                k = Math.min(n, memsize-adr);
+                dst.put(stack, adr-stackBase, k);
+            }
+            else {
+                k = Math.min(n, Math.min(PAGE_SIZE-(adr & PAGE_MASK), stackBase-adr));
+                int[] page = pages[adr >>> PAGE_BITS];
+                if (page == null && adr < mem.length) {
+                    // the shared data segment
+                    k = Math.min(k, mem.length-adr);
+                    dst.put(mem, adr, k);
+                }
+                else if (page == null) {
+                    for (int i = 0; i < k; i++) dst.put(0);
+                }
+                else {
+                    dst.put(page, adr & PAGE_MASK, k);
+                }
+            }
+            adr += k;
+            n -= k;
+        }
+        return true;
+    }
+    
+    /**
+     * Returns the word at <code>adr</code> without checking the address.
+     */
+    private int word(int adr) {
+        if (adr < direct) return mem[adr];
+        if (adr >= stackBase) return stack[adr-stackBase];
+        int[] page = pages[adr >>> PAGE_BITS];
+        if (page != null) return page[adr & PAGE_MASK];
+        return adr < mem.length?mem[adr]:0;
+    }
+
     public static void error(String msg) {
         System.err.println("b-vm: error: "+msg);
         System.exit(1);
     }
     
+    /**
+     * Reports the result of running the program and exits.
+     */
+    public static void exit(VM vm, VMResult result) {
+        vm.systemCalls.closeAll();
+        System.exit(status(vm, result, System.err));
+    }
+    
+    /**
+     * Reports the result of running the program to <code>err</code>
+     * and returns the exit status.
+     */
+    public static int status(VM vm, VMResult result, PrintStream err) {
+        switch (result) {
+        case HALTED:
+            return vm.regs[R0];
+        case DIVISION_BY_ZERO:
+            err.println("Fatal: division by zero at "+vm.where(vm.IP-1));
+            return 1;
+        case ILLEGAL_INSTRUCTION:
+            err.println("Fatal: illegal instruction at "+vm.where(vm.IP-1));
+            return 1;
+        case ILLEGAL_MEMORY_ACCESS:
+            err.println("Fatal: illegal memory access at "+vm.where(vm.IP-1)+": "+int2hex(vm.illegalAddress));
+            return 1;
+        case NOT_YET_IMPLEMENTED:
+            err.println(result);
+            return 1;
+        case UNDEFINED_SYSTEM_CALL:
+            err.println("Fatal: undefined system call at "+vm.where(vm.IP-1));
+            return 1;
+        case UNSUPPORTED_SYSTEM_CALL:
+            err.println("Fatal: unsupported system call at "+vm.where(vm.IP-1));
+            return 1;
+        case BUDGET_EXHAUSTED:
+            err.println("Fatal: instruction limit exceeded at "+vm.where(vm.IP));
+            return 1;
+        default:
+            // OK should never be the case
+            return 0;
+        }
+    }
+    
     public static void main(String[] args) {
         String exefilename = null;
         List<String> argv = new LinkedList<>();
-        int memsize = 1024*1024;
-        int data = 0;
-        int[] mem = null;
-        int n = 0;
         boolean tracing = false;
+        boolean compiling = false;
+        String profile = null;
+        String collapsed = null;
 
         for (int i = 0; i < args.length; i++) {
             if ("-t".equals(args[i])) {
                 tracing = true;
             }
+            else if ("-j".equals(args[i])) {
+                compiling = true;
+            }
+            else if (exefilename == null && ("-p".equals(args[i]) || "-P".equals(args[i]))) {
+                if (i == args.length-1) error("missing filename after "+args[i]);
+                if ("-p".equals(args[i]))
+                    profile = args[++i];
+                else
+                    collapsed = args[++i];
+            }
             else if (exefilename == null) {
                 exefilename = args[i];
             }
@@ -347,69 +1277,33 @@ public class VM {
             System.exit(1);
         }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(exefilename))) {
-            String line = null;
-            while ((line = reader.readLine()) != null) {
-                line = line.trim();
-                if (line.startsWith("#")) {
-                    continue;
-                }
-                else if (line.startsWith(".memsize ")) {
-                    int s = hex2int(line.substring(".memsize ".length()));
-                    if (s < 1)
-                        error("memsize must be positive");
-                    else
-                        memsize = s;
-                }
-                else if (line.startsWith(".data ")) {
-                    int s = hex2int(line.substring(".data ".length()));
-                    if (s < 1)
-                        error("data must be positive");
-                    else
-                        data = s;
-                }
-                else if (line.length() == 8) {
-                    if (mem == null) mem = new int[memsize];
-                    mem[n] = hex2int(line);
-                    n++;
+        try {
+            Executable exe = Executable.load(exefilename);
+            VM vm = new VM(exe.memory(), exe.memsize, exe.data);
+            vm.tracing = tracing;
+            vm.fusing = !tracing;
+            vm.compiling = compiling && !tracing;
+            vm.predecode(exe.n);
+            vm.lines = exe.lines();
+            vm.argv(argv);
+            if (profile == null && collapsed == null) exit(vm, vm.run(exe.entry));
+            Profiler profiler = new Profiler(exe.symbols(), vm.lines);
+            VMResult res = profiler.run(vm, exe.entry);
+            vm.systemCalls.flush();
+            if (profile != null) {
+                try (PrintStream out = new PrintStream(profile)) {
+                    profiler.report(out);
                 }
             }
-            VM vm = new VM(mem, data);
-            vm.argv(argv);
-            vm.tracing = tracing;
-            VMResult result = vm.run();
-            switch (result) {
-            case HALTED:
-                System.exit(vm.regs[R0]);
-            case DIVISION_BY_ZERO:
-                System.err.println("Fatal: division by zero at "+int2hex(vm.IP-1));
-                System.exit(1);
-                break;
-            case ILLEGAL_INSTRUCTION:
-                System.err.println("Fatal: illegal instruction at "+int2hex(vm.IP-1));
-                System.exit(1);
-                break;
-            case ILLEGAL_MEMORY_ACCESS:
-                System.err.println("Fatal: illegal memory access at "+int2hex(vm.IP-1)+": "+int2hex(vm.illegalAddress));
-                System.exit(1);
-                break;
-            case NOT_YET_IMPLEMENTED:
-                System.err.println(result);
-                System.exit(1);
-                break;
-            case UNDEFINED_SYSTEM_CALL:
-                System.err.println("Fatal: undefined system call at "+int2hex(vm.IP-1));
-                System.exit(1);
-                break;
-            case UNSUPPORTED_SYSTEM_CALL:
-                System.err.println("Fatal: unsupported system call at "+int2hex(vm.IP-1));
-                System.exit(1);
-                break;
-            case OK:
-                // should never be the case
-                System.exit(0);
-                break;
+            if (collapsed != null) {
+                try (PrintStream out = new PrintStream(collapsed)) {
+                    profiler.collapsed(out);
+                }
             }
+            exit(vm, res);
+        }
+        catch (IllegalArgumentException e) {
+            error(e.getMessage());
         }
         catch (Exception e) {
             e.printStackTrace();
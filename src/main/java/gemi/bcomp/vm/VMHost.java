@@ -0,0 +1,121 @@
+package gemi.bcomp.vm;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs many programs concurrently in one JVM.
+ * <p>
+ * Each program runs in its own VM on a thread of a fixed pool, with its
+ * own standard streams and working directory. The exit status is
+ * returned by the future instead of terminating the JVM. Executables
+ * are loaded once and kept in a <code>ProgramCache</code>.
+ * <p>
+ * With a <code>slice</code>, a program runs for that many instructions
+ * and then waits behind the other programs, so that more programs than
+ * threads make progress. A program that exceeds <code>limit</code>
+ * instructions is stopped with exit status 1.
+ */
+public class VMHost {
+
+    private ExecutorService pool;
+    private ProgramCache cache = new ProgramCache();
+
+    // compile hot code of the programs
+    public boolean compiling = false;
+    // instructions per time slice, 0 to run programs to the end
+    public long slice = 0;
+    // maximal number of instructions of a program
+    public long limit = Long.MAX_VALUE;
+
+    public VMHost(int threads) {
+        pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "b-vm");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public VMHost() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Runs the executable file with the arguments <code>argv</code>,
+     * where fatal errors are reported to <code>System.err</code>.
+     */
+    public Future<Integer> submit(String executable, List<String> argv, InputStream stdin, PrintStream stdout) {
+        return submit(executable, argv, stdin, stdout, System.err, System.getProperty("user.dir"));
+    }
+
+    /**
+     * Runs the executable file with the arguments <code>argv</code> in
+     * the directory <code>cwd</code>. The future throws an
+     * <code>ExecutionException</code> if the file cannot be loaded.
+     */
+    public Future<Integer> submit(String executable, List<String> argv, InputStream stdin, PrintStream stdout, PrintStream stderr, String cwd) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        pool.execute(() -> {
+            try {
+                ProgramCache.Program program = cache.load(executable);
+                VM vm = program.instantiate();
+                vm.compiling = compiling;
+                vm.argv(argv);
+                vm.systemCalls.stdin = stdin;
+                vm.systemCalls.stdout = stdout;
+                vm.systemCalls.stderr = stderr;
+                vm.systemCalls.cwd = cwd;
+                vm.start(program.entry);
+                new Task(vm, result).run();
+            }
+            catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Runs a VM for one time slice.
+     */
+    private class Task implements Runnable {
+
+        private VM vm;
+        private CompletableFuture<Integer> result;
+
+        public Task(VM vm, CompletableFuture<Integer> result) {
+            this.vm = vm;
+            this.result = result;
+        }
+
+        public void run() {
+            try {
+                long n = limit-vm.retired;
+                if (slice > 0) n = Math.min(n, slice);
+                VMResult res = vm.resume(n);
+                if (res == VMResult.BUDGET_EXHAUSTED && vm.retired < limit) {
+                    pool.execute(this);
+                    return;
+                }
+                vm.systemCalls.closeAll();
+                result.complete(VM.status(vm, res, vm.systemCalls.stderr));
+            }
+            catch (Throwable e) {
+                vm.systemCalls.closeAll();
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Lets running programs finish and accepts no new ones.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
@@ -9,5 +9,7 @@ public enum VMResult {
     ILLEGAL_MEMORY_ACCESS,
     DIVISION_BY_ZERO,
     UNDEFINED_SYSTEM_CALL,
-    UNSUPPORTED_SYSTEM_CALL
+    UNSUPPORTED_SYSTEM_CALL,
+    // the program can be resumed
+    BUDGET_EXHAUSTED
 }
@@ -0,0 +1,95 @@
+package gemi.bcomp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import gemi.bcomp.assembler.Assembler;
+import gemi.bcomp.compiler.Compiler;
+import gemi.bcomp.linker.BObject;
+import gemi.bcomp.linker.Linker;
+import gemi.bcomp.parser.Parser;
+import gemi.bcomp.scanner.Scanner;
+import gemi.bcomp.utilities.ErrorHandler;
+import gemi.bcomp.vm.Executable;
+import gemi.bcomp.vm.VM;
+import gemi.bcomp.vm.VMResult;
+
+/**
+ * Compiles, links and runs B programs for the tests.
+ */
+public class Programs {
+
+    // whether the syntax tree is simplified
+    public boolean optimize = true;
+    // whether line numbers are generated
+    public boolean debug = false;
+    // working directory of the program, or null
+    public String cwd = null;
+    // result of the last run
+    public VMResult result = null;
+
+    /**
+     * Runs the program with the library and returns what it writes
+     * to standard output.
+     */
+    public String run(String source) throws Exception {
+        Executable exe = link(source);
+        VM vm = new VM(exe.memory(), exe.memsize, exe.data);
+        vm.predecode(exe.n);
+        return run(vm, exe.entry);
+    }
+
+    /**
+     * Compiles the program and links it with the library.
+     */
+    public Executable link(String source) throws Exception {
+        BObject obj = object(source);
+        Linker linker = new Linker(null);
+        linker.memsize = 1024*1024;
+        linker.objects.add(library());
+        linker.objects.add(obj);
+        if (!linker.link()) throw new Exception("cannot link program");
+        return linker.executable();
+    }
+
+    /**
+     * Compiles the program into an object.
+     */
+    public BObject object(String source) throws Exception {
+        ErrorHandler errorHandler = new ErrorHandler("test.b", System.err);
+        Scanner scanner = new Scanner(source.getBytes(StandardCharsets.ISO_8859_1), errorHandler);
+        Compiler compiler = new Compiler(null, errorHandler);
+        compiler.optimize = optimize;
+        compiler.debug = debug;
+        BObject obj = compiler.object(new Parser(scanner, errorHandler));
+        if (errorHandler.errorCount > 0) throw new Exception("errors in program");
+        return obj;
+    }
+
+    /**
+     * Runs the program loaded into <code>vm</code> and returns what it
+     * writes to standard output.
+     */
+    public String run(VM vm, int entry) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        vm.systemCalls.stdout = new PrintStream(out, true);
+        if (cwd != null) vm.systemCalls.cwd = cwd;
+        vm.argv(new ArrayList<>());
+        result = vm.run(entry);
+        vm.systemCalls.closeAll();
+        return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    private static BObject library() throws Exception {
+        ErrorHandler errorHandler = new ErrorHandler("libb.bs", System.err);
+        Assembler assembler = new Assembler(null, errorHandler);
+        try (InputStream in = new FileInputStream("libb/libb.bs")) {
+            assembler.assemble(in);
+        }
+        return assembler.object();
+    }
+}
@@ -0,0 +1,83 @@
+package gemi.bcomp.aot;
+
+import static gemi.bcomp.assembler.Opcodes.*;
+import static gemi.bcomp.utilities.Utilities.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import gemi.bcomp.Programs;
+import gemi.bcomp.vm.Compiled;
+import gemi.bcomp.vm.Executable;
+import gemi.bcomp.vm.VM;
+import junit.framework.TestCase;
+
+public class AOTTest extends TestCase {
+
+    private final static String SOURCE =
+        "fib(n) return (n < 2?n:fib(n-1)+fib(n-2));\n" +
+        "main() {\n" +
+        "    auto i;\n" +
+        "    i = 0;\n" +
+        "    while (i < 20) {\n" +
+        "        printf(\"%d %d*n\", i, fib(i));\n" +
+        "        i++;\n" +
+        "    }\n" +
+        "}\n";
+
+    public void testOutput() throws Exception {
+        Programs programs = new Programs();
+        Executable exe = programs.link(SOURCE);
+        String expected = programs.run(SOURCE);
+        assertTrue(expected.endsWith("19 4181\n"));
+        assertEquals(expected, run(programs, exe));
+    }
+
+    /**
+     * Moves the start code, up to its HALT, behind the static data and
+     * replaces it by HALT, so that the program only runs if started at
+     * the entry.
+     */
+    public void testEntry() throws Exception {
+        Programs programs = new Programs();
+        Executable exe = programs.link(SOURCE);
+        String expected = programs.run(SOURCE);
+        int start = 0;
+        while (opcode(exe.text()[start]) != HALT) start++;
+        int entry = Math.max(exe.n, exe.data);
+        int[] text = Arrays.copyOf(exe.text(), entry+start+1);
+        System.arraycopy(text, 0, text, entry, start+1);
+        text[0] = addOpcode(0, HALT);
+        exe.text = text;
+        exe.n = text.length;
+        exe.data = text.length;
+        exe.entry = entry;
+        assertEquals(expected, run(programs, exe));
+    }
+
+    /**
+     * Translates the executable, and runs it as <code>Runner</code> does.
+     */
+    private static String run(Programs programs, Executable exe) throws Exception {
+        AOT aot = new AOT(exe);
+        byte[] bytes = aot.translate();
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        aot.image(image);
+        Compiled program = (Compiled)new Loader().define(AOT.PROGRAM_CLASS.replace('/', '.'), bytes).getDeclaredConstructor().newInstance();
+        Runner runner = new Runner();
+        runner.load(new ByteArrayInputStream(image.toByteArray()), program);
+        return programs.run(runner.vm, runner.entry);
+    }
+
+    private static class Loader extends ClassLoader {
+
+        public Loader() {
+            super(VM.class.getClassLoader());
+        }
+
+        public Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package gemi.bcomp.codegen;
+
+import gemi.bcomp.Programs;
+import junit.framework.TestCase;
+
+public class CodeGeneratorTest extends TestCase {
+
+    private final static String[] OPS = {"+", "-", "*", "/", "%", "<<", ">>", "&", "|", "==", "!=", "<", "<=", ">", ">="};
+
+    private final static int[] LEFT = {-17, 0, 5, 100000};
+
+    // the right operand 3 as literal, auto, external and nested expression
+    private final static String[] RIGHT = {"3", "r", "e", "(r+e-3)"};
+
+    /**
+     * Runs each binary operator with each kind of right operand, with
+     * and without simplifying.
+     */
+    public void testOperators() throws Exception {
+        StringBuilder source = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        source.append("e 3;\n");
+        source.append("main() {\n");
+        source.append("    extrn e;\n");
+        source.append("    auto a, r;\n");
+        source.append("    r = 3;\n");
+        for (int a : LEFT) {
+            source.append("    a = "+a+";\n");
+            for (String op : OPS) {
+                for (String right : RIGHT) {
+                    source.append("    printf(\"%d*n\", a "+op+" "+right+");\n");
+                    expected.append(eval(op, a, 3)).append('\n');
+                }
+            }
+        }
+        source.append("}\n");
+        assertOutput(expected.toString(), source.toString());
+    }
+
+    /**
+     * Indexes and assigns with each kind of index and target.
+     */
+    public void testIndexAndAssign() throws Exception {
+        assertOutput("40 40 40 40 20\n7 8 9 10\n",
+            "e 3;\n" +
+            "v[5] 0, 10, 20, 30, 40, 50;\n" +
+            "w;\n" +
+            "main() {\n" +
+            "    extrn e, v, w;\n" +
+            "    auto r, x, p;\n" +
+            "    r = 4;\n" +
+            "    printf(\"%d %d %d %d %d*n\", v[4], v[r], v[e+1], v[(r+e-3)], v[e-1]);\n" +
+            "    x = 7;\n" +
+            "    w = x+1;\n" +
+            "    v[r] = w+1;\n" +
+            "    p = &v[1];\n" +
+            "    *p = v[4]+1;\n" +
+            "    printf(\"%d %d %d %d*n\", x, w, v[4], v[1]);\n" +
+            "}\n");
+    }
+
+    /**
+     * Loads numbers at the ends of the range of <code>MOV #n</code>.
+     */
+    public void testNumbers() throws Exception {
+        int[] numbers = {0x7FFFF, 0x80000, -0x80000, -0x80001, 0x7FFFFF, 0x800000, -0x800000, -0x800001, 0xFFFFFF, 0x1000000};
+        StringBuilder source = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        source.append("main() {\n");
+        source.append("    auto a;\n");
+        source.append("    a = 1;\n");
+        for (int n : numbers) {
+            String number = (n < 0)?"-"+(-n):Integer.toString(n);
+            source.append("    printf(\"%d %d %d*n\", "+number+", a*"+number+", a-("+number+"));\n");
+            expected.append(n+" "+n+" "+(1-n)+"\n");
+        }
+        source.append("}\n");
+        assertOutput(expected.toString(), source.toString());
+    }
+
+    private static void assertOutput(String expected, String source) throws Exception {
+        Programs programs = new Programs();
+        programs.optimize = false;
+        assertEquals(expected, programs.run(source));
+        programs.optimize = true;
+        assertEquals(expected, programs.run(source));
+    }
+
+    /**
+     * Returns <code>a op b</code>. The code generator yields 0 or 1 for
+     * <code>&amp;</code> and <code>|</code>, as for the comparisons.
+     */
+    private static int eval(String op, int a, int b) {
+        switch (op) {
+        case "+":  return a + b;
+        case "-":  return a - b;
+        case "*":  return a * b;
+        case "/":  return a / b;
+        case "%":  return a % b;
+        case "<<": return a << b;
+        case ">>": return a >> b;
+        case "&":  return ((a & b) != 0)?1:0;
+        case "|":  return ((a | b) != 0)?1:0;
+        case "==": return (a == b)?1:0;
+        case "!=": return (a != b)?1:0;
+        case "<":  return (a < b)?1:0;
+        case "<=": return (a <= b)?1:0;
+        case ">":  return (a > b)?1:0;
+        case ">=": return (a >= b)?1:0;
+        }
+        throw new IllegalArgumentException(op);
+    }
+}
@@ -0,0 +1,128 @@
+package gemi.bcomp.driver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import gemi.bcomp.Programs;
+import gemi.bcomp.driver.Driver.Unit;
+import gemi.bcomp.linker.BObject;
+import junit.framework.TestCase;
+
+public class DriverTest extends TestCase {
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = Files.createTempDirectory("bcomp").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(dir);
+    }
+
+    /**
+     * Translates a source, an assembler and an object file.
+     */
+    public void testTranslate() throws Exception {
+        Driver driver = new Driver();
+        String source = "main() return (0);\n";
+        Unit b = driver.translate(write("main.b", source));
+        assertNotNull(b.obj);
+        assertEquals(0, b.errorCount);
+        assertEquals(0, b.messages.size());
+        Unit bs = driver.translate("libb/libb.bs");
+        assertNotNull(bs.obj);
+        assertTrue(bs.obj.exports.containsKey("printf"));
+        File bo = new File(dir, "main.bo");
+        try (OutputStream out = new FileOutputStream(bo)) {
+            new Programs().object(source).write(out);
+        }
+        Unit obj = driver.translate(bo.getPath());
+        assertNotNull(obj.obj);
+        assertTrue(obj.obj.exports.containsKey("main"));
+    }
+
+    public void testErrors() throws Exception {
+        Driver driver = new Driver();
+        Unit bad = driver.translate(write("bad.b", "main() {\n    x = ;\n}\n"));
+        assertNull(bad.obj);
+        assertTrue(bad.errorCount > 0);
+        assertTrue(bad.messages.toString().startsWith(new File(dir, "bad.b").getPath()+":2:"));
+        String missing = new File(dir, "missing.b").getPath();
+        Unit none = driver.translate(missing);
+        assertNull(none.obj);
+        assertEquals(1, none.errorCount);
+        assertEquals("b-cc: error: cannot read file "+missing, none.messages.toString().trim());
+    }
+
+    /**
+     * Translates files with errors in parallel, the first taking longest,
+     * and checks that the results are in the order of the files.
+     */
+    public void testOrder() throws Exception {
+        List<String> filenames = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            StringBuilder source = new StringBuilder();
+            int functions = (i == 0)?2000:1;
+            for (int k = 0; k < functions; k++) source.append("f"+k+"(x) return (x*x+"+k+");\n");
+            source.append("main() {\n    x"+i+" = ;\n}\n");
+            filenames.add(write("f"+i+".b", source.toString()));
+        }
+        List<Unit> units = new Driver().translate(filenames);
+        assertEquals(filenames.size(), units.size());
+        for (int i = 0; i < units.size(); i++) {
+            Unit unit = units.get(i);
+            assertEquals(filenames.get(i), unit.filename);
+            assertNull(unit.obj);
+            assertTrue(unit.errorCount > 0);
+            assertTrue(unit.messages.toString(), unit.messages.toString().startsWith(filenames.get(i)+":"));
+        }
+    }
+
+    /**
+     * Translates a file again after replacing its cached object, which
+     * must be taken instead of translating the file.
+     */
+    public void testCacheHit() throws Exception {
+        File cachedir = new File(dir, "cache");
+        Driver driver = new Driver();
+        driver.cache = new ObjectCache(cachedir);
+        String filename = write("main.b", "main() return (0);\n");
+        assertNotNull(driver.translate(filename).obj);
+        File[] files = cachedir.listFiles();
+        assertEquals(1, files.length);
+        BObject other = new Programs().object("main() return (1);\n");
+        try (OutputStream out = new FileOutputStream(files[0])) {
+            other.write(out);
+        }
+        Unit unit = driver.translate(filename);
+        assertTrue(Arrays.equals(other.text, unit.obj.text));
+        // other options are another key
+        driver.optimize = false;
+        unit = driver.translate(filename);
+        assertFalse(Arrays.equals(other.text, unit.obj.text));
+        assertEquals(2, cachedir.listFiles().length);
+    }
+
+    private String write(String name, String content) throws Exception {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.ISO_8859_1));
+        return file.getPath();
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) delete(f);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,138 @@
+package gemi.bcomp.driver;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+
+import gemi.bcomp.Programs;
+import gemi.bcomp.linker.BObject;
+import junit.framework.TestCase;
+
+public class ObjectCacheTest extends TestCase {
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = Files.createTempDirectory("bcomp").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        dir.delete();
+    }
+
+    public void testKey() {
+        ObjectCache cache = new ObjectCache(dir);
+        byte[] source = "main() return (0);\n".getBytes(StandardCharsets.ISO_8859_1);
+        String key = cache.key(source, ".b");
+        assertEquals(key, cache.key(source.clone(), ".b"));
+        assertFalse(key.equals(cache.key(source, ".b -O0")));
+        assertFalse(key.equals(cache.key("main() return (1);\n".getBytes(StandardCharsets.ISO_8859_1), ".b")));
+        // the build id is part of the version
+        assertEquals(key, new ObjectCache(dir).key(source, ".b"));
+    }
+
+    public void testGetPut() throws Exception {
+        ObjectCache cache = new ObjectCache(dir);
+        assertNull(cache.get("missing"));
+        BObject obj = object(0);
+        cache.put(key(cache, 0), obj);
+        BObject cached = cache.get(key(cache, 0));
+        assertNotNull(cached);
+        assertTrue(Arrays.equals(obj.text, cached.text));
+    }
+
+    /**
+     * Adds objects beyond <code>maxSize</code>, and checks that those
+     * least recently used are deleted.
+     */
+    public void testEviction() throws Exception {
+        ObjectCache cache = new ObjectCache(dir);
+        File[] files = new File[4];
+        for (int i = 0; i < files.length; i++) files[i] = new File(dir, key(cache, i)+".bo");
+        cache.put(key(cache, 0), object(0));
+        cache.maxSize = 3*files[0].length();
+        cache.put(key(cache, 1), object(1));
+        cache.put(key(cache, 2), object(2));
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 3; i++) files[i].setLastModified(now-(3-i)*10000);
+        // a hit makes the first the most recently used
+        assertNotNull(cache.get(key(cache, 0)));
+        cache.put(key(cache, 3), object(3));
+        assertTrue(files[0].exists());
+        assertFalse(files[1].exists());
+        assertTrue(files[2].exists());
+        assertTrue(files[3].exists());
+        long total = 0;
+        for (File file : dir.listFiles()) total += file.length();
+        assertTrue(total <= cache.maxSize);
+    }
+
+    /**
+     * Adds the same key from several threads at once.
+     */
+    public void testConcurrentPut() throws Exception {
+        ObjectCache cache = new ObjectCache(dir);
+        BObject obj = object(0);
+        String key = key(cache, 0);
+        CyclicBarrier barrier = new CyclicBarrier(4);
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> errors = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 50; i++) {
+                        barrier.await();
+                        cache.put(key, obj);
+                        BObject cached = cache.get(key);
+                        if (cached == null || !Arrays.equals(obj.text, cached.text)) throw new AssertionError("bad object");
+                    }
+                }
+                catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) thread.join();
+        assertEquals(errors.toString(), 0, errors.size());
+        assertEquals(1, dir.listFiles().length);
+        assertTrue(new File(dir, key+".bo").exists());
+    }
+
+    /**
+     * Deletes temporary files left over from builds, but not those that
+     * may still be written.
+     */
+    public void testTemporaryFiles() throws Exception {
+        ObjectCache cache = new ObjectCache(dir);
+        File old = new File(dir, "x123.tmp");
+        File recent = new File(dir, "y123.tmp");
+        assertTrue(old.createNewFile());
+        assertTrue(recent.createNewFile());
+        old.setLastModified(System.currentTimeMillis()-2*60*60*1000);
+        cache.put(key(cache, 0), object(0));
+        assertFalse(old.exists());
+        assertTrue(recent.exists());
+    }
+
+    private static String key(ObjectCache cache, int i) {
+        return cache.key(("main() return ("+i+");\n").getBytes(StandardCharsets.ISO_8859_1), ".b");
+    }
+
+    private static BObject object(int i) throws Exception {
+        return new Programs().object("main() return ("+i+");\n");
+    }
+}
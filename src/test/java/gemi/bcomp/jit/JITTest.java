@@ -0,0 +1,101 @@
+package gemi.bcomp.jit;
+
+import gemi.bcomp.Programs;
+import gemi.bcomp.vm.Executable;
+import gemi.bcomp.vm.VM;
+import gemi.bcomp.vm.VMResult;
+import junit.framework.TestCase;
+
+public class JITTest extends TestCase {
+
+    // enough iterations to compile the loops and functions
+    private final static String LOOPS = "" + (3*JIT.THRESHOLD);
+
+    public void testLoops() throws Exception {
+        assertSame(VMResult.HALTED,
+                   compare("sum(n) {\n" +
+                           "    auto i, s;\n" +
+                           "    i = s = 0;\n" +
+                           "    while (i < n) {\n" +
+                           "        s =+ i%7 - (i>>2) + (i<<1);\n" +
+                           "        i++;\n" +
+                           "    }\n" +
+                           "    return (s);\n" +
+                           "}\n" +
+                           "main() {\n" +
+                           "    auto i;\n" +
+                           "    i = 0;\n" +
+                           "    while (i < " + LOOPS + ") {\n" +
+                           "        if (i%1000 == 0) printf(\"%d %d*n\", i, sum(i));\n" +
+                           "        i++;\n" +
+                           "    }\n" +
+                           "}\n"));
+    }
+
+    public void testDivisionByZero() throws Exception {
+        assertSame(VMResult.DIVISION_BY_ZERO,
+                   compare("main() {\n" +
+                           "    auto i, z;\n" +
+                           "    i = z = 0;\n" +
+                           "    while (i < " + LOOPS + ") {\n" +
+                           "        z = z + 100/(" + LOOPS + "-1-i);\n" +
+                           "        i++;\n" +
+                           "    }\n" +
+                           "    printf(\"%d*n\", z);\n" +
+                           "}\n"));
+    }
+
+    public void testIllegalStore() throws Exception {
+        assertSame(VMResult.ILLEGAL_MEMORY_ACCESS,
+                   compare("v[10];\n" +
+                           "main() {\n" +
+                           "    extrn v;\n" +
+                           "    auto i, p;\n" +
+                           "    i = 0;\n" +
+                           "    while (i < " + LOOPS + ") {\n" +
+                           "        p = (i == " + LOOPS + "-1)?-1:v;\n" +
+                           "        *p = i;\n" +
+                           "        i++;\n" +
+                           "    }\n" +
+                           "    printf(\"%d*n\", v[0]);\n" +
+                           "}\n"));
+    }
+
+    public void testTextStore() throws Exception {
+        assertSame(VMResult.HALTED,
+                   compare("main() {\n" +
+                           "    auto i, p, s;\n" +
+                           "    i = s = p = 0;\n" +
+                           "    while (i < " + LOOPS + ") {\n" +
+                           "        s =+ i;\n" +
+                           "        if (i == " + LOOPS + "/2) *p = *p;\n" +
+                           "        i++;\n" +
+                           "    }\n" +
+                           "    printf(\"%d*n\", s);\n" +
+                           "}\n"));
+    }
+
+    /**
+     * Runs the program interpreted and compiled, asserts that the
+     * output, the instruction pointer and the illegal address are the
+     * same, and returns the result.
+     */
+    private VMResult compare(String source) throws Exception {
+        Programs programs = new Programs();
+        Executable exe = programs.link(source);
+
+        VM interpreted = new VM(exe.memory(), exe.memsize, exe.data);
+        interpreted.predecode(exe.n);
+        String expected = programs.run(interpreted, exe.entry);
+        VMResult result = programs.result;
+
+        VM compiled = new VM(exe.memory(), exe.memsize, exe.data);
+        compiled.compiling = true;
+        compiled.predecode(exe.n);
+        assertEquals(expected, programs.run(compiled, exe.entry));
+        assertSame(result, programs.result);
+        assertEquals(interpreted.IP, compiled.IP);
+        assertEquals(interpreted.illegalAddress, compiled.illegalAddress);
+        return result;
+    }
+}
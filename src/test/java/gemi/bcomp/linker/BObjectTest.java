@@ -0,0 +1,96 @@
+package gemi.bcomp.linker;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Map;
+
+import gemi.bcomp.Programs;
+import gemi.bcomp.utilities.IntList;
+import junit.framework.TestCase;
+
+public class BObjectTest extends TestCase {
+
+    private final static String SOURCE =
+        "n 5;\n" +
+        "v[3] 1, 2, 3;\n" +
+        "s \"string\";\n" +
+        "f(x) {\n" +
+        "    extrn n;\n" +
+        "    return (x+n);\n" +
+        "}\n" +
+        "main() {\n" +
+        "    extrn n, v;\n" +
+        "    auto i;\n" +
+        "    i = 0;\n" +
+        "    while (i < 3) {\n" +
+        "        printf(\"%d*n\", f(v[i]));\n" +
+        "        i++;\n" +
+        "    }\n" +
+        "}\n";
+
+    /**
+     * Writes an object with references, exports, data and line numbers
+     * in binary format, and reads it back.
+     */
+    public void testBinary() throws Exception {
+        Programs programs = new Programs();
+        programs.debug = true;
+        BObject obj = programs.object(SOURCE);
+        assertFalse(obj.externalRef.isEmpty());
+        assertFalse(obj.internalRef.isEmpty());
+        assertFalse(obj.data.isEmpty());
+        assertTrue(obj.lines.size() > 0);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        obj.write(out);
+        byte[] bytes = out.toByteArray();
+        assertEquals(BObject.MAGIC, (bytes[0] & 0xFF)|(bytes[1] & 0xFF) << 8|(bytes[2] & 0xFF) << 16|(bytes[3] & 0xFF) << 24);
+        same(obj, BObject.load(new ByteArrayInputStream(bytes)));
+    }
+
+    /**
+     * Reads an object without line numbers and without
+     * <code>$init</code>.
+     */
+    public void testBinaryWithoutLines() throws Exception {
+        BObject obj = new Programs().object("main() return (0);\n");
+        obj.init = null;
+        assertNull(obj.lines);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        obj.write(out);
+        BObject loaded = BObject.load(new ByteArrayInputStream(out.toByteArray()));
+        same(obj, loaded);
+        assertNull(loaded.init);
+        assertNull(loaded.file);
+    }
+
+    public void testTruncated() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new Programs().object(SOURCE).write(out);
+        byte[] bytes = out.toByteArray();
+        assertNull(BObject.load(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length/2))));
+    }
+
+    private static void same(BObject expected, BObject obj) {
+        same(expected.externalRef, obj.externalRef);
+        same(expected.internalRef, obj.internalRef);
+        assertEquals(expected.exports, obj.exports);
+        assertEquals(expected.data, obj.data);
+        assertEquals(expected.init, obj.init);
+        assertTrue(Arrays.equals(expected.text, obj.text));
+        if (expected.lines != null) {
+            assertEquals(expected.file, obj.file);
+            assertTrue(Arrays.equals(expected.lines.encode(), obj.lines.encode()));
+            for (int adr = 0; adr < expected.text.length; adr++) {
+                assertEquals(expected.lines.lookup(adr), obj.lines.lookup(adr));
+            }
+        }
+    }
+
+    private static void same(Map<String,IntList> expected, Map<String,IntList> refs) {
+        assertEquals(expected.keySet(), refs.keySet());
+        for (String name : expected.keySet()) {
+            assertTrue(name, Arrays.equals(expected.get(name).toArray(), refs.get(name).toArray()));
+        }
+    }
+}
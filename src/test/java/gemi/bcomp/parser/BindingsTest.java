@@ -0,0 +1,56 @@
+package gemi.bcomp.parser;
+
+import gemi.bcomp.parser.Binding.BindingType;
+import junit.framework.TestCase;
+
+public class BindingsTest extends TestCase {
+
+    /**
+     * Binds a name in an inner scope, which hides the outer binding
+     * only in the inner scope.
+     */
+    public void testShadowing() {
+        Bindings outer = new Bindings(null);
+        assertTrue(outer.bind(5, "x", BindingType.EXTERNAL, 0));
+        assertTrue(outer.bind(6, "y", BindingType.AUTO, 1));
+        Bindings inner = new Bindings(outer);
+        assertNull(inner.lookupShallow(5));
+        assertTrue(inner.bind(5, "x", BindingType.AUTO, 2));
+        assertSame(BindingType.AUTO, inner.lookupDeep(5).type);
+        assertEquals(2, inner.lookupDeep(5).offset);
+        assertSame(BindingType.EXTERNAL, outer.lookupDeep(5).type);
+        // from the outer scope
+        assertEquals(1, inner.lookupDeep(6).offset);
+        assertNull(inner.lookupDeep(7));
+    }
+
+    /**
+     * Binds a name twice in the same scope.
+     */
+    public void testRebind() {
+        Bindings bindings = new Bindings(null);
+        assertTrue(bindings.bind(5, "x", BindingType.AUTO, 1));
+        assertFalse(bindings.bind(5, "x", BindingType.AUTO, 2));
+        assertEquals(1, bindings.lookupShallow(5).offset);
+        assertTrue(bindings.bind(5, "x", BindingType.EXTERNAL, 0));
+        assertSame(BindingType.EXTERNAL, bindings.lookupShallow(5).type);
+    }
+
+    /**
+     * Binds many names, whose ids fall into the same slots, so that the
+     * table grows several times.
+     */
+    public void testGrowth() {
+        Bindings bindings = new Bindings(null);
+        int n = 500;
+        for (int i = 0; i < n; i++) {
+            assertTrue(bindings.bind(8*i, "x"+i, BindingType.AUTO, i));
+        }
+        for (int i = 0; i < n; i++) {
+            Binding binding = bindings.lookupShallow(8*i);
+            assertEquals("x"+i, binding.name);
+            assertEquals(i, binding.offset);
+            assertNull(bindings.lookupShallow(8*i+1));
+        }
+    }
+}
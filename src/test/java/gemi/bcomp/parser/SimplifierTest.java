@@ -0,0 +1,44 @@
+package gemi.bcomp.parser;
+
+import gemi.bcomp.Programs;
+import junit.framework.TestCase;
+
+public class SimplifierTest extends TestCase {
+
+    /**
+     * Asserts that the program writes the same with and without
+     * simplifying, and returns what it writes.
+     */
+    private String sameOutput(String source) throws Exception {
+        Programs programs = new Programs();
+        programs.optimize = false;
+        String expected = programs.run(source);
+        programs.optimize = true;
+        String actual = programs.run(source);
+        assertEquals(expected, actual);
+        return actual;
+    }
+
+    public void testComparisonsWrapAround() throws Exception {
+        sameOutput(
+            "main() {\n" +
+            "    printf(\"%d %d %d %d*n\", -2147483647-1 < 1, -2147483647-1 <= 1, -2147483647-1 > 1, -2147483647-1 >= 1);\n" +
+            "    printf(\"%d %d %d %d*n\", 1 < -2147483647-1, 2147483647 > -1, 3 < 4, 4 <= 4);\n" +
+            "}\n");
+    }
+
+    public void testFolding() throws Exception {
+        String out = sameOutput(
+            "main() {\n" +
+            "    auto x;\n" +
+            "    x = 7;\n" +
+            "    printf(\"%d %d %d %d*n\", 2*3+1, '0'+1, 1<<4, -8>>1);\n" +
+            "    printf(\"%d %d %d %d*n\", -17/5, -17%5, !0, 3 == 3);\n" +
+            "    printf(\"%d %d %d %d*n\", x+0, x*1, x*8, 0-x);\n" +
+            "    printf(\"%d %d %d*n\", x+1+2, x-1-2, (1&2)*1);\n" +
+            "    if (0) printf(\"no*n\"); else printf(\"else*n\");\n" +
+            "    while (0) printf(\"no*n\");\n" +
+            "}\n");
+        assertEquals("7 49 16 -4\n-3 -2 1 1\n7 7 56 -7\n10 4 0\nelse\n", out);
+    }
+}
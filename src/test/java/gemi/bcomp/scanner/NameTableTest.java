@@ -0,0 +1,69 @@
+package gemi.bcomp.scanner;
+
+import static gemi.bcomp.scanner.TokenType.*;
+
+import java.nio.charset.StandardCharsets;
+
+import gemi.bcomp.utilities.ErrorHandler;
+import junit.framework.TestCase;
+
+public class NameTableTest extends TestCase {
+
+    /**
+     * Interns more names than fit before the table is rehashed, and
+     * finds each of them again, from bytes and from strings.
+     */
+    public void testRehash() {
+        NameTable names = new NameTable();
+        int n = 1000;
+        for (int i = 0; i < n; i++) {
+            assertEquals(i, intern(names, "name"+i));
+        }
+        assertEquals(n, names.size());
+        for (int i = 0; i < n; i++) {
+            assertEquals(i, intern(names, "name"+i));
+            assertEquals(i, names.intern("name"+i));
+            assertEquals("name"+i, names.name(i));
+        }
+        assertEquals(n, names.size());
+    }
+
+    /**
+     * Interns different names with the same hash code.
+     */
+    public void testSameHash() {
+        NameTable names = new NameTable();
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        int aa = intern(names, "Aa");
+        int bb = intern(names, "BB");
+        assertTrue(aa != bb);
+        assertEquals(aa, names.intern("Aa"));
+        assertEquals(bb, names.intern("BB"));
+        assertEquals("Aa", names.name(aa));
+        assertEquals("BB", names.name(bb));
+    }
+
+    /**
+     * Scans a keyword and a name with the same hash code.
+     */
+    public void testKeyword() {
+        assertEquals("if".hashCode(), "jG".hashCode());
+        byte[] source = "jG if jG".getBytes(StandardCharsets.ISO_8859_1);
+        Scanner scanner = new Scanner(source, new ErrorHandler("test.b", System.err));
+        Token name = scanner.next();
+        Token keyword = scanner.next();
+        Token again = scanner.next();
+        assertSame(NAME, name.type);
+        assertEquals("jG", name.text);
+        assertSame(IF, keyword.type);
+        assertSame(NAME, again.type);
+        assertEquals(name.id, again.id);
+        assertTrue(name.id != keyword.id);
+    }
+
+    private static int intern(NameTable names, String name) {
+        // the name in the middle of other bytes
+        byte[] bytes = ("(("+name+"))").getBytes(StandardCharsets.ISO_8859_1);
+        return names.intern(bytes, 2, name.length());
+    }
+}
@@ -0,0 +1,91 @@
+package gemi.bcomp.scanner;
+
+import static gemi.bcomp.scanner.TokenType.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import gemi.bcomp.utilities.ErrorHandler;
+import junit.framework.TestCase;
+
+public class ScannerTest extends TestCase {
+
+    private final static String SOURCE =
+        "/* comment */\n" +
+        "main() {\n" +
+        "    auto x;\n" +
+        "    x =+ 017 + 'ab';\n" +
+        "    printf(\"*t%d*n\", x);\n" +
+        "}\n" +
+        "last";
+
+    // the first word of the string: *t, %, d and *n
+    private final static int HT_WORD = Scanner.HT | '%' << 8 | 'd' << 16 | '\n' << 24;
+
+    public void testTokens() throws Exception {
+        List<Token> tokens = scan(SOURCE.getBytes(StandardCharsets.ISO_8859_1));
+        TokenType[] types = {
+            NAME, LPAREN, RPAREN, LBRACE,
+            AUTO, NAME, SEMICOLON,
+            NAME, ASPLUS, NUMBER, PLUS, NUMBER, SEMICOLON,
+            NAME, LPAREN, STRING, COMMA, NAME, RPAREN, SEMICOLON,
+            RBRACE,
+            NAME, EOF};
+        assertEquals(types.length, tokens.size());
+        for (int i = 0; i < types.length; i++) assertSame(tokens.get(i).toString(), types[i], tokens.get(i).type);
+        assertEquals("main", tokens.get(0).text);
+        assertEquals(1, tokens.get(0).line);
+        assertEquals(0, tokens.get(0).col);
+        assertEquals("x", tokens.get(5).text);
+        assertEquals(2, tokens.get(5).line);
+        assertEquals(9, tokens.get(5).col);
+        assertEquals(017, tokens.get(9).number);
+        assertEquals('a' | 'b' << 8, tokens.get(11).number);
+        assertEquals(HT_WORD, tokens.get(15).string[0]);
+        assertEquals(Scanner.EOT, tokens.get(15).string[1]);
+        // a name at the very end of the source
+        assertEquals("last", tokens.get(21).text);
+    }
+
+    /**
+     * Scans bytes above 0x7F in strings and characters as Latin-1.
+     */
+    public void testHighBytes() throws Exception {
+        byte[] source = {'\'', (byte)0xE9, '\'', ' ', '"', (byte)0xFF, '"'};
+        List<Token> tokens = scan(source);
+        assertEquals(0xE9, tokens.get(0).number);
+        assertEquals(0xFF | Scanner.EOT << 8, tokens.get(1).string[0]);
+    }
+
+    /**
+     * Scans the same tokens from a stream as from the bytes.
+     */
+    public void testStream() throws Exception {
+        byte[] source = SOURCE.getBytes(StandardCharsets.ISO_8859_1);
+        List<Token> expected = scan(source);
+        ErrorHandler errorHandler = new ErrorHandler("test.b", System.err);
+        Scanner scanner = new Scanner(new ByteArrayInputStream(source), errorHandler);
+        for (Token token : expected) assertEquals(token.toString(), scanner.next().toString());
+    }
+
+    public void testEmpty() throws Exception {
+        List<Token> tokens = scan(new byte[0]);
+        assertEquals(1, tokens.size());
+        assertSame(EOF, tokens.get(0).type);
+    }
+
+    private static List<Token> scan(byte[] source) {
+        ErrorHandler errorHandler = new ErrorHandler("test.b", System.err);
+        Scanner scanner = new Scanner(source, errorHandler);
+        List<Token> tokens = new ArrayList<>();
+        Token token;
+        do {
+            token = scanner.next();
+            tokens.add(token);
+        } while (token.type != EOF);
+        assertEquals(0, errorHandler.errorCount);
+        return tokens;
+    }
+}
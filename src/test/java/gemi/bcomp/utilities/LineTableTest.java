@@ -0,0 +1,50 @@
+package gemi.bcomp.utilities;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class LineTableTest extends TestCase {
+
+    private static LineTable table() {
+        LineTable table = new LineTable();
+        table.files.add("a.b");
+        table.files.add("b.b");
+        for (int i = 0; i < 1000; i++) {
+            table.add(4*i, i % 2, i+1);
+        }
+        return table;
+    }
+
+    public void testDecodeHex() {
+        LineTable table = table();
+        LineTable decoded = new LineTable(table.files, table.encodeHex());
+        assertEquals(table.size(), decoded.size());
+        for (int adr = 0; adr < 4000; adr += 3) {
+            assertEquals(table.lookup(adr), decoded.lookup(adr));
+        }
+    }
+
+    public void testSharedDecode() throws Exception {
+        LineTable table = table();
+        final LineTable shared = new LineTable(table.files, table.encodeHex());
+        final List<Throwable> errors = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < 1000; i++) {
+                        assertEquals((i % 2 == 0 ? "a.b:" : "b.b:")+(i+1), shared.lookup(4*i+1));
+                    }
+                }
+                catch (Throwable e) {
+                    synchronized (errors) { errors.add(e); }
+                }
+            }));
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+}
@@ -0,0 +1,44 @@
+package gemi.bcomp.vm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import gemi.bcomp.Programs;
+import junit.framework.TestCase;
+
+public class ProgramCacheTest extends TestCase {
+
+    /**
+     * Loads more programs than are kept, and checks that the least
+     * recently used one is loaded again.
+     */
+    public void testEviction() throws Exception {
+        Programs programs = new Programs();
+        Executable exe = programs.link("main() printf(\"hello*n\");\n");
+        File[] files = new File[3];
+        try {
+            for (int i = 0; i < files.length; i++) {
+                files[i] = File.createTempFile("test", ".out");
+                try (OutputStream out = new FileOutputStream(files[i])) {
+                    exe.write(out, "/usr/bin/b-vm");
+                }
+            }
+            ProgramCache cache = new ProgramCache();
+            cache.maxPrograms = 2;
+            ProgramCache.Program p0 = cache.load(files[0].getPath());
+            ProgramCache.Program p1 = cache.load(files[1].getPath());
+            assertSame(p0, cache.load(files[0].getPath()));
+            // drops files[1], which was used least recently
+            cache.load(files[2].getPath());
+            assertSame(p0, cache.load(files[0].getPath()));
+            assertNotSame(p1, cache.load(files[1].getPath()));
+            assertEquals("hello\n", programs.run(p0.instantiate(), p0.entry));
+        }
+        finally {
+            for (File file : files) {
+                if (file != null) file.delete();
+            }
+        }
+    }
+}
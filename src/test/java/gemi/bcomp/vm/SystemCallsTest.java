@@ -0,0 +1,30 @@
+package gemi.bcomp.vm;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import gemi.bcomp.Programs;
+import junit.framework.TestCase;
+
+public class SystemCallsTest extends TestCase {
+
+    public void testSeekToEndAfterBufferedWrite() throws Exception {
+        File dir = Files.createTempDirectory("bcomp").toFile();
+        Programs programs = new Programs();
+        programs.cwd = dir.getPath();
+        programs.run(
+            "main() {\n" +
+            "    auto f;\n" +
+            "    f = creat(\"out.txt\", 0644);\n" +
+            "    write(f, \"hello world\", 11);\n" +
+            "    seek(f, 0, 2);\n" +
+            "    write(f, \"XY\", 2);\n" +
+            "    close(f);\n" +
+            "}\n");
+        File file = new File(dir, "out.txt");
+        assertEquals("hello worldXY", new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1));
+        file.delete();
+        dir.delete();
+    }
+}
@@ -0,0 +1,311 @@
+package gemi.bcomp.vm;
+
+import static gemi.bcomp.assembler.Opcodes.*;
+import static gemi.bcomp.utilities.Utilities.*;
+import static gemi.bcomp.vm.VM.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import gemi.bcomp.Programs;
+import junit.framework.TestCase;
+
+public class VMTest extends TestCase {
+
+    // operands, which also fit into literals
+    private final static int[] VALUES = {0, 1, -1, 2, 7, -7, 31, 32, -33, 1000, -65536, 0x7FFFF, -0x80000};
+
+    private final static int[] OPS = {ADD, SUB, MUL, DIV, MOD, AND, OR, XOR, LSH, RSH};
+
+    // operators of the fused sequences
+    private final static int[] FUSED_OPS = {ADD, SUB, MUL, AND, OR, XOR};
+    private final static int[] REV_OPS = {DIV, MOD, LSH, RSH};
+
+    private VMResult result;
+
+    /**
+     * Runs each arithmetic operation in register and literal form.
+     */
+    public void testArithmetic() {
+        for (int op : OPS) {
+            for (int a : VALUES) {
+                for (int b : VALUES) {
+                    String msg = op+" "+a+" "+b;
+                    Integer expected = alu(op, a, b);
+                    // MOV #b,R0; MOV #a,R1; op R0,R1
+                    VM vm = run(mov(MOV_L0, b), mov(MOV_L1, a), rr(op, R0, R1));
+                    check(msg, expected, vm);
+                    // MOV #a,R1; op #b,R1
+                    vm = run(mov(MOV_L1, a), rl(op, b, R1));
+                    check(msg, expected, vm);
+                }
+            }
+        }
+    }
+
+    public void testUnary() {
+        for (int a : VALUES) {
+            // MOV #a,R0; op R0,R1
+            assertEquals(-a, run(mov(MOV_L0, a), rr(NEG, R0, R1)).regs[R1]);
+            assertEquals(a == 0?1:0, run(mov(MOV_L0, a), rr(NOT, R0, R1)).regs[R1]);
+            assertEquals(~a, run(mov(MOV_L0, a), rr(CPL, R0, R1)).regs[R1]);
+            VM vm = run(mov(MOV_L0, a), mov(MOV_L1, 5), rr(EXCH, R0, R1));
+            assertEquals(5, vm.regs[R0]);
+            assertEquals(a, vm.regs[R1]);
+        }
+    }
+
+    /**
+     * Runs each sequence replaced by a superinstruction with every kind
+     * of load, and compares the result with the single instructions.
+     */
+    public void testFusion() {
+        for (int load : loads(2)) {
+            for (int op : FUSED_OPS) {
+                // PUSH R0; load; POP R1; op R1,R0
+                compare(mov(MOV_L0, 12), push(), load, pop(R1), rr(op, R1, R0));
+            }
+            // PUSH R0; load; POP R1; ADD R1,R0; MOV [R0],R0
+            compare(mov(MOV_L0, 12), push(), load, pop(R1), rr(ADD, R1, R0), ir(MOV_IR, R0, R0, 0));
+            // PUSH R0; load; POP R1; EXCH R1,R0; SUB R1,R0
+            compare(mov(MOV_L0, 12), push(), load, pop(R1), rr(EXCH, R1, R0), rr(SUB, R1, R0));
+            // PUSH R0; load; POP R1; MOV R0,[R1]
+            compare(mov(MOV_L0, 44), push(), load, pop(R1), ir(MOV_RI, R0, R1, 0));
+        }
+        for (int n : new int[] {0, 2, -3}) {
+            for (int load : loads(n)) {
+                for (int op : REV_OPS) {
+                    // PUSH R0; load; MOV R0,R1; POP R0; op R1,R0
+                    compare(mov(MOV_L0, 100), push(), load, rr(MOV_RR, R0, R1), pop(R0), rr(op, R1, R0));
+                }
+            }
+        }
+    }
+
+    /**
+     * Patches the text segment before a sequence is executed, which
+     * changes its load, breaks it up, or completes it.
+     */
+    public void testFusionPatched() {
+        int nop = addOpcode(0, NOP);
+        // patched slot, the word written there, and the word at slot 5
+        int[][] patches = {{4, mov(MOV_L0, 9), pop(R1)}, {5, nop, pop(R1)}, {5, pop(R1), nop}};
+        for (int[] p : patches) {
+            // MOV [40],R0; MOV R0,[slot]; MOV #12,R0; PUSH R0; MOV #2,R0; POP R1; ADD R1,R0
+            int[] code = {a(MOV_A0, 40), a(MOV_0A, p[0]), mov(MOV_L0, 12), push(), mov(MOV_L0, 2), p[2], rr(ADD, R1, R0)};
+            compare(new int[] {p[1]}, code);
+        }
+    }
+
+    /**
+     * Writes several words into the text segment at once, which
+     * completes a sequence starting before them, or breaks it up.
+     */
+    public void testPut() {
+        int nop = addOpcode(0, NOP);
+        // MOV #12,R0; PUSH R0; then MOV #2,R0; POP R1; ADD R1,R0
+        int[] code = {mov(MOV_L0, 12), push(), nop, nop, nop};
+        int[] tail = {mov(MOV_L0, 2), pop(R1), rr(ADD, R1, R0)};
+        for (boolean fusing : new boolean[] {false, true}) {
+            VM vm = load(fusing, new int[0], code);
+            assertTrue(vm.put(2, IntBuffer.wrap(tail), tail.length));
+            assertSame(VMResult.HALTED, vm.run());
+            assertEquals(14, vm.regs[R0]);
+            int[] fused = {mov(MOV_L0, 12), push(), mov(MOV_L0, 2), pop(R1), rr(ADD, R1, R0)};
+            vm = load(fusing, new int[0], fused);
+            assertTrue(vm.put(3, IntBuffer.wrap(new int[] {nop, pop(R1)}), 2));
+            assertSame(VMResult.HALTED, vm.run());
+            assertEquals(2, vm.regs[R0]);
+            assertEquals(12, vm.regs[R1]);
+        }
+    }
+
+    /**
+     * Reads and writes two mappings, alternating between them, and
+     * writes to a read-only mapping.
+     */
+    public void testMapped() {
+        VM vm = new VM(new int[16], 1 << 20, 16);
+        ByteBuffer a = ByteBuffer.allocate(4096);
+        ByteBuffer b = ByteBuffer.allocate(6);
+        int start = vm.map(new ByteBuffer[] {a, b}, true);
+        int ro = vm.map(new ByteBuffer[] {ByteBuffer.allocate(16)}, false);
+        for (int i = 0; i < 1024; i++) {
+            vm.mem(start+i, i);
+            vm.mem(start+1024+(i & 1), -i);
+        }
+        for (int i = 0; i < 1024; i++) {
+            assertEquals(i, vm.mem(start+i));
+            assertEquals(i, a.order(ByteOrder.LITTLE_ENDIAN).getInt(4*i));
+        }
+        assertEquals(-1022, vm.mem(start+1024));
+        // only the two bytes in the buffer of the last word
+        assertEquals(-1023 & 0xFFFF, vm.mem(start+1025));
+        assertNull(vm.illegalAddress);
+        vm.mem(ro, 1);
+        assertEquals(Integer.valueOf(ro), vm.illegalAddress);
+        assertEquals(0, vm.mem(ro));
+    }
+
+    /**
+     * Runs the code with and without superinstructions, and single
+     * stepped, and compares the registers, the memory and the result.
+     */
+    private void compare(int... code) {
+        compare(new int[0], code);
+    }
+
+    private void compare(int[] data, int... code) {
+        VM plain = load(false, data, code);
+        VMResult expected = plain.run();
+        VM fused = load(true, data, code);
+        assertSame(expected, fused.run());
+        same(plain, fused);
+        VM stepped = load(true, data, code);
+        stepped.start(0);
+        VMResult res;
+        while ((res = stepped.step()) == VMResult.OK);
+        assertSame(expected, res);
+        same(plain, stepped);
+    }
+
+    private static void same(VM expected, VM vm) {
+        assertTrue(Arrays.equals(expected.regs, vm.regs));
+        assertEquals(expected.illegalAddress, vm.illegalAddress);
+        for (int i = 0; i < 128; i++) assertEquals(expected.mem(i), vm.mem(i));
+    }
+
+    /**
+     * Returns the code followed by HALT, with the data words from address
+     * 40 and the values 5 and 3 after them.
+     */
+    private static VM load(boolean fusing, int[] data, int[] code) {
+        int[] mem = new int[128];
+        System.arraycopy(code, 0, mem, 0, code.length);
+        mem[code.length] = addOpcode(0, HALT);
+        System.arraycopy(data, 0, mem, 40, data.length);
+        mem[41] = 5;
+        mem[42] = 3;
+        VM vm = new VM(mem, 48);
+        vm.fusing = fusing;
+        vm.predecode(code.length+1);
+        return vm;
+    }
+
+    /**
+     * Returns loads into R0: a literal, an address, an external and an
+     * indirect load, which yield <code>n</code> or a value from memory.
+     */
+    private static int[] loads(int n) {
+        return new int[] {mov(MOV_L0, n), a(LAD_A0, n & 0xFFFFFFF), a(MOV_A0, 41), ir(MOV_IR, FP, R0, 42)};
+    }
+
+    private void check(String msg, Integer expected, VM vm) {
+        if (expected == null) {
+            assertSame(msg, VMResult.DIVISION_BY_ZERO, result);
+        }
+        else {
+            assertSame(msg, VMResult.HALTED, result);
+            assertEquals(msg, expected.intValue(), vm.regs[R1]);
+        }
+    }
+
+    /**
+     * Returns <code>a op b</code>, or <code>null</code> for a division
+     * by zero.
+     */
+    private static Integer alu(int op, int a, int b) {
+        switch (op) {
+        case ADD: return a + b;
+        case SUB: return a - b;
+        case MUL: return a * b;
+        case DIV: return b == 0?null:a / b;
+        case MOD: return b == 0?null:a % b;
+        case AND: return a & b;
+        case OR:  return a | b;
+        case XOR: return a ^ b;
+        case LSH: return b > 0?a << b:a >> -b;
+        case RSH: return b > 0?a >> b:a << -b;
+        }
+        throw new IllegalArgumentException();
+    }
+
+    /**
+     * Runs the code followed by HALT.
+     */
+    private VM run(int... code) {
+        int[] mem = Arrays.copyOf(code, 64);
+        mem[code.length] = addOpcode(0, HALT);
+        VM vm = new VM(mem, code.length+1);
+        vm.predecode(code.length+1);
+        result = vm.run();
+        return vm;
+    }
+
+    // op ra,rb
+    private static int rr(int op, int ra, int rb) {
+        return addRa(addRb(addOpcode(0, op), rb), ra);
+    }
+
+    // op #lit,rb
+    private static int rl(int op, int lit, int rb) {
+        return addLit(addR2r(addRb(addOpcode(0, op), rb), false), lit);
+    }
+
+    // PUSH R0
+    private static int push() {
+        return addRb(addOpcode(0, PUSH), R0);
+    }
+
+    // POP rb
+    private static int pop(int rb) {
+        return addRb(addOpcode(0, POP), rb);
+    }
+
+    // MOV ra,[rb+lit] or MOV [ra+lit],rb
+    private static int ir(int op, int ra, int rb, int lit) {
+        return addLit(addOpcode(0, op)|(ra << 22)|(rb << 20), lit);
+    }
+
+    // op adr
+    private static int a(int op, int adr) {
+        return addAdr(addOpcode(0, op), adr);
+    }
+
+    // MOV #n,R0 or MOV #n,R1
+    private static int mov(int op, int n) {
+        return addOffset(addOpcode(0, op), n);
+    }
+
+    /**
+     * Runs a program several times in VMs sharing the memory of one
+     * prototype. Each run writes to the data segment, and then to the
+     * text segment, which copies all of the memory, and must not see
+     * the writes of the runs before.
+     */
+    public void testSharedMemory() throws Exception {
+        Programs programs = new Programs();
+        Executable exe = programs.link(
+            "n 5;\n" +
+            "v[3] 1, 2, 3;\n" +
+            "main() {\n" +
+            "    extrn n, v;\n" +
+            "    auto p;\n" +
+            "    printf(\"%d %d*n\", n, v[2]);\n" +
+            "    n = n+1;\n" +
+            "    v[2] = 30;\n" +
+            "    printf(\"%d %d*n\", n, v[2]);\n" +
+            "    p = 0;\n" +
+            "    *p = *p;\n" +
+            "    n = n+1;\n" +
+            "    printf(\"%d %d*n\", n, v[2]);\n" +
+            "}\n");
+        VM prototype = new VM(exe.memory(), exe.memsize, exe.data);
+        prototype.predecode(exe.n);
+        for (int i = 0; i < 3; i++) {
+            assertEquals("5 3\n6 30\n7 30\n", programs.run(new VM(prototype), exe.entry));
+        }
+    }
+}